@@ -0,0 +1,221 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Account;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//mpMetrics 3.0
+import org.eclipse.microprofile.metrics.Histogram;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+//mpRestClient 1.3
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+@ApplicationScoped
+/** Collects the individual account lookups that arrive within a few milliseconds of each other, from any
+ *  caller, and serves them with a single call to the id-list variant of AccountClient.getAccounts, handing each
+ *  waiting request its own result (no thread waits on that call itself).  An account asked for at two different
+ *  totals in the same batch goes in a second call, since its loyalty level depends on the total.  Since one call
+ *  carries many callers' lookups, it's made with the broker's own credential (ACCOUNT_BATCH_SERVICE_JWT) rather
+ *  than any caller's; a caller only gets here for an owner it has already been authorized to see by the broker
+ *  endpoint it called.  The Account microservice doesn't have that id-list variant yet, so batching is off unless
+ *  ACCOUNT_BATCH_ENABLED is set, and stays off if there's no service credential to send.
+ */
+public class AccountBatcher {
+	private static Logger logger = Logger.getLogger(AccountBatcher.class.getName());
+
+	private static boolean enabled = false;
+	private static int windowMillis = 5;
+	private static int maxBatchSize = 50;
+	private static String serviceJwt = null; //the whole Authorization header value, such as "Bearer ..."
+
+	private @Inject @RestClient AccountClient accountClient;
+	private @Inject MetricRegistry registry;
+	private @Inject RetryBudget retries;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	private Object lock = new Object();
+	private Batch pending = null; //the batch collecting lookups right now, if any
+	private Histogram batchSizes;
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("ACCOUNT_BATCH_ENABLED"));
+		windowMillis = BrokerService.getIntFromEnv("ACCOUNT_BATCH_WINDOW_MS", windowMillis);
+		maxBatchSize = Math.max(1, BrokerService.getIntFromEnv("ACCOUNT_BATCH_MAX_SIZE", maxBatchSize));
+		serviceJwt = System.getenv("ACCOUNT_BATCH_SERVICE_JWT");
+		if (enabled && ((serviceJwt == null) || serviceJwt.isEmpty())) {
+			logger.warning("ACCOUNT_BATCH_ENABLED is set, but ACCOUNT_BATCH_SERVICE_JWT isn't, so not batching account lookups");
+			enabled = false;
+		}
+		logger.info("Account lookup batching enabled: "+enabled+" (window "+windowMillis+" ms, up to "+maxBatchSize+" per batch)");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	@PostConstruct
+	private void initialize() {
+		batchSizes = registry.histogram("accountBatchSize");
+		accountClient = DownstreamCall.wrap(AccountClient.class, accountClient); //see DownstreamCall
+	}
+
+	/** Blocks until the batch containing this lookup has been served */
+	public Account getAccount(String id, double total) {
+		try {
+			return getAccountAsync(id, total).get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for account "+id, ie);
+		}
+	}
+
+	/** Completes once the batch containing this lookup has been served */
+	public CompletableFuture<Account> getAccountAsync(String id, double total) {
+		Lookup lookup = new Lookup(id, total);
+		Batch full = null;
+		synchronized (lock) {
+			Batch batch = pending;
+			if (batch == null) {
+				batch = new Batch();
+				pending = batch;
+				schedule(batch);
+			}
+			batch.lookups.add(lookup);
+			if (batch.immediate || (batch.lookups.size() >= maxBatchSize)) full = batch;
+		}
+		if (full != null) flush(full); //no point waiting out the window
+
+		return lookup.future;
+	}
+
+	private void schedule(Batch batch) {
+		if (scheduler != null) try {
+			scheduler.schedule(() -> flush(batch), windowMillis, TimeUnit.MILLISECONDS);
+			return;
+		} catch (RejectedExecutionException ree) {
+			logger.warning("Unable to schedule account batch, so sending it without waiting");
+		}
+		batch.immediate = true; //the first caller will flush it right after adding its lookup
+	}
+
+	private void flush(Batch batch) {
+		List<Lookup> lookups = null;
+		synchronized (lock) {
+			if (batch.flushed) return; //already sent, because it filled up before its window ended
+			batch.flushed = true;
+			if (pending == batch) pending = null;
+			lookups = batch.lookups;
+		}
+
+		//The same account may be asked for more than once; at the same total, that's one lookup, but at a different
+		//total (whose loyalty level may differ), it goes in a call of its own, as results only say which account
+		List<Map<String, Double>> rounds = new ArrayList<Map<String, Double>>();
+		List<List<Lookup>> waiting = new ArrayList<List<Lookup>>();
+		for (Lookup lookup : lookups) {
+			int round = 0;
+			while (round < rounds.size()) {
+				Double total = rounds.get(round).get(lookup.id);
+				if ((total == null) || (total.doubleValue() == lookup.total)) break;
+				round++;
+			}
+			if (round == rounds.size()) {
+				rounds.add(new LinkedHashMap<String, Double>());
+				waiting.add(new ArrayList<Lookup>());
+			}
+			rounds.get(round).putIfAbsent(lookup.id, lookup.total);
+			waiting.get(round).add(lookup);
+		}
+
+		for (int round = 0; round < rounds.size(); round++) send(rounds.get(round), waiting.get(round));
+	}
+
+	/** Asks for the accounts (each at its total) in one call, completing the lookups waiting on them */
+	private void send(Map<String, Double> totals, List<Lookup> waiting) {
+		batchSizes.update(totals.size());
+		try {
+			logger.fine(() -> "Calling AccountClient.getAccountsAsync() for a batch of "+totals.size());
+			List<String> ids = new ArrayList<String>(totals.keySet());
+			List<Double> values = new ArrayList<Double>(totals.values());
+			retries.callAsync("getAccounts", () -> accountClient.getAccountsAsync(serviceJwt, ids, values))
+				.whenComplete((accounts, t) -> complete(waiting, accounts, t));
+		} catch (Throwable t) {
+			complete(waiting, null, t);
+		}
+	}
+
+	private void complete(List<Lookup> lookups, Account[] accounts, Throwable failure) {
+		if (failure != null) {
+			Throwable cause = ((failure instanceof CompletionException) && (failure.getCause() != null)) ? failure.getCause() : failure;
+			for (Lookup lookup : lookups) lookup.future.completeExceptionally(cause);
+			return;
+		}
+
+		Map<String, Account> byID = new HashMap<String, Account>();
+		if (accounts != null) for (Account account : accounts) {
+			if (account != null) byID.put(account.get_id(), account);
+		}
+		for (Lookup lookup : lookups) lookup.future.complete(byID.get(lookup.id)); //null if not found, like getAccount
+	}
+
+	private static class Lookup {
+		private String id;
+		private double total;
+		private CompletableFuture<Account> future = new CompletableFuture<Account>();
+
+		private Lookup(String id, double total) {
+			this.id = id;
+			this.total = total;
+		}
+	}
+
+	private static class Batch {
+		private List<Lookup> lookups = new ArrayList<Lookup>();
+		private boolean flushed = false;
+		private boolean immediate = false;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+/** Remembers each owner's account ID (and the portfolio total last seen), as learned from the portfolios that
+ *  create, get, update and list calls return, so that GET /{owner} can ask Account for the account at the same time
+ *  as it asks Portfolio for the portfolio, rather than only once the portfolio says which account it is.  The
+ *  portfolio still has the final say: if its account ID or total differs (the total setting the loyalty level), the
+ *  account is looked up again.  A GET / fills in every owner at once.  Up to ACCOUNT_DIRECTORY_MAX_SIZE owners are
+ *  remembered; later ones just aren't.
+ */
+public class AccountDirectory {
+	private static Logger logger = Logger.getLogger(AccountDirectory.class.getName());
+
+	private static boolean enabled = false;
+	private static int maxSize = 100000;
+
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("ACCOUNT_DIRECTORY_ENABLED"));
+		maxSize = Math.max(1, BrokerService.getIntFromEnv("ACCOUNT_DIRECTORY_MAX_SIZE", maxSize));
+		logger.info("Account directory enabled: "+enabled+" (up to "+maxSize+" owners)");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** The owner's account ID and last known total, or null if not known */
+	public Entry get(String owner) {
+		return (enabled && (owner != null)) ? entries.get(owner) : null;
+	}
+
+	public void record(String owner, Portfolio portfolio) {
+		if (!enabled || (owner == null) || (portfolio == null) || (portfolio.getAccountID() == null)) return;
+		if ((entries.size() >= maxSize) && !entries.containsKey(owner)) return;
+		entries.put(owner, new Entry(portfolio.getAccountID(), portfolio.getTotal()));
+	}
+
+	/** Fills in every owner in one go, such as from the full list of portfolios */
+	public void preload(Portfolio[] portfolios) {
+		if (!enabled || (portfolios == null)) return;
+		for (Portfolio portfolio : portfolios) {
+			if (portfolio != null) record(portfolio.getOwner(), portfolio);
+		}
+	}
+
+	public void remove(String owner) {
+		if (enabled && (owner != null)) entries.remove(owner);
+	}
+
+	public static class Entry {
+		private final String accountID;
+		private final double total;
+
+		private Entry(String accountID, double total) {
+			this.accountID = accountID;
+			this.total = total;
+		}
+
+		public String getAccountID() {
+			return accountID;
+		}
+
+		public double getTotal() {
+			return total;
+		}
+	}
+}
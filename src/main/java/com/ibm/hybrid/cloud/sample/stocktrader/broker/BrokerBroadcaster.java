@@ -0,0 +1,277 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+@ApplicationScoped
+/** Pushes Broker snapshots to Server-Sent Event subscribers whenever a broker is created, updated or deleted.
+ *  Sends are asynchronous, so an idle connection costs a buffer rather than a thread.  Each subscriber has a
+ *  small bounded buffer, conflated by owner: a slow consumer only ever gets the newest snapshot for an owner,
+ *  and if it falls behind on more owners than fit in its buffer, the oldest pending snapshots are dropped.
+ *  Every SSE_HEARTBEAT_S seconds, idle subscribers are sent a comment, so that ones whose client has gone away
+ *  are noticed (and removed) even if the owner they're watching never changes.
+ */
+public class BrokerBroadcaster {
+	private static Logger logger = Logger.getLogger(BrokerBroadcaster.class.getName());
+
+	public static final String CREATE = "create";
+	public static final String UPDATE = "update";
+	public static final String DELETE = "delete";
+
+	private static int bufferSize = 16;
+	private static int heartbeatSeconds = 30;
+
+	private Map<String, Set<Subscriber>> ownerSubscribers = new ConcurrentHashMap<String, Set<Subscriber>>();
+	private Set<Subscriber> allOwnerSubscribers = ConcurrentHashMap.newKeySet();
+	private AtomicLong sequence = new AtomicLong();
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	static {
+		bufferSize = Math.max(1, BrokerService.getIntFromEnv("SSE_BUFFER_SIZE", bufferSize));
+		heartbeatSeconds = BrokerService.getIntFromEnv("SSE_HEARTBEAT_S", heartbeatSeconds);
+		logger.info("SSE per-subscriber buffer size: "+bufferSize+", heartbeat every "+heartbeatSeconds+" s");
+	}
+
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if ((heartbeatSeconds <= 0) || (scheduler == null)) return;
+		try {
+			scheduler.scheduleWithFixedDelay(this::sweep, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException ree) {
+			logger.warning("Unable to schedule SSE heartbeats; closed subscribers will only be noticed on the next change");
+		}
+	}
+
+	/** Registers a subscriber for one owner's changes, or for every owner's changes if owner is null */
+	/** Whether the resource method (null if none matched) is an SSE subscription, which filters leave alone since it
+	 *  stays open indefinitely; decided by what it produces rather than by its path, which an owner's name could mimic
+	 */
+	public static boolean isSubscription(Method method) {
+		Produces produces = (method != null) ? method.getAnnotation(Produces.class) : null;
+		return (produces != null) && Arrays.asList(produces.value()).contains(MediaType.SERVER_SENT_EVENTS);
+	}
+
+	public void subscribe(String owner, SseEventSink sink, Sse sse) {
+		Subscriber subscriber = new Subscriber(owner, sink, sse);
+		if (owner == null) {
+			allOwnerSubscribers.add(subscriber);
+		} else {
+			ownerSubscribers.compute(owner, (key, subscribers) -> { //atomic with prune, so never added to a discarded set
+				if (subscribers == null) subscribers = ConcurrentHashMap.newKeySet();
+				subscribers.add(subscriber);
+				return subscribers;
+			});
+		}
+		logger.fine(() -> "Added event subscriber for "+(owner!=null ? owner : "all owners"));
+	}
+
+	/** Whether anyone is subscribed to this owner's changes (possibly via a subscription to all owners) */
+	public boolean isWatched(String owner) {
+		if (owner == null) return false;
+		if (!allOwnerSubscribers.isEmpty()) return true;
+		Set<Subscriber> subscribers = ownerSubscribers.get(owner);
+		return (subscribers != null) && !subscribers.isEmpty();
+	}
+
+	/** Queues a snapshot of the broker for everyone watching this owner; never blocks on the network */
+	public void publish(String owner, Broker broker, String type) {
+		if ((owner == null) || (broker == null)) return;
+
+		Change change = new Change(sequence.incrementAndGet(), type, broker);
+
+		Set<Subscriber> subscribers = ownerSubscribers.get(owner);
+		if (subscribers != null) {
+			offer(subscribers, owner, change);
+			prune(owner);
+		}
+		offer(allOwnerSubscribers, owner, change);
+	}
+
+	private void offer(Set<Subscriber> subscribers, String owner, Change change) {
+		Iterator<Subscriber> iter = subscribers.iterator();
+		while (iter.hasNext()) {
+			Subscriber subscriber = iter.next();
+			if (subscriber.sink.isClosed()) {
+				iter.remove(); //client went away since the last event
+				logger.fine(() -> "Removed closed event subscriber for "+owner);
+			} else {
+				subscriber.offer(owner, change);
+			}
+		}
+	}
+
+	/** Drops closed subscribers (and owners nobody watches any more), and sends the rest a heartbeat if idle */
+	void sweep() {
+		sweep(allOwnerSubscribers);
+		for (Map.Entry<String, Set<Subscriber>> entry : ownerSubscribers.entrySet()) {
+			sweep(entry.getValue());
+			prune(entry.getKey());
+		}
+	}
+
+	private void sweep(Set<Subscriber> subscribers) {
+		Iterator<Subscriber> iter = subscribers.iterator();
+		while (iter.hasNext()) {
+			Subscriber subscriber = iter.next();
+			if (subscriber.sink.isClosed()) {
+				iter.remove();
+			} else {
+				subscriber.heartbeat();
+			}
+		}
+	}
+
+	/** The number of owners with at least one subscriber of their own */
+	int getWatchedOwnerCount() {
+		return ownerSubscribers.size();
+	}
+
+	private void unsubscribe(Subscriber subscriber) {
+		if (subscriber.owner == null) {
+			allOwnerSubscribers.remove(subscriber);
+		} else {
+			Set<Subscriber> subscribers = ownerSubscribers.get(subscriber.owner);
+			if (subscribers != null) {
+				subscribers.remove(subscriber);
+				prune(subscriber.owner);
+			}
+		}
+	}
+
+	/** Forgets an owner once their last subscriber has gone */
+	private void prune(String owner) {
+		ownerSubscribers.computeIfPresent(owner, (key, subscribers) -> subscribers.isEmpty() ? null : subscribers);
+	}
+
+	private static class Change {
+		private long id;
+		private String type;
+		private Broker broker;
+
+		private Change(long id, String type, Broker broker) {
+			this.id = id;
+			this.type = type;
+			this.broker = broker;
+		}
+	}
+
+	private class Subscriber {
+		private String owner;
+		private SseEventSink sink;
+		private Sse sse;
+		private LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+		private boolean sending = false;
+		private long dropped = 0;
+
+		private Subscriber(String owner, SseEventSink sink, Sse sse) {
+			this.owner = owner;
+			this.sink = sink;
+			this.sse = sse;
+		}
+
+		private void offer(String changedOwner, Change change) {
+			synchronized (this) {
+				pending.remove(changedOwner); //conflate: only the newest snapshot for an owner is worth sending
+				if (pending.size() >= bufferSize) {
+					Iterator<String> oldest = pending.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+					dropped++;
+					logger.fine(() -> "Dropped oldest pending broker event for a slow subscriber ("+dropped+" so far)");
+				}
+				pending.put(changedOwner, change);
+				if (sending) return; //the in-flight send will pick this up when it completes
+				sending = true;
+			}
+			drain();
+		}
+
+		/** Sends a comment if nothing is being sent, so a dead connection fails (and gets unsubscribed) */
+		private void heartbeat() {
+			synchronized (this) {
+				if (sending) return; //a real event is on its way, which will do just as well
+				sending = true;
+			}
+			send(sse.newEventBuilder().comment("heartbeat").build());
+		}
+
+		private void drain() {
+			Change next = null;
+			synchronized (this) {
+				Iterator<Change> iter = pending.values().iterator();
+				if (!iter.hasNext()) {
+					sending = false;
+					return;
+				}
+				next = iter.next();
+				iter.remove();
+			}
+
+			OutboundSseEvent event = sse.newEventBuilder()
+				.id(String.valueOf(next.id))
+				.name(next.type)
+				.mediaType(MediaType.APPLICATION_JSON_TYPE)
+				.data(Broker.class, next.broker)
+				.build();
+			send(event);
+		}
+
+		private void send(OutboundSseEvent event) {
+			sink.send(event).whenComplete((result, failure) -> {
+				if (failure != null) {
+					logger.fine(() -> "Closing event subscriber after failed send: "+failure.getMessage());
+					unsubscribe(this);
+					sink.close();
+				} else {
+					drain();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.EncodedBroker;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+@ApplicationScoped
+/** Remembers the most recent Broker seen for each owner, stamped with a version that changes whenever its
+ *  holdings (or their total value) change.  The holdings from the last few versions are kept too, so that a
+ *  client that already has one of them can be sent just the holdings added, changed or removed since.  A version
+ *  is an opaque token, epoch:counter, where the epoch is random per process; so a version handed out by another
+ *  pod, or before a restart, is never mistaken for one of ours, and gets the full broker.  With an OffHeapStore,
+ *  the holdings of each version live there instead, and only a hash of the latest is kept here to spot changes.
+ */
+public class BrokerCache {
+	private static Logger logger = Logger.getLogger(BrokerCache.class.getName());
+
+	private static int historySize = 8;
+
+	private static final String EPOCH = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+	private AtomicLong versions = new AtomicLong();
+
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private @Inject RevaluationEngine revaluation;
+	private @Inject HoldingsIndex holdings;
+	private @Inject OffHeapStore offHeap;
+	private @Inject CacheSnapshot snapshot;
+
+	static {
+		String size = System.getenv("BROKER_HISTORY_SIZE");
+		if ((size != null) && !size.isEmpty()) try {
+			historySize = Math.max(1, Integer.parseInt(size));
+		} catch (NumberFormatException nfe) {
+			logger.warning("Ignoring invalid BROKER_HISTORY_SIZE: "+size);
+		}
+		logger.info("Broker versions kept per owner: "+historySize);
+	}
+
+	/** Records the latest state of a broker, stamping it with its version, which is bumped only if it changed */
+	public String record(String owner, Broker broker) {
+		return record(owner, broker, true);
+	}
+
+	/** As above, but for a broker whose account fields may not have been looked up (see Projection), or whose
+	 *  Account call failed; such a broker still gets versioned, but isn't kept as the cached copy (nor served,
+	 *  revalued or snapshotted from it), since its account fields are placeholders.
+	 */
+	public String record(String owner, Broker broker, boolean includesAccount) {
+		return record(owner, broker, includesAccount, true);
+	}
+
+	/** Records the cached broker revalued at new prices; the holdings are the same ones as before, so this doesn't
+	 *  count as having seen them again (see getConfirmed)
+	 */
+	public String revalued(String owner, Broker broker) {
+		return record(owner, broker, true, false);
+	}
+
+	private String record(String owner, Broker broker, boolean includesAccount, boolean confirmed) {
+		if ((owner == null) || (broker == null)) return null;
+
+		boolean changed = false;
+		String version = null;
+		Entry entry = entries.computeIfAbsent(owner, key -> {
+			Entry restored = restore(key); //so an unchanged broker keeps the version it had before a restart
+			return (restored != null) ? restored : new Entry();
+		});
+		synchronized (entry) {
+			byte[] encoded = OffHeapStore.isEnabled() ? OffHeapStore.encode(broker.getStocks()) : null;
+			boolean same = (encoded != null) ? (entry.hash == OffHeapStore.hash(encoded)) : Objects.equals(entry.stocks, broker.getStocks());
+			if ((entry.version == null) || (entry.total != broker.getTotal()) || !same) {
+				remember(entry, nextVersion(), broker, encoded);
+				changed = true;
+				String current = entry.version; //the entry may move on before the message is made
+				logger.finer(() -> "Broker for "+owner+" is now at version "+current);
+			}
+			broker.setVersion(entry.version);
+			version = entry.version;
+			if (confirmed) entry.confirmed = System.currentTimeMillis();
+			if (includesAccount) {
+				if (OffHeapStore.isEnabled()) {
+					offHeap.put(owner, broker); //after setting the version, which gets encoded with it
+				} else {
+					entry.broker = broker;
+				}
+			}
+		}
+
+		if (changed && RevaluationEngine.isEnabled()) revaluation.index(owner, broker);
+		if (changed && HoldingsIndex.isEnabled()) holdings.index(owner, broker);
+		return version;
+	}
+
+	/** Forgets a deleted broker, stamping its final snapshot with a new version */
+	public String remove(String owner, Broker broker) {
+		Entry entry = entries.remove(owner);
+		if ((entry != null) && OffHeapStore.isEnabled()) synchronized (entry) {
+			for (String earlier : entry.history.keySet()) offHeap.removeHoldings(earlier);
+		}
+		if (RevaluationEngine.isEnabled()) revaluation.remove(owner);
+		if (HoldingsIndex.isEnabled()) holdings.remove(owner);
+		if (OffHeapStore.isEnabled()) offHeap.remove(owner);
+		if (CacheSnapshot.isEnabled()) snapshot.forget(owner);
+		String version = nextVersion();
+		if (broker != null) broker.setVersion(version);
+		return version;
+	}
+
+	private String nextVersion() {
+		return EPOCH+":"+versions.incrementAndGet();
+	}
+
+	public Broker get(String owner) {
+		Entry entry = lookup(owner);
+		if (entry == null) return null;
+		if (OffHeapStore.isEnabled()) return offHeap.get(owner);
+		synchronized (entry) {
+			return entry.broker;
+		}
+	}
+
+	/** As get, but only if its holdings were last read from Portfolio (or written by a trade through this pod)
+	 *  within maxAgeMillis; revaluing it at new prices doesn't count, since other pods' trades can't be seen that way
+	 */
+	public Broker getConfirmed(String owner, long maxAgeMillis) {
+		Entry entry = lookup(owner);
+		if ((entry == null) || (System.currentTimeMillis() - entry.confirmed > maxAgeMillis)) return null;
+		return get(owner);
+	}
+
+	/** The cached broker as its encoded JSON, if it's recent enough to be served as is (see OffHeapStore) */
+	public EncodedBroker getEncoded(String owner) {
+		return (entries.containsKey(owner) && OffHeapStore.isServingEnabled()) ? offHeap.getEncoded(owner) : null;
+	}
+
+	/** Returns a Broker carrying the current top-level values, but only the holdings that differ from the given
+	 *  earlier version.  If that version is no longer (or never was) known here, the full broker is returned;
+	 *  that includes any version from another pod or process, since its epoch differs from all of ours (other than
+	 *  those restored from our own snapshot, which come with the holdings they were handed out with).
+	 */
+	public Broker delta(Broker current, String since) {
+		String owner = current.getOwner();
+		Entry entry = lookup(owner);
+		if (entry == null) return current;
+
+		JsonObject before = null;
+		synchronized (entry) {
+			if ((since == null) || !entry.history.containsKey(since)) {
+				logger.fine(() -> "Version "+since+" of "+owner+" is unknown, so returning the full broker");
+				return current;
+			}
+			before = entry.history.get(since);
+		}
+		if (OffHeapStore.isEnabled()) {
+			before = offHeap.getHoldings(since);
+			if (before == null) { //its slab has been reused since
+				logger.fine(() -> "Version "+since+" of "+owner+" is no longer stored, so returning the full broker");
+				return current;
+			}
+		}
+		if (before == null) before = JsonValue.EMPTY_JSON_OBJECT;
+		JsonObject after = current.getStocks();
+		if (after == null) after = JsonValue.EMPTY_JSON_OBJECT;
+
+		JsonObjectBuilder changed = Json.createObjectBuilder();
+		for (String symbol : after.keySet()) {
+			JsonValue stock = after.get(symbol);
+			if (!stock.equals(before.get(symbol))) changed.add(symbol, stock);
+		}
+
+		List<String> removed = new ArrayList<String>();
+		for (String symbol : before.keySet()) {
+			if (!after.containsKey(symbol)) removed.add(symbol);
+		}
+
+		Broker delta = new Broker(current);
+		delta.setStocks(changed.build());
+		delta.setRemoved(removed.toArray(new String[removed.size()]));
+		delta.setSince(since);
+		return delta;
+	}
+
+	/** Calls back with each owner's cached broker (the ones whose account fields were looked up), along with when
+	 *  its holdings were last confirmed by Portfolio
+	 */
+	public void forEachCached(CachedBrokerConsumer action) {
+		for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+			String owner = cached.getKey();
+			Broker broker = get(owner);
+			if (broker != null) action.accept(owner, broker, cached.getValue().confirmed);
+		}
+	}
+
+	private Entry lookup(String owner) {
+		Entry entry = entries.get(owner);
+		if ((entry == null) && CacheSnapshot.isEnabled() && (owner != null)) entry = entries.computeIfAbsent(owner, this::restore);
+		return entry;
+	}
+
+	/** An entry for the owner's broker from the last snapshot, if it has one; null otherwise */
+	private Entry restore(String owner) {
+		long confirmed = CacheSnapshot.isEnabled() ? snapshot.getConfirmed(owner) : 0;
+		Broker broker = CacheSnapshot.isEnabled() ? snapshot.restore(owner) : null;
+		if (broker == null) return null;
+
+		Entry entry = new Entry();
+		remember(entry, broker.getVersion(), broker, OffHeapStore.isEnabled() ? OffHeapStore.encode(broker.getStocks()) : null);
+		entry.confirmed = confirmed; //as old as its record in the snapshot, not as new as the restart
+		if (OffHeapStore.isEnabled()) {
+			offHeap.put(owner, broker, confirmed); //so it's only served as is while its record is recent enough
+		} else {
+			entry.broker = broker;
+		}
+		if (RevaluationEngine.isEnabled()) revaluation.index(owner, broker);
+		if (HoldingsIndex.isEnabled()) holdings.index(owner, broker);
+		return entry;
+	}
+
+	/** Makes the broker's holdings the entry's latest, at the given version; encoded is null unless they're off-heap */
+	private void remember(Entry entry, String version, Broker broker, byte[] encoded) {
+		entry.version = version;
+		entry.total = broker.getTotal();
+		if (encoded != null) {
+			entry.hash = OffHeapStore.hash(encoded);
+			offHeap.putHoldings(version, encoded);
+			entry.history.put(version, null);
+		} else {
+			entry.stocks = broker.getStocks();
+			entry.history.put(version, entry.stocks);
+		}
+	}
+
+	/** What forEachCached calls back */
+	@FunctionalInterface
+	public interface CachedBrokerConsumer {
+		void accept(String owner, Broker broker, long confirmed);
+	}
+
+	private class Entry {
+		private Broker broker;
+		private String version;
+		private double total;
+		private JsonObject stocks; //unless off-heap
+		private long hash; //of the encoded holdings, if off-heap
+		private volatile long confirmed; //when the holdings were last read or written through Portfolio, in epoch millis
+		private LinkedHashMap<String, JsonObject> history = new LinkedHashMap<String, JsonObject>() { //values are null if off-heap
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+				boolean full = size() > historySize;
+				if (full && OffHeapStore.isEnabled()) offHeap.removeHoldings(eldest.getKey());
+				return full;
+			}
+		};
+	}
+}
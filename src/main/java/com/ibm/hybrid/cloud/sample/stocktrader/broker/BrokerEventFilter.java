@@ -0,0 +1,114 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+@Provider
+/** Times each call to a broker endpoint as a JFR Operation event (see BrokerEvents), named after its resource method.
+ *  A response with a body is timed until the body has been written, which is also how its size is known.  Server-Sent
+ *  Event subscriptions stay open indefinitely, so they aren't timed.
+ */
+public class BrokerEventFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+	private static final String TIMING = BrokerEventFilter.class.getName()+".timing";
+
+	private @Context ResourceInfo resourceInfo;
+
+	public void filter(ContainerRequestContext request) {
+		Method method = (resourceInfo != null) ? resourceInfo.getResourceMethod() : null;
+		if (!BrokerEvents.isEnabled() || BrokerBroadcaster.isSubscription(method)) return;
+
+		Object event = BrokerEvents.beginOperation();
+		if (event == null) return; //not being recorded
+
+		String endpoint = (method != null) ? method.getName() : request.getMethod()+" "+request.getUriInfo().getPath();
+		request.setProperty(TIMING, new Timing(event, endpoint, request.getUriInfo().getPathParameters().getFirst("owner")));
+	}
+
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+		Timing timing = (Timing) request.getProperty(TIMING);
+		if (timing == null) return;
+
+		timing.status = response.getStatus();
+		if (!response.hasEntity()) { //otherwise aroundWriteTo finishes it
+			request.removeProperty(TIMING);
+			BrokerEvents.endOperation(timing.event, timing.endpoint, timing.owner, timing.status, 0);
+		}
+	}
+
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		Timing timing = (Timing) context.getProperty(TIMING);
+		if (timing == null) {
+			context.proceed();
+			return;
+		}
+
+		context.removeProperty(TIMING);
+		CountingOutputStream counter = new CountingOutputStream(context.getOutputStream());
+		context.setOutputStream(counter);
+		try {
+			context.proceed();
+		} finally {
+			BrokerEvents.endOperation(timing.event, timing.endpoint, timing.owner, timing.status, counter.count);
+		}
+	}
+
+	private static class Timing {
+		private Object event;
+		private String endpoint;
+		private String owner;
+		private int status;
+
+		private Timing(Object event, String endpoint, String owner) {
+			this.event = event;
+			this.endpoint = endpoint;
+			this.owner = owner;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+		}
+	}
+}
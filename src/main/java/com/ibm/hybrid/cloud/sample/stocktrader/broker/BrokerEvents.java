@@ -0,0 +1,70 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+/** Emits the broker's own JDK Flight Recorder events, if JFR_EVENTS_ENABLED is set and the JVM has JFR: one per
+ *  endpoint invocation (see BrokerEventFilter) and per downstream call (see DownstreamEventFilter), each with its
+ *  duration, owner or path, status and payload size, plus one per cache decision or fallback.  They show up in any
+ *  recording that enables them (such as with -XX:StartFlightRecording), under "Stock Trader".  When disabled, or on
+ *  a JVM without JFR, every method here is a single check of a static flag, and the jdk.jfr API is never touched.
+ */
+public class BrokerEvents {
+	private static Logger logger = Logger.getLogger(BrokerEvents.class.getName());
+
+	private static boolean enabled = false;
+
+	static {
+		boolean requested = Boolean.parseBoolean(System.getenv("JFR_EVENTS_ENABLED"));
+		if (requested) try {
+			Class.forName("jdk.jfr.Event");
+			enabled = true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			logger.warning("JFR_EVENTS_ENABLED is set, but this JVM ("+System.getProperty("java.vm.name")+") has no Flight Recorder, so no events will be emitted");
+		}
+		logger.info("JFR events enabled: "+enabled);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Returns a handle to pass to endOperation, or null if nothing is recording operations */
+	public static Object beginOperation() {
+		return enabled ? JfrEvents.beginOperation() : null;
+	}
+
+	public static void endOperation(Object started, String endpoint, String owner, int status, long payloadSize) {
+		if (started != null) JfrEvents.endOperation(started, endpoint, owner, status, payloadSize);
+	}
+
+	/** Returns a handle to pass to endCall, or null if nothing is recording downstream calls */
+	public static Object beginCall() {
+		return enabled ? JfrEvents.beginCall() : null;
+	}
+
+	public static void endCall(Object started, String service, String method, String path, int status, long payloadSize) {
+		if (started != null) JfrEvents.endCall(started, service, method, path, status, payloadSize);
+	}
+
+	/** Records which way a cache went for an owner (null if it's not about one owner), such as hit, miss or fallback */
+	public static void cacheDecision(String cache, String owner, String decision) {
+		if (enabled) JfrEvents.cacheDecision(cache, owner, decision);
+	}
+}
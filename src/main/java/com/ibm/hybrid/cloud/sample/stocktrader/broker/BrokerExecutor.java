@@ -0,0 +1,231 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ContextService;
+import javax.enterprise.concurrent.ManagedExecutorService;
+
+@ApplicationScoped
+/** Decides which threads the broker's blocking work runs on.  By default that's the same as always: resource
+ *  methods run on the Liberty request thread, and extra work goes to the managed executor.  If VIRTUAL_THREADS_ENABLED
+ *  is set and the JVM supports them (Java 21 or later), each request's work and each independent downstream call
+ *  instead gets its own virtual thread, so a request parked on a slow microservice no longer ties up a platform thread.
+ *  The project still compiles for Java 8, so the virtual thread executor is looked up reflectively.  Virtual
+ *  threads aren't managed by Liberty, so work handed to them carries the submitting thread's Java EE context
+ *  (JNDI names such as java:comp, security, class loader), captured by the ContextService, just as managed
+ *  executor tasks do; otherwise @PersistenceContext and @Resource lookups, such as the PortfolioReplica's, fail there.
+ */
+public class BrokerExecutor {
+	private static Logger logger = Logger.getLogger(BrokerExecutor.class.getName());
+
+	private static boolean virtualThreadsRequested = false;
+
+	@Resource
+	private ManagedExecutorService managedExecutor;
+
+	@Resource
+	private ContextService contextService;
+
+	private ExecutorService virtualThreads = null; //null means platform threads
+
+	static {
+		virtualThreadsRequested = Boolean.parseBoolean(System.getenv("VIRTUAL_THREADS_ENABLED"));
+	}
+
+	@PostConstruct
+	private void initialize() {
+		if (virtualThreadsRequested) try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			virtualThreads = (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException nsme) {
+			logger.warning("VIRTUAL_THREADS_ENABLED is set, but Java "+System.getProperty("java.version")+" has no virtual threads, so using platform threads");
+		} catch (Exception e) {
+			logger.warning("Unable to create virtual thread executor, so using platform threads");
+			BrokerService.logException(e);
+		}
+		logger.info("Virtual threads enabled: "+(virtualThreads != null));
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		if (virtualThreads != null) virtualThreads.shutdownNow();
+	}
+
+	public boolean isVirtual() {
+		return virtualThreads != null;
+	}
+
+	/** Runs the work on a virtual thread, if enabled; otherwise runs it right here and returns a completed stage.
+	 *  Either way, a failure completes the stage with the original exception (not wrapped in a CompletionException),
+	 *  so that JAX-RS maps it just as if a resource method had thrown it.
+	 */
+	public <T> CompletionStage<T> supply(Supplier<T> work) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		Runnable task = () -> {
+			try {
+				future.complete(work.get());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		};
+
+		if (virtualThreads != null) try {
+			virtualThreads.execute(withContext(task));
+			return future;
+		} catch (RejectedExecutionException ree) {
+			logger.warning("Virtual thread executor rejected work, so running it on the request thread");
+		}
+		task.run();
+		return future;
+	}
+
+	/** Runs a background task on a virtual thread if enabled, or else on the managed executor */
+	public Future<?> submit(Runnable task) {
+		if (virtualThreads != null) return virtualThreads.submit(withContext(task));
+		if (managedExecutor == null) throw new RejectedExecutionException("No managed executor available");
+		return managedExecutor.submit(task);
+	}
+
+	public TaskScope newScope() {
+		return new TaskScope();
+	}
+
+	/** Captures the submitting thread's context, to be applied around the task wherever it runs.  If there's no
+	 *  ContextService, at least the application's class loader (which the REST client and JSON-B rely on) goes along.
+	 */
+	private Runnable withContext(Runnable task) {
+		if (contextService != null) try {
+			return contextService.createContextualProxy(task, Runnable.class);
+		} catch (RuntimeException e) { //such as IllegalStateException, if this thread has no context to capture
+			logger.warning("Unable to capture thread context for a virtual thread, so only passing on the class loader");
+			BrokerService.logException(e);
+		}
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return () -> {
+			Thread thread = Thread.currentThread();
+			ClassLoader previous = thread.getContextClassLoader();
+			thread.setContextClassLoader(loader);
+			try {
+				task.run();
+			} finally {
+				thread.setContextClassLoader(previous);
+			}
+		};
+	}
+
+	private static RuntimeException unwrap(Throwable cause) {
+		if (cause instanceof RuntimeException) return (RuntimeException) cause;
+		if (cause instanceof Error) throw (Error) cause;
+		return new RuntimeException(cause);
+	}
+
+	/** A group of independent subtasks that should finish (or fail) together, after the pattern of the JDK's
+	 *  StructuredTaskScope.ShutdownOnFailure: fork each one, join, then read the results.  If any subtask fails,
+	 *  join cancels the rest and throws that failure.  With virtual threads disabled, subtasks just run inline as
+	 *  they are forked, one after another, as they always have.
+	 */
+	public class TaskScope implements AutoCloseable {
+		private List<Future<?>> forked = new ArrayList<Future<?>>();
+		private BlockingQueue<Future<?>> finished = new LinkedBlockingQueue<Future<?>>();
+
+		private TaskScope() {
+		}
+
+		/** Starts the subtask; the returned supplier gives its result once join has returned */
+		public <T> Supplier<T> fork(Callable<T> task) {
+			FutureTask<T> future = new FutureTask<T>(task) {
+				protected void done() {
+					finished.add(this);
+				}
+			};
+			forked.add(future);
+
+			boolean started = false;
+			if (virtualThreads != null) try {
+				virtualThreads.execute(withContext(future));
+				started = true;
+			} catch (RejectedExecutionException ree) {
+				logger.warning("Virtual thread executor rejected subtask, so running it inline");
+			}
+			if (!started) future.run();
+
+			return () -> {
+				try {
+					return future.get();
+				} catch (ExecutionException ee) {
+					throw unwrap(ee.getCause());
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new CancellationException("Interrupted while getting subtask result");
+				}
+			};
+		}
+
+		/** Waits for every subtask, throwing the first failure (after cancelling the others) */
+		public void join() {
+			for (int count = 0; count < forked.size(); count++) {
+				Future<?> future = null;
+				try {
+					future = finished.take();
+					if (!future.isCancelled()) future.get();
+				} catch (ExecutionException ee) {
+					close();
+					throw unwrap(ee.getCause());
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new CancellationException("Interrupted while waiting for subtasks");
+				}
+			}
+		}
+
+		/** Cancels any subtasks still running, such as when the caller gives up before joining */
+		public void close() {
+			for (Future<?> future : forked) {
+				if (!future.isDone()) future.cancel(true);
+			}
+		}
+	}
+}
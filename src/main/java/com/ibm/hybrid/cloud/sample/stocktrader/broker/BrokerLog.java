@@ -0,0 +1,207 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+
+@ApplicationScoped
+/** The broker's logging path for things that can happen on every request, such as an optional microservice being
+ *  down.  Messages are only built if their level is loggable, and if LOG_ASYNC_ENABLED is set they're built and
+ *  written on a single background thread, from a queue of up to LOG_ASYNC_QUEUE_SIZE records (any beyond that are
+ *  dropped and counted, rather than making requests wait).  Exceptions are logged as one structured line (event name
+ *  then key=value pairs), with the stack trace at INFO, and if LOG_EXCEPTION_INTERVAL_S is set, only the first
+ *  exception per fingerprint (its types, plus its top few stack frames) per interval is logged; the next one logged
+ *  says how many were suppressed in between.
+ */
+public class BrokerLog {
+	private static Logger logger = Logger.getLogger(BrokerLog.class.getName());
+
+	private static final int FINGERPRINT_FRAMES = 3;
+	private static final int FINGERPRINT_CAUSES = 5;
+	private static final int MAX_FINGERPRINTS = 1000;
+
+	private static boolean async = false;
+	private static int queueSize = 10000;
+	private static int intervalSeconds = 0;
+
+	private static BlockingQueue<Entry> queue = null;
+	private static Thread writer = null;
+	private static AtomicLong dropped = new AtomicLong();
+	private static Map<String, Occurrences> occurrences = new ConcurrentHashMap<String, Occurrences>();
+
+	static {
+		async = Boolean.parseBoolean(System.getenv("LOG_ASYNC_ENABLED"));
+		queueSize = Math.max(1, BrokerService.getIntFromEnv("LOG_ASYNC_QUEUE_SIZE", queueSize));
+		intervalSeconds = Math.max(0, BrokerService.getIntFromEnv("LOG_EXCEPTION_INTERVAL_S", intervalSeconds));
+		if (async) {
+			queue = new ArrayBlockingQueue<Entry>(queueSize);
+			writer = new Thread(BrokerLog::write, "BrokerLog writer");
+			writer.setDaemon(true);
+			writer.setContextClassLoader(BrokerLog.class.getClassLoader());
+			writer.start();
+		}
+		logger.info("Asynchronous logging enabled: "+async+"; exception stack traces "+((intervalSeconds > 0) ? "once per "+intervalSeconds+" seconds per fingerprint" : "always logged"));
+	}
+
+	/** Logs the message, building it (and writing it) on the background thread if LOG_ASYNC_ENABLED is set */
+	public static void log(Logger target, Level level, Supplier<String> message, Throwable thrown) {
+		if (!target.isLoggable(level)) return;
+
+		Entry entry = new Entry(target, level, message, thrown);
+		if (queue == null) {
+			target.log(entry.toRecord());
+		} else if (!queue.offer(entry)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/** Logs a one-line structured event, such as: exception type=java.net.ConnectException message="Connection refused" */
+	public static void event(Logger target, Level level, String name, Object... fields) {
+		log(target, level, () -> format(name, fields), null);
+	}
+
+	/** Logs the exception, unless one with the same fingerprint was already logged within LOG_EXCEPTION_INTERVAL_S */
+	public static void exception(Logger target, Throwable t) {
+		if (intervalSeconds == 0) {
+			event(target, Level.WARNING, "exception", "type", t.getClass().getName(), "message", t.getMessage());
+			log(target, Level.INFO, () -> "Stack trace of "+t.getClass().getName(), t);
+			return;
+		}
+
+		String fingerprint = fingerprint(t);
+		long suppressed = admit(fingerprint);
+		if (suppressed < 0) return;
+
+		event(target, Level.WARNING, "exception", "type", t.getClass().getName(), "message", t.getMessage(), "fingerprint", fingerprint, "suppressed", suppressed);
+		log(target, Level.INFO, () -> "Stack trace for fingerprint "+fingerprint, t);
+	}
+
+	/** The same for the same types of exception thrown from the same place, whatever their messages */
+	private static String fingerprint(Throwable t) {
+		StringBuilder key = new StringBuilder();
+		int depth = 0;
+		for (Throwable cause = t; (cause != null) && (depth < FINGERPRINT_CAUSES); cause = cause.getCause(), depth++) {
+			key.append(cause.getClass().getName()).append(';');
+		}
+		StackTraceElement[] frames = t.getStackTrace();
+		for (int index = 0; (index < frames.length) && (index < FINGERPRINT_FRAMES); index++) {
+			key.append(frames[index]).append(';');
+		}
+		return Integer.toHexString(key.toString().hashCode());
+	}
+
+	/** Returns how many were suppressed since this fingerprint was last logged, or -1 if this one should be suppressed */
+	private static long admit(String fingerprint) {
+		if ((occurrences.size() >= MAX_FINGERPRINTS) && !occurrences.containsKey(fingerprint)) occurrences.clear();
+		Occurrences seen = occurrences.computeIfAbsent(fingerprint, key -> new Occurrences());
+
+		long now = System.nanoTime();
+		synchronized (seen) {
+			if (seen.logged && (now - seen.lastLogged < TimeUnit.SECONDS.toNanos(intervalSeconds))) {
+				seen.suppressed++;
+				return -1;
+			}
+			long suppressed = seen.suppressed;
+			seen.logged = true;
+			seen.lastLogged = now;
+			seen.suppressed = 0;
+			return suppressed;
+		}
+	}
+
+	private static String format(String name, Object[] fields) {
+		StringBuilder line = new StringBuilder(name);
+		for (int index = 0; index + 1 < fields.length; index += 2) {
+			line.append(' ').append(fields[index]).append('=');
+			String value = String.valueOf(fields[index + 1]);
+			if ((fields[index + 1] instanceof String) && (value.isEmpty() || (value.indexOf(' ') >= 0) || (value.indexOf('"') >= 0))) {
+				line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			} else {
+				line.append(value);
+			}
+		}
+		return line.toString();
+	}
+
+	private static void write() {
+		try {
+			while (true) {
+				Entry entry = queue.take();
+				long lost = dropped.getAndSet(0);
+				if (lost > 0) logger.warning("Dropped "+lost+" log records because the queue was full");
+				entry.target.log(entry.toRecord());
+			}
+		} catch (InterruptedException ie) { //shutting down, so write what's left
+			for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) entry.target.log(entry.toRecord());
+		}
+	}
+
+	/** Stops the background thread once the application stops, so it doesn't outlive its class loader */
+	private static void shutdown(@Observes @Destroyed(ApplicationScoped.class) Object context) {
+		if (writer != null) writer.interrupt();
+	}
+
+	private static class Entry {
+		private Logger target;
+		private Level level;
+		private Supplier<String> message;
+		private Throwable thrown;
+		private long millis = System.currentTimeMillis();
+		private int threadID = (int) Thread.currentThread().getId();
+
+		private Entry(Logger target, Level level, Supplier<String> message, Throwable thrown) {
+			this.target = target;
+			this.level = level;
+			this.message = message;
+			this.thrown = thrown;
+		}
+
+		/** The record as of when the entry was made, not when (or on which thread) it's written */
+		private LogRecord toRecord() {
+			LogRecord record = new LogRecord(level, message.get());
+			record.setLoggerName(target.getName());
+			record.setSourceClassName(target.getName()); //rather than walking the stack to find the caller
+			record.setSourceMethodName(null);
+			record.setMillis(millis);
+			record.setThreadID(threadID);
+			record.setThrown(thrown);
+			return record;
+		}
+	}
+
+	private static class Occurrences {
+		private boolean logged = false;
+		private long lastLogged = 0;
+		private long suppressed = 0;
+	}
+}
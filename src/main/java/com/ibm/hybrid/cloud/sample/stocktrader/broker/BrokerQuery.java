@@ -0,0 +1,147 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.BadRequestException;
+
+/** Which brokers GET / should return, and in what order: the sort, order, loyalty, sentiment and limit query
+ *  parameters.  Brokers are offered to a Selection one at a time as they're built; with a sort and a limit, it
+ *  keeps only the best so far in a heap of that size, so the full list is never collected, let alone sorted.
+ */
+public class BrokerQuery {
+	public static final BrokerQuery ALL = new BrokerQuery(null, false, null, null, -1);
+
+	private Comparator<Broker> comparator; //null means portfolio order
+	private boolean needsAccount;
+	private Set<String> loyalties; //null means any
+	private Set<String> sentiments; //null means any
+	private int limit; //negative means no limit
+
+	private BrokerQuery(Comparator<Broker> comparator, boolean needsAccount, Set<String> loyalties, Set<String> sentiments, int limit) {
+		this.comparator = comparator;
+		this.needsAccount = needsAccount;
+		this.loyalties = loyalties;
+		this.sentiments = sentiments;
+		this.limit = limit;
+	}
+
+	public static BrokerQuery parse(String sort, String order, String loyalty, String sentiment, Integer limit) {
+		if ((sort == null) && (order == null) && (loyalty == null) && (sentiment == null) && (limit == null)) return ALL;
+
+		Comparator<Broker> comparator = null;
+		boolean needsAccount = false;
+		if ((sort != null) && !sort.isEmpty()) {
+			switch (sort) {
+				case "total":
+					comparator = Comparator.comparingDouble(Broker::getTotal);
+					break;
+				case "balance":
+					comparator = Comparator.comparingDouble(Broker::getBalance);
+					needsAccount = true;
+					break;
+				case "commissions":
+					comparator = Comparator.comparingDouble(Broker::getCommissions);
+					needsAccount = true;
+					break;
+				default:
+					throw new BadRequestException("Can't sort by "+sort+"; use total, balance or commissions");
+			}
+			if ((order == null) || order.equalsIgnoreCase("desc")) {
+				comparator = comparator.reversed(); //biggest first, as for a leaderboard
+			} else if (!order.equalsIgnoreCase("asc")) {
+				throw new BadRequestException("Unknown order: "+order);
+			}
+			comparator = comparator.thenComparing(Broker::getOwner, Comparator.nullsLast(Comparator.<String>naturalOrder()));
+		}
+
+		Set<String> loyalties = values(loyalty);
+		Set<String> sentiments = values(sentiment);
+		if ((loyalties != null) || (sentiments != null)) needsAccount = true;
+
+		if ((limit != null) && (limit < 0)) throw new BadRequestException("limit can't be negative");
+		return new BrokerQuery(comparator, needsAccount, loyalties, sentiments, (limit != null) ? limit : -1);
+	}
+
+	/** Comma-separated, case-insensitive */
+	private static Set<String> values(String list) {
+		if ((list == null) || list.trim().isEmpty()) return null;
+		Set<String> values = new HashSet<String>();
+		for (String value : list.split(",")) {
+			value = value.trim();
+			if (!value.isEmpty()) values.add(value.toLowerCase());
+		}
+		return values;
+	}
+
+	/** Whether sorting or filtering needs fields from the Account microservice, even if they aren't returned */
+	public boolean needsAccount() {
+		return needsAccount;
+	}
+
+	public boolean matches(Broker broker) {
+		if ((loyalties != null) && ((broker.getLoyalty() == null) || !loyalties.contains(broker.getLoyalty().toLowerCase()))) return false;
+		if ((sentiments != null) && ((broker.getSentiment() == null) || !sentiments.contains(broker.getSentiment().toLowerCase()))) return false;
+		return true;
+	}
+
+	/** Starts a selection from at most candidates brokers, which bounds the heap along with the limit */
+	public Selection select(int candidates) {
+		return new Selection(candidates);
+	}
+
+	/** Collects the matching brokers as they're offered */
+	public class Selection {
+		private List<Broker> list = new ArrayList<Broker>(); //when there's no sort
+		private PriorityQueue<Broker> heap = null; //when there's a sort and a limit; the worst kept broker is at the head
+
+		private Selection(int candidates) { //sized by what can actually be kept, not just by the caller's limit
+			if ((comparator != null) && (limit > 0)) heap = new PriorityQueue<Broker>(Math.max(1, Math.min(limit, candidates)), Collections.reverseOrder(comparator));
+		}
+
+		public void offer(Broker broker) {
+			if ((broker == null) || !matches(broker) || (limit == 0)) return;
+
+			if (heap != null) {
+				if (heap.size() < limit) {
+					heap.add(broker);
+				} else if (comparator.compare(broker, heap.peek()) < 0) { //better than the worst one kept
+					heap.poll();
+					heap.add(broker);
+				}
+			} else if ((comparator != null) || (limit < 0) || (list.size() < limit)) {
+				list.add(broker);
+			}
+		}
+
+		public Broker[] result() {
+			List<Broker> selected = (heap != null) ? new ArrayList<Broker>(heap) : list;
+			if (comparator != null) selected.sort(comparator); //just the kept ones, if there was a limit
+			return selected.toArray(new Broker[selected.size()]);
+		}
+	}
+}
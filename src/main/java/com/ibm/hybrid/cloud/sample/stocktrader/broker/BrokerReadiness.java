@@ -0,0 +1,39 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//mpHealth 3.1
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+@Readiness
+@ApplicationScoped
+/** Reports the broker as not ready until it's finished indexing its cache snapshot (see CacheSnapshot), so that
+ *  Kubernetes doesn't send it traffic while it would still have to go to Portfolio and Account for everything.
+ */
+public class BrokerReadiness implements HealthCheck {
+	private @Inject CacheSnapshot snapshot;
+
+	public HealthCheckResponse call() {
+		return HealthCheckResponse.named("broker-cache").status(snapshot.isLoaded()).build();
+	}
+}
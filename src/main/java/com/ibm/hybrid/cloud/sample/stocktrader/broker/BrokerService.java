@@ -18,22 +18,45 @@ package com.ibm.hybrid.cloud.sample.stocktrader.broker;
 
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.PortfolioClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.StockQuoteClient;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.TradeHistoryClient;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Account;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.BrokerResult;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Dashboard;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Feedback;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.FeedbackTicket;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Holding;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.LatencyStats;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.LimiterStatus;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Quote;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.ReturnsResult;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StockPurchase;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StressResult;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StressScenario;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.WatsonInput;
 
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.net.URI;
+import java.security.Principal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 //Logging (JSR 47)
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 //CDI 2.0
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.enterprise.context.RequestScoped;
 
@@ -49,20 +72,32 @@ import org.eclipse.microprofile.rest.client.inject.RestClient;
 //Servlet 4.0
 import javax.servlet.http.HttpServletRequest;
 
+//JSON-P 1.1 (JSR 374)
+import javax.json.JsonObject;
+
 //JAX-RS 2.1 (JSR 339)
 import javax.ws.rs.core.Application;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.ApplicationPath;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.ForbiddenException;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.Path;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
 @ApplicationPath("/")
 @Path("/")
@@ -76,17 +111,39 @@ public class BrokerService extends Application {
 	private static Logger logger = Logger.getLogger(BrokerService.class.getName());
 
 	private static final double DONT_RECALCULATE = -1.0;
+	private static final String ADMIN_ROLE = "BrokerAdmin";
 
 	private static boolean useAccount = false;
 	private static boolean useS3 = false;
 	private static boolean useCQRS = false;
+	private static boolean reactive = false;
 	private static boolean initialized = false;
 	private static boolean staticInitialized = false;
+	private static int bulkConcurrency = 8;
+	private static int bulkMaxOwners = 500;
 
 	private @Inject @RestClient PortfolioClient portfolioClient;
 	private @Inject @RestClient AccountClient accountClient;
 	private @Inject @RestClient TradeHistoryClient tradeHistoryClient;
 
+	private @Inject BrokerBroadcaster broadcaster;
+	private @Inject BrokerCache cache;
+	private @Inject ReturnsCache returnsCache;
+	private @Inject ReturnsEngine returnsEngine;
+	private @Inject QuoteCache quoteCache;
+	private @Inject StressTester stressTester;
+	private @Inject RevaluationEngine revaluation;
+	private @Inject HoldingsIndex holdingsIndex;
+	private @Inject PortfolioReplica replica;
+	private @Inject FeedbackQueue feedbackQueue;
+	private @Inject FanOut fanOut;
+	private @Inject AccountBatcher accountBatcher;
+	private @Inject BrokerExecutor executor;
+	private @Inject RetryBudget retries;
+	private @Inject IdempotencyCache idempotency;
+	private @Inject LatencySummary latencySummary;
+	private @Inject AccountDirectory directory;
+
 	// Override ODM Client URL if secret is configured to provide URL
 	static {
 		useAccount = Boolean.parseBoolean(System.getenv("ACCOUNT_ENABLED"));
@@ -98,6 +155,13 @@ public class BrokerService extends Application {
 		useCQRS = Boolean.parseBoolean(System.getenv("CQRS_ENABLED"));
 		logger.info("CQRS enabled: " + useCQRS);
 
+		reactive = Boolean.parseBoolean(System.getenv("REACTIVE_ENABLED"));
+		logger.info("Reactive (non-blocking) endpoints enabled: " + reactive);
+
+		bulkConcurrency = getIntFromEnv("BULK_CONCURRENCY", bulkConcurrency);
+		bulkMaxOwners = getIntFromEnv("BULK_MAX_OWNERS", bulkMaxOwners);
+		logger.info("Bulk lookups: up to " + bulkMaxOwners + " owners, " + bulkConcurrency + " at a time");
+
 		String mpUrlPropName = PortfolioClient.class.getName() + "/mp-rest/url";
 		String urlFromEnv = System.getenv("PORTFOLIO_URL");
 		if ((urlFromEnv != null) && !urlFromEnv.isEmpty()) {
@@ -107,6 +171,13 @@ public class BrokerService extends Application {
 			logger.info("Portfolio URL not found from env var from config map, so defaulting to value in jvm.options: " + System.getProperty(mpUrlPropName));
 		}
 
+		String timeoutFromEnv = System.getenv("PORTFOLIO_TIMEOUT_MS");
+		if ((timeoutFromEnv != null) && !timeoutFromEnv.isEmpty()) { //so that a slow Portfolio counts as a failure
+			logger.info("Using Portfolio timeout from config map: " + timeoutFromEnv + " ms");
+			System.setProperty(PortfolioClient.class.getName() + "/mp-rest/connectTimeout", timeoutFromEnv);
+			System.setProperty(PortfolioClient.class.getName() + "/mp-rest/readTimeout", timeoutFromEnv);
+		}
+
 		mpUrlPropName = AccountClient.class.getName() + "/mp-rest/url";
 		urlFromEnv = System.getenv("ACCOUNT_URL");
 		if ((urlFromEnv != null) && !urlFromEnv.isEmpty()) {
@@ -116,6 +187,15 @@ public class BrokerService extends Application {
 			logger.info("Account URL not found from env var from config map, so defaulting to value in jvm.options: " + System.getProperty(mpUrlPropName));
 		}
 
+		mpUrlPropName = StockQuoteClient.class.getName() + "/mp-rest/url";
+		urlFromEnv = System.getenv("STOCK_QUOTE_URL");
+		if ((urlFromEnv != null) && !urlFromEnv.isEmpty()) {
+			logger.info("Using Stock Quote URL from config map: " + urlFromEnv);
+			System.setProperty(mpUrlPropName, urlFromEnv);
+		} else {
+			logger.info("Stock Quote URL not found from env var from config map, so defaulting to value in jvm.options: " + System.getProperty(mpUrlPropName));
+		}
+
 		mpUrlPropName = TradeHistoryClient.class.getName() + "/mp-rest/url";
 		urlFromEnv = System.getenv("TRADE_HISTORY_URL");
 		if ((urlFromEnv != null) && !urlFromEnv.isEmpty()) {
@@ -126,36 +206,84 @@ public class BrokerService extends Application {
 		}
 	}
 
+	@PostConstruct
+	private void initialize() { //so the client filters can clean up after calls that fail without a response
+		portfolioClient = DownstreamCall.wrap(PortfolioClient.class, portfolioClient);
+		accountClient = DownstreamCall.wrap(AccountClient.class, accountClient);
+		tradeHistoryClient = DownstreamCall.wrap(TradeHistoryClient.class, tradeHistoryClient);
+	}
+
 	@GET
 	@Path("/")
 	@Produces(MediaType.APPLICATION_JSON)
 //	@RolesAllowed({"StockTrader", "StockViewer"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Broker[] getBrokers(@Context HttpServletRequest request) {
-		String jwt = request.getHeader("Authorization");
+	public CompletionStage<Broker[]> getBrokers(@QueryParam("fields") String fields, @QueryParam("sort") String sort, @QueryParam("order") String order,
+		@QueryParam("loyalty") String loyalty, @QueryParam("sentiment") String sentiment, @QueryParam("limit") Integer limit, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization"); //read before leaving the request thread
+		Projection projection = Projection.parse(fields);
+		BrokerQuery query = BrokerQuery.parse(sort, order, loyalty, sentiment, limit);
+		if (reactive) return getBrokersAsync(jwt, projection, query);
+		return executor.supply(() -> getBrokers(jwt, projection, query));
+	}
+
+	private Broker[] getBrokers(String jwt, Projection projection, BrokerQuery query) {
+		boolean lookupAccounts = useAccount && (projection.needsAccount() || query.needsAccount());
 
 		if (useCQRS) {
 			logger.info("getBrokers: Placeholder for when CQRS support is added");
 		}
 
-		logger.fine("Calling PortfolioClient.getPortfolios()");
-		Portfolio[] portfolios = portfolioClient.getPortfolios(jwt);
+		Portfolio[] portfolios = null;
+		Account[] accounts = null;
+		try (BrokerExecutor.TaskScope scope = executor.newScope()) { //the two lists don't depend on each other
+			Supplier<Portfolio[]> portfolioTask = scope.fork(() -> {
+				logger.fine("Calling PortfolioClient.getPortfolios()");
+				return readPortfolio(() -> retries.call("getPortfolios", () -> portfolioClient.getPortfolios(jwt)), () -> null, replica::save); //see PortfolioReplica
+			});
+			Supplier<Account[]> accountTask = !lookupAccounts ? null : scope.fork(() -> {
+				try {
+					logger.fine("Calling AccountClient.getAccounts()");
+					return retries.call("getAccounts", () -> accountClient.getAccounts(jwt));
+				} catch (Throwable t) {
+					logException(t);
+					return null;
+				}
+			});
+			scope.join();
+			portfolios = portfolioTask.get();
+			if (accountTask != null) accounts = accountTask.get();
+		}
+
+		return mergeBrokers(portfolios, accounts, projection, query);
+	}
+
+	/** Non-blocking equivalent of getBrokers, with the two lists requested at the same time */
+	private CompletionStage<Broker[]> getBrokersAsync(String jwt, Projection projection, BrokerQuery query) {
+		boolean lookupAccounts = useAccount && (projection.needsAccount() || query.needsAccount());
+
+		logger.fine("Calling PortfolioClient.getPortfoliosAsync()");
+		CompletionStage<Portfolio[]> portfolios = readPortfolioAsync(() -> retries.callAsync("getPortfolios", () -> portfolioClient.getPortfoliosAsync(jwt)), () -> null, replica::save);
 
+		CompletionStage<Account[]> accounts = CompletableFuture.completedFuture(null);
+		if (lookupAccounts) accounts = optional(() -> {
+			logger.fine("Calling AccountClient.getAccountsAsync()");
+			return retries.callAsync("getAccounts", () -> accountClient.getAccountsAsync(jwt));
+		});
+
+		return unwrapped(portfolios.thenCombine(accounts, (portfolioArray, accountArray) ->
+			mergeBrokers(portfolioArray, accountArray, projection, query)));
+	}
+
+	private Broker[] mergeBrokers(Portfolio[] portfolios, Account[] accounts, Projection projection, BrokerQuery query) {
 		int portfolioCount=0;
 		Broker[] brokers = null;
 		if (portfolios!=null) {
 			portfolioCount = portfolios.length;
-			int accountCount=0;
+			int accountCount = (accounts != null) ? accounts.length : 0;
 
-			brokers = new Broker[portfolioCount];
-			Account[] accounts = new Account[portfolioCount];
-
-			if (useAccount) try {
-				logger.fine("Calling AccountClient.getAccounts()");
-				accounts = accountClient.getAccounts(jwt);
-				accountCount = accounts.length;
-			} catch (Throwable t) {
-				logException(t);
-			}
+			BrokerQuery.Selection selection = query.select(portfolioCount); //keeps only what the caller asked for, as it goes
+			directory.preload(portfolios);
+			if (RevaluationEngine.isEnabled()) revaluation.listed(portfolioCount); //each gets indexed as it's recorded below
 
 			//Since the accounts are likely not in the same order as the portfolios, need to match them up
 			//TODO: Consider making both use an "ORDER BY owner", so we don't have to do this
@@ -164,23 +292,28 @@ public class BrokerService extends Application {
 				portfolio = portfolios[outerIndex];
 				String owner = portfolio.getOwner();
 				Account account = null;
+				Broker broker = null;
 				for (int innerIndex=0; innerIndex<accountCount; innerIndex++) {
 					account = accounts[innerIndex];
 					if (owner.equals(account.getOwner())) {
-						brokers[outerIndex] = new Broker(portfolio, account);
-						logger.finer("Found account corresponding to the portfolio for "+owner);
+						broker = new Broker(portfolio, account);
+						logger.finer(() -> "Found account corresponding to the portfolio for "+owner);
 						break;
 					}
 					account = null;
 				}
 				if (account==null) {
-					logger.finer("Did not find account corresponding to the portfolio for "+owner);
-					brokers[outerIndex] = new Broker(portfolio, null);
+					logger.finer(() -> "Did not find account corresponding to the portfolio for "+owner);
+					broker = new Broker(portfolio, null);
 				}
+				if (RevaluationEngine.isEnabled()) broker = revaluation.revalue(broker);
+				cache.record(owner, broker, hasAccount(account));
+				selection.offer(projection.apply(broker));
 			}
+			brokers = selection.result();
 		}
 		
-		logger.fine("Returning "+portfolioCount+" portfolios");
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+((brokers != null) ? brokers.length : 0)+" of "+portfolioCount+" portfolios");
 
 		return brokers;
 	}
@@ -189,10 +322,17 @@ public class BrokerService extends Application {
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 	//	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Broker createBroker(@PathParam("owner") String owner, @Context HttpServletRequest request) {
+	public CompletionStage<Broker> createBroker(@PathParam("owner") String owner, @HeaderParam("Idempotency-Key") String idempotencyKey, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization");
+		return idempotency.execute(caller(request), idempotencyKey, "POST "+owner, () -> {
+			if (reactive) return createBrokerAsync(jwt, owner);
+			return executor.supply(() -> createBroker(jwt, owner));
+		});
+	}
+
+	private Broker createBroker(String jwt, String owner) {
 		Broker broker = null;
 		Portfolio portfolio = null;
-		String jwt = request.getHeader("Authorization");
 
 		Account account = null;
 		String accountID = null;
@@ -207,13 +347,40 @@ public class BrokerService extends Application {
 		logger.fine("Calling PortfolioClient.createPortfolio()");
 		portfolio = portfolioClient.createPortfolio(jwt, owner, accountID);
 
+		return brokerCreated(owner, portfolio, account);
+	}
+
+	/** Non-blocking equivalent of createBroker; the portfolio still has to wait for the account's ID */
+	private CompletionStage<Broker> createBrokerAsync(String jwt, String owner) {
+		CompletionStage<Account> created = CompletableFuture.completedFuture(null);
+		if (useAccount) created = optional(() -> {
+			logger.fine("Calling AccountClient.createAccountAsync()");
+			return accountClient.createAccountAsync(jwt, owner);
+		});
+
+		return unwrapped(created.thenCompose(account -> {
+			String accountID = (account != null) ? account.get_id() : null;
+			logger.fine("Calling PortfolioClient.createPortfolioAsync()");
+			return portfolioClient.createPortfolioAsync(jwt, owner, accountID)
+				.thenApply(portfolio -> brokerCreated(owner, portfolio, account));
+		}));
+	}
+
+	private Broker brokerCreated(String owner, Portfolio portfolio, Account account) {
+		Broker broker = null;
+
 		String answer = "broker";
 		if (portfolio != null) {
 			broker = new Broker(portfolio, account);
+			cache.record(owner, broker, hasAccount(account));
+			directory.record(owner, portfolio);
+			if (ReturnsEngine.isEnabled()) returnsEngine.create(owner);
+			if (PortfolioReplica.isEnabled()) replica.save(portfolio);
+			broadcaster.publish(owner, broker, BrokerBroadcaster.CREATE);
 		} else {
 			answer = "null";
 		}
-		logger.fine("Returning "+answer);
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+answer);
 
 		return broker;
 	}
@@ -222,83 +389,562 @@ public class BrokerService extends Application {
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 //	@RolesAllowed({"StockTrader", "StockViewer"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Broker getBroker(@PathParam("owner") String owner, @Context HttpServletRequest request) {
-		Broker broker = null;
-		Portfolio portfolio = null;
+	public CompletionStage<Broker> getBroker(@PathParam("owner") String owner, @QueryParam("since") String since, @QueryParam("fields") String fields, @Context HttpServletRequest request) {
 		String jwt = request.getHeader("Authorization");
+		Projection projection = Projection.parse(fields);
+		if ((since == null) && projection.isAll()) {
+			Broker encoded = cache.getEncoded(owner); //only if OFFHEAP_MAX_AGE_MS is set
+			if (encoded != null) {
+				logger.fine(() -> "Returning encoded broker for "+owner+" from the off-heap store");
+				BrokerEvents.cacheDecision("offheap", owner, "hit");
+				return CompletableFuture.completedFuture(encoded);
+			}
+		}
+		if (reactive) return unwrapped(loadBrokerAsync(jwt, owner, projection).thenApply(broker -> prepareBroker(broker, since, projection)));
+		return executor.supply(() -> getBroker(jwt, owner, since, projection));
+	}
+
+	private Broker getBroker(String jwt, String owner, String since, Projection projection) {
+		Broker broker = null;
 
 		if (useCQRS) {
 			logger.info("getBroker: Placeholder for when CQRS support is added");
 		}
 
-		logger.fine("Calling PortfolioClient.getPortfolio()");
-		portfolio = portfolioClient.getPortfolio(jwt, owner, false);
+		broker = loadBroker(jwt, owner, projection);
 
+		return prepareBroker(broker, since, projection);
+	}
+
+	/** Trims the broker down to what the caller asked for: the changes since a version, and/or certain fields */
+	private Broker prepareBroker(Broker broker, String since, Projection projection) {
 		String answer = "broker";
+		if (broker!=null) {
+			if (since != null) { //caller already has an earlier version, so just send what changed since then
+				broker = cache.delta(broker, since);
+				if (broker.getSince() != null) answer = "delta";
+			}
+			broker = projection.apply(broker);
+		} else {
+			answer = "null";
+		}
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+answer);
+
+		return broker;
+	}
+
+	@GET
+	@Path("/bulk")
+	@Produces(MediaType.APPLICATION_JSON)
+//	@RolesAllowed({"StockTrader", "StockViewer"}) //Couldn't get this to work; had to do it through the web.xml instead :(
+	public CompletionStage<BrokerResult[]> getBrokersByOwner(@QueryParam("owner") List<String> owners, @QueryParam("fields") String fields, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization");
+		Projection projection = Projection.parse(fields);
+
+		int count = (owners != null) ? owners.size() : 0;
+		if (count > bulkMaxOwners) throw new BadRequestException("At most "+bulkMaxOwners+" owners can be requested at once");
+		if (reactive) return getBrokersByOwnerAsync(jwt, owners, projection);
+		return executor.supply(() -> getBrokersByOwner(jwt, owners, projection));
+	}
+
+	private BrokerResult[] getBrokersByOwner(String jwt, List<String> owners, Projection projection) {
+		int count = (owners != null) ? owners.size() : 0;
+		BrokerResult[] results = new BrokerResult[count];
+		if (count == 0) return results;
+
+		logger.fine(() -> "Looking up "+count+" brokers, "+bulkConcurrency+" at a time");
+		fanOut.run(owners, bulkConcurrency, (index, owner) -> {
+			Broker broker = null;
+			Throwable failure = null;
+			try {
+				broker = loadBroker(jwt, owner, projection);
+			} catch (Throwable t) {
+				failure = t;
+			}
+			results[index] = bulkResult(owner, broker, failure, projection); //each worker owns distinct indexes, so no locking needed
+		});
+
+		return completeBulkResults(owners, results);
+	}
+
+	/** Non-blocking equivalent of getBrokersByOwner, with the same limit on lookups in flight */
+	private CompletionStage<BrokerResult[]> getBrokersByOwnerAsync(String jwt, List<String> owners, Projection projection) {
+		int count = (owners != null) ? owners.size() : 0;
+		BrokerResult[] results = new BrokerResult[count];
+		if (count == 0) return CompletableFuture.completedFuture(results);
+
+		logger.fine(() -> "Looking up "+count+" brokers, "+bulkConcurrency+" at a time");
+		return fanOut.runAsync(owners, bulkConcurrency, (index, owner) ->
+			loadBrokerAsync(jwt, owner, projection).handle((broker, failure) -> {
+				results[index] = bulkResult(owner, broker, failure, projection);
+				return null;
+			})
+		).thenApply(done -> completeBulkResults(owners, results));
+	}
+
+	private BrokerResult bulkResult(String owner, Broker broker, Throwable failure, Projection projection) {
+		BrokerResult result = new BrokerResult(owner);
+		failure = unwrap(failure);
+		if (failure instanceof WebApplicationException) { //such as a 404 from the Portfolio microservice
+			WebApplicationException wae = (WebApplicationException) failure;
+			int status = (wae.getResponse() != null) ? wae.getResponse().getStatus() : 500;
+			result.setStatus(status);
+			result.setError(wae.getMessage());
+		} else if (failure != null) {
+			logException(failure);
+			result.setStatus(500);
+			result.setError(failure.getClass().getName()+": "+failure.getMessage());
+		} else if (broker != null) {
+			result.setStatus(200);
+			result.setBroker(projection.apply(broker));
+		} else {
+			result.setStatus(404);
+		}
+		return result;
+	}
+
+	private BrokerResult[] completeBulkResults(List<String> owners, BrokerResult[] results) {
+		int count = results.length;
+		for (int index=0; index<count; index++) {
+			if (results[index] == null) { //only if the fan-out was interrupted
+				results[index] = new BrokerResult(owners.get(index), 500, null, "Lookup did not complete");
+			}
+		}
+		logger.fine(() -> "Returning "+count+" bulk results");
+
+		return results;
+	}
+
+	/** Gets the portfolio and (if any account fields are wanted) the account for an owner, combining them into a Broker */
+	private Broker loadBroker(String jwt, String owner, Projection projection) {
+		Broker broker = null;
+
+		Broker cached = QuoteCache.isRevalueEnabled() ? cache.getConfirmed(owner, QuoteCache.getRevalueMaxAgeMillis()) : null;
+		if (cached != null) {
+			logger.fine(() -> "Revaluing cached broker for "+owner+" with current stock quotes");
+			BrokerEvents.cacheDecision("revalue", owner, "hit");
+			return revalued(owner, cached, quoteCache.getQuotes(jwt, QuoteCache.symbols(cached)));
+		}
+
+		boolean lookupAccount = useAccount && projection.needsAccount();
+		Prefetch prefetched = lookupAccount ? prefetchAccount(jwt, owner) : null;
+
+		logger.fine("Calling PortfolioClient.getPortfolio()");
+		Portfolio portfolio = null;
+		try {
+			portfolio = readPortfolio(() -> retries.call("getPortfolio", () -> portfolioClient.getPortfolio(jwt, owner, false)), () -> replica.getPortfolio(owner), replica::save);
+		} finally { //including a 404, when there's no account to wait for
+			if (prefetched != null) prefetched.cancelUnlessFor(portfolio);
+		}
+
 		if (portfolio!=null) {
-			String accountID = portfolio.getAccountID();
-			double total = portfolio.getTotal();
 			Account account = null;
-			if (useAccount) try {
-				logger.fine("Calling AccountClient.getAccount()");
-				account = accountClient.getAccount(jwt, accountID, total);
+			if (lookupAccount) try {
+				account = accountFor(jwt, owner, portfolio, prefetched);
 				if (account == null) logger.warning("Account not found for "+owner);
 			} catch (Throwable t) {
 				logException(t);
 			}
-			broker = new Broker(portfolio, account);
-		} else {
-			answer = "null";
+			broker = assembleBroker(owner, portfolio, account);
 		}
-		logger.fine("Returning "+answer);
 
 		return broker;
 	}
+
+	/** Non-blocking equivalent of loadBroker */
+	private CompletionStage<Broker> loadBrokerAsync(String jwt, String owner, Projection projection) {
+		Broker cached = QuoteCache.isRevalueEnabled() ? cache.getConfirmed(owner, QuoteCache.getRevalueMaxAgeMillis()) : null;
+		if (cached != null) {
+			logger.fine(() -> "Revaluing cached broker for "+owner+" with current stock quotes");
+			BrokerEvents.cacheDecision("revalue", owner, "hit");
+			return quoteCache.getQuotesAsync(jwt, QuoteCache.symbols(cached)).thenApply(prices -> revalued(owner, cached, prices));
+		}
+
+		boolean lookupAccount = useAccount && projection.needsAccount();
+		Prefetch prefetched = lookupAccount ? prefetchAccount(jwt, owner) : null;
+
+		logger.fine("Calling PortfolioClient.getPortfolioAsync()");
+		return readPortfolioAsync(() -> retries.callAsync("getPortfolio", () -> portfolioClient.getPortfolioAsync(jwt, owner, false)), () -> replica.getPortfolio(owner), replica::save).whenComplete((portfolio, t) -> {
+			if (prefetched != null) prefetched.cancelUnlessFor(portfolio); //including a 404
+		}).thenCompose(portfolio -> {
+			if (portfolio == null) return CompletableFuture.completedFuture((Broker) null);
+
+			CompletionStage<Account> found = CompletableFuture.completedFuture(null);
+			if (lookupAccount) found = optional(() -> accountForAsync(jwt, owner, portfolio, prefetched));
+
+			return found.thenApply(account -> {
+				if (lookupAccount && (account == null)) logger.warning("Account not found for "+owner);
+				return assembleBroker(owner, portfolio, account);
+			});
+		});
+	}
+
+	/** If the AccountDirectory knows the owner's account, starts looking it up right away (with the portfolio total
+	 *  last seen, for its loyalty level), rather than waiting for the portfolio to say which account it is
+	 */
+	private Prefetch prefetchAccount(String jwt, String owner) {
+		AccountDirectory.Entry known = directory.get(owner);
+		if (known == null) return null;
+		logger.fine(() -> "Calling AccountClient for "+owner+" alongside PortfolioClient, from the account directory");
+		return new Prefetch(known, started(() -> fetchAccountAsync(jwt, known.getAccountID(), known.getTotal())).toCompletableFuture());
+	}
+
+	/** The portfolio's account: the prefetched one if it's the right account at the right total, or else a fresh lookup */
+	private Account accountFor(String jwt, String owner, Portfolio portfolio, Prefetch prefetched) {
+		if ((prefetched != null) && prefetched.isFor(portfolio)) {
+			Account account = null;
+			try {
+				account = prefetched.account.join();
+			} catch (CompletionException ce) { //the same failure a fresh lookup would most likely get
+				Throwable cause = unwrap(ce);
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw ce;
+			}
+			if (isAccountFor(portfolio, account)) return account;
+		}
+		if (prefetched != null) logger.fine(() -> "Account directory entry for "+owner+" is out of date, so looking the account up again");
+		return fetchAccount(jwt, portfolio.getAccountID(), portfolio.getTotal());
+	}
+
+	/** Non-blocking equivalent of accountFor */
+	private CompletionStage<Account> accountForAsync(String jwt, String owner, Portfolio portfolio, Prefetch prefetched) {
+		if (prefetched == null) return fetchAccountAsync(jwt, portfolio.getAccountID(), portfolio.getTotal());
+		CompletionStage<Account> found = prefetched.isFor(portfolio) ? prefetched.account : CompletableFuture.completedFuture(null);
+		return found.thenCompose(account -> {
+			if (isAccountFor(portfolio, account)) return CompletableFuture.completedFuture(account);
+			logger.fine(() -> "Account directory entry for "+owner+" is out of date, so looking the account up again");
+			return fetchAccountAsync(jwt, portfolio.getAccountID(), portfolio.getTotal());
+		});
+	}
+
+	private static boolean isAccountFor(Portfolio portfolio, Account account) {
+		return (account != null) && (portfolio.getAccountID() != null) && portfolio.getAccountID().equals(account.get_id());
+	}
+
+	/** Gets an account (via the AccountBatcher, if enabled), recalculating its loyalty level for the given total */
+	private Account fetchAccount(String jwt, String accountID, double total) {
+		if (AccountBatcher.isEnabled()) return accountBatcher.getAccount(accountID, total);
+		logger.fine("Calling AccountClient.getAccount()");
+		return retries.call("getAccount", () -> accountClient.getAccount(jwt, accountID, total));
+	}
+
+	/** Non-blocking equivalent of fetchAccount */
+	private CompletionStage<Account> fetchAccountAsync(String jwt, String accountID, double total) {
+		if (AccountBatcher.isEnabled()) return accountBatcher.getAccountAsync(accountID, total);
+		logger.fine("Calling AccountClient.getAccountAsync()");
+		return retries.callAsync("getAccount", () -> accountClient.getAccountAsync(jwt, accountID, total));
+	}
+
+	/** Revalues the holdings of a broker cached from this pod's own create, get or update, so only prices (not
+	 *  holdings) need fetching; the version still changes if the totals did.  Once the holdings are older than
+	 *  QUOTE_REVALUE_MAX_AGE_S, Portfolio is asked again, to pick up trades made through other pods.
+	 */
+	private Broker revalued(String owner, Broker cached, Map<String, Quote> prices) {
+		Broker broker = QuoteCache.revalue(cached, prices);
+		cache.revalued(owner, broker);
+		return broker;
+	}
+
+	private Broker assembleBroker(String owner, Portfolio portfolio, Account account) {
+		Broker broker = new Broker(portfolio, account);
+		if (RevaluationEngine.isEnabled()) broker = revaluation.revalue(broker); //prices may have ticked since Portfolio's
+		directory.record(owner, portfolio);
+		cache.record(owner, broker, hasAccount(account));
+		return broker;
+	}
+
+	/** Whether a broker built with this account has real account fields, rather than placeholders from an Account
+	 *  call that wasn't made, failed or found nothing; only such a broker is kept as the cached copy.
+	 */
+	private static boolean hasAccount(Account account) {
+		return (account != null) || !useAccount;
+	}
     
 	@GET
 	@Path("/{owner}/returns")
 	@Produces(MediaType.TEXT_PLAIN)
-	public String getPortfolioReturns(@PathParam("owner") String owner, @Context HttpServletRequest request) {
+	public CompletionStage<String> getPortfolioReturns(@PathParam("owner") String owner, @Context HttpServletRequest request) {
 		String jwt = request.getHeader("Authorization");
+		if (reactive) return getPortfolioReturnsAsync(jwt, owner);
+		return executor.supply(() -> getPortfolioReturns(jwt, owner));
+	}
 
+	private String getPortfolioReturns(String jwt, String owner) {
 		logger.fine("Getting portfolio returns");
 		String result = "Unknown";
-		Portfolio portfolio = portfolioClient.getPortfolio(jwt, owner, true); //throws a 404 exception if not present
-		if (portfolio != null) {
-			Double portfolioValue = portfolio.getTotal();
+		Portfolio portfolio = retries.call("getPortfolio", () -> portfolioClient.getPortfolio(jwt, owner, true)); //throws a 404 exception if not present
+		if (portfolio == null) {
+			logger.warning("Portfolio not found to get returns for "+owner);
+			return result;
+		}
 
-			try {
-				result = tradeHistoryClient.getReturns(jwt, owner, portfolioValue);
-				logger.fine("Got portfolio returns for "+owner);
-			} catch (Throwable t) {
+		try {
+			result = getReturns(jwt, owner, portfolio);
+		} catch (Throwable t) {
+			logger.info("Unable to invoke TradeHistory.  This is an optional microservice and the following exception is expected if it is not deployed");
+			logException(t);
+		}
+		return result;
+	}
+
+	/** The returns for the portfolio, calculated locally or cached if possible, else from TradeHistory */
+	private String getReturns(String jwt, String owner, Portfolio portfolio) {
+		double portfolioValue = portfolio.getTotal();
+		String local = ReturnsEngine.isEnabled() ? returnsEngine.getReturns(owner, portfolioValue, portfolio.getStocks()) : null;
+		if (local != null) {
+			logger.fine(() -> "Calculated portfolio returns locally for "+owner);
+			BrokerEvents.cacheDecision("returns", owner, "local");
+			return local;
+		}
+
+		String cached = returnsCache.get(owner, portfolioValue);
+		if (cached != null) {
+			logger.fine(() -> "Using cached portfolio returns for "+owner);
+			BrokerEvents.cacheDecision("returns", owner, "hit");
+			return cached;
+		}
+
+		BrokerEvents.cacheDecision("returns", owner, "miss");
+		long epoch = returnsCache.epoch();
+		String result = tradeHistoryClient.getReturns(jwt, owner, portfolioValue);
+		returnsCache.put(owner, portfolioValue, result, epoch);
+		logger.fine(() -> "Got portfolio returns for "+owner);
+		return result;
+	}
+
+	/** Non-blocking equivalent of getPortfolioReturns */
+	private CompletionStage<String> getPortfolioReturnsAsync(String jwt, String owner) {
+		logger.fine("Getting portfolio returns");
+		return unwrapped(retries.callAsync("getPortfolio", () -> portfolioClient.getPortfolioAsync(jwt, owner, true)).thenCompose(portfolio -> { //fails with a 404 if not present
+			if (portfolio == null) {
+				logger.warning("Portfolio not found to get returns for "+owner);
+				return CompletableFuture.completedFuture("Unknown");
+			}
+
+			return getReturnsAsync(jwt, owner, portfolio).handle((result, t) -> {
+				if (t == null) return result;
 				logger.info("Unable to invoke TradeHistory.  This is an optional microservice and the following exception is expected if it is not deployed");
 				logException(t);
+				return "Unknown";
+			});
+		}));
+	}
+
+	/** Non-blocking equivalent of getReturns */
+	private CompletionStage<String> getReturnsAsync(String jwt, String owner, Portfolio portfolio) {
+		double portfolioValue = portfolio.getTotal();
+		String local = ReturnsEngine.isEnabled() ? returnsEngine.getReturns(owner, portfolioValue, portfolio.getStocks()) : null;
+		if (local != null) {
+			logger.fine(() -> "Calculated portfolio returns locally for "+owner);
+			BrokerEvents.cacheDecision("returns", owner, "local");
+			return CompletableFuture.completedFuture(local);
+		}
+
+		String cached = returnsCache.get(owner, portfolioValue);
+		if (cached != null) {
+			logger.fine(() -> "Using cached portfolio returns for "+owner);
+			BrokerEvents.cacheDecision("returns", owner, "hit");
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		BrokerEvents.cacheDecision("returns", owner, "miss");
+		long epoch = returnsCache.epoch();
+		return started(() -> tradeHistoryClient.getReturnsAsync(jwt, owner, portfolioValue)).thenApply(result -> {
+			returnsCache.put(owner, portfolioValue, result, epoch);
+			logger.fine(() -> "Got portfolio returns for "+owner);
+			return result;
+		});
+	}
+
+	@GET
+	@Path("/{owner}/dashboard")
+	@Produces(MediaType.APPLICATION_JSON)
+//	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
+	public CompletionStage<Dashboard> getDashboard(@PathParam("owner") String owner, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization");
+		if (reactive) return getDashboardAsync(jwt, owner);
+		return executor.supply(() -> getDashboard(jwt, owner));
+	}
+
+	/** The broker and its returns together, as GET /{owner} and GET /{owner}/returns would give them, but from a
+	 *  single Portfolio call, after which the Account and TradeHistory calls are made at the same time.  If either
+	 *  of those optional microservices fails, the rest is still returned, with that one listed as unavailable.
+	 */
+	private Dashboard getDashboard(String jwt, String owner) {
+		Prefetch prefetched = useAccount ? prefetchAccount(jwt, owner) : null;
+
+		logger.fine("Calling PortfolioClient.getPortfolio() for dashboard");
+		Portfolio portfolio = null;
+		try {
+			portfolio = readPortfolio(() -> retries.call("getPortfolio", () -> portfolioClient.getPortfolio(jwt, owner, false)), () -> replica.getPortfolio(owner), replica::save);
+		} finally { //including a 404, when there's no account to wait for
+			if (prefetched != null) prefetched.cancelUnlessFor(portfolio);
+		}
+		if (portfolio == null) return null;
+
+		try { //the calls run at the same time, even without virtual threads, so only this thread waits on them
+			return dashboardFor(jwt, owner, portfolio, prefetched).toCompletableFuture().join();
+		} catch (CompletionException ce) {
+			Throwable cause = unwrap(ce);
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw ce;
+		}
+	}
+
+	/** Non-blocking equivalent of getDashboard */
+	private CompletionStage<Dashboard> getDashboardAsync(String jwt, String owner) {
+		Prefetch prefetched = useAccount ? prefetchAccount(jwt, owner) : null;
+
+		logger.fine("Calling PortfolioClient.getPortfolioAsync() for dashboard");
+		return unwrapped(readPortfolioAsync(() -> retries.callAsync("getPortfolio", () -> portfolioClient.getPortfolioAsync(jwt, owner, false)), () -> replica.getPortfolio(owner), replica::save).whenComplete((portfolio, t) -> {
+			if (prefetched != null) prefetched.cancelUnlessFor(portfolio); //including a 404
+		}).thenCompose(portfolio -> {
+			if (portfolio == null) return CompletableFuture.completedFuture((Dashboard) null);
+			return dashboardFor(jwt, owner, portfolio, prefetched);
+		}));
+	}
+
+	/** Makes the dashboard's Account and TradeHistory calls at the same time, then assembles it from their results.
+	 *  A failure of either is recorded (and that microservice listed as unavailable) rather than failing the stage.
+	 */
+	private CompletionStage<Dashboard> dashboardFor(String jwt, String owner, Portfolio portfolio, Prefetch prefetched) {
+		Throwable[] failures = new Throwable[2]; //account, returns
+		CompletionStage<Account> account = !useAccount ? CompletableFuture.completedFuture((Account) null) :
+			started(() -> accountForAsync(jwt, owner, portfolio, prefetched)).handle((found, t) -> {
+				failures[0] = t;
+				return found;
+			});
+		CompletionStage<String> returns = started(() -> getReturnsAsync(jwt, owner, portfolio)).handle((result, t) -> {
+			failures[1] = t;
+			return result;
+		});
+
+		return account.thenCombine(returns, (found, result) -> assembleDashboard(owner, portfolio, found, failures[0], result, failures[1]));
+	}
+
+	private Dashboard assembleDashboard(String owner, Portfolio portfolio, Account account, Throwable accountFailure, String returns, Throwable returnsFailure) {
+		List<String> unavailable = new ArrayList<String>();
+		if (accountFailure != null) {
+			logException(accountFailure);
+			unavailable.add("Account");
+		} else if (useAccount && (account == null)) {
+			logger.warning("Account not found for "+owner);
+		}
+		if (returnsFailure != null) {
+			logger.info("Unable to invoke TradeHistory.  This is an optional microservice and the following exception is expected if it is not deployed");
+			logException(returnsFailure);
+			unavailable.add("TradeHistory");
+			returns = "Unknown";
+		}
+
+		Broker broker = assembleBroker(owner, portfolio, account);
+		logger.fine(() -> "Returning dashboard for "+owner+((unavailable.isEmpty()) ? "" : " without "+unavailable));
+		return new Dashboard(owner, broker, returns, unavailable.toArray(new String[unavailable.size()]));
+	}
+
+	@GET
+	@Path("/bulk/returns")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<ReturnsResult[]> getPortfolioReturnsByOwner(@QueryParam("owner") List<String> owners, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization");
+
+		int count = (owners != null) ? owners.size() : 0;
+		if (count > bulkMaxOwners) throw new BadRequestException("At most "+bulkMaxOwners+" owners can be requested at once");
+		if (reactive) return getPortfolioReturnsByOwnerAsync(jwt, owners);
+		return executor.supply(() -> getPortfolioReturnsByOwner(jwt, owners));
+	}
+
+	private ReturnsResult[] getPortfolioReturnsByOwner(String jwt, List<String> owners) {
+		int count = (owners != null) ? owners.size() : 0;
+		ReturnsResult[] results = new ReturnsResult[count];
+		if (count == 0) return results;
+
+		logger.fine(() -> "Getting returns for "+count+" portfolios, "+bulkConcurrency+" at a time");
+		fanOut.run(owners, bulkConcurrency, (index, owner) -> {
+			String returns = null;
+			Throwable failure = null;
+			try {
+				returns = getPortfolioReturns(jwt, owner);
+			} catch (Throwable t) {
+				failure = t;
 			}
+			results[index] = returnsResult(owner, returns, failure);
+		});
+
+		return completeReturnsResults(owners, results);
+	}
+
+	/** Non-blocking equivalent of getPortfolioReturnsByOwner */
+	private CompletionStage<ReturnsResult[]> getPortfolioReturnsByOwnerAsync(String jwt, List<String> owners) {
+		int count = (owners != null) ? owners.size() : 0;
+		ReturnsResult[] results = new ReturnsResult[count];
+		if (count == 0) return CompletableFuture.completedFuture(results);
+
+		logger.fine(() -> "Getting returns for "+count+" portfolios, "+bulkConcurrency+" at a time");
+		return fanOut.runAsync(owners, bulkConcurrency, (index, owner) ->
+			getPortfolioReturnsAsync(jwt, owner).handle((returns, failure) -> {
+				results[index] = returnsResult(owner, returns, failure);
+				return null;
+			})
+		).thenApply(done -> completeReturnsResults(owners, results));
+	}
+
+	private ReturnsResult returnsResult(String owner, String returns, Throwable failure) {
+		ReturnsResult result = new ReturnsResult(owner);
+		failure = unwrap(failure);
+		if (failure instanceof WebApplicationException) { //such as a 404 from the Portfolio microservice
+			WebApplicationException wae = (WebApplicationException) failure;
+			result.setStatus((wae.getResponse() != null) ? wae.getResponse().getStatus() : 500);
+			result.setError(wae.getMessage());
+		} else if (failure != null) {
+			logException(failure);
+			result.setStatus(500);
+			result.setError(failure.getClass().getName()+": "+failure.getMessage());
 		} else {
-			logger.warning("Portfolio not found to get returns for "+owner);
+			result.setStatus(200);
+			result.setReturns(returns);
 		}
 		return result;
 	}
 
+	private ReturnsResult[] completeReturnsResults(List<String> owners, ReturnsResult[] results) {
+		int count = results.length;
+		for (int index=0; index<count; index++) {
+			if (results[index] == null) { //only if the fan-out was interrupted
+				results[index] = new ReturnsResult(owners.get(index), 500, null, "Lookup did not complete");
+			}
+		}
+		logger.fine(() -> "Returning "+count+" bulk returns");
+
+		return results;
+	}
+
 	@PUT
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 //	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Broker updateBroker(@PathParam("owner") String owner, @QueryParam("symbol") String symbol, @QueryParam("shares") int shares, @Context HttpServletRequest request) {
-		Broker broker = null;
+	public CompletionStage<Broker> updateBroker(@PathParam("owner") String owner, @QueryParam("symbol") String symbol, @QueryParam("shares") int shares, @HeaderParam("Idempotency-Key") String idempotencyKey, @Context HttpServletRequest request) {
+		String jwt = request.getHeader("Authorization");
+		return idempotency.execute(caller(request), idempotencyKey, "PUT "+owner+" "+symbol+" "+shares, () -> {
+			if (reactive) return updateBrokerAsync(jwt, owner, symbol, shares);
+			return executor.supply(() -> updateBroker(jwt, owner, symbol, shares));
+		});
+	}
+
+	private Broker updateBroker(String jwt, String owner, String symbol, int shares) {
 		Account account = null;
 		Portfolio portfolio = null;
-		String jwt = request.getHeader("Authorization");
 
 		double commission = 0.0;
 		String accountID = null;
 		if (useAccount) try {
 			logger.fine("Calling PortfolioClient.getPortfolio() to get accountID in updateBroker()");
-			portfolio = portfolioClient.getPortfolio(jwt, owner, false); //throws a 404 if it doesn't exist
+			portfolio = retries.call("getPortfolio", () -> portfolioClient.getPortfolio(jwt, owner, false)); //throws a 404 if it doesn't exist
 			accountID = portfolio.getAccountID();
+			String id = accountID;
 
 			logger.fine("Calling AccountClient.getAccount() to get commission in updateBroker()");
-			account = accountClient.getAccount(jwt, accountID, DONT_RECALCULATE);
+			account = retries.call("getAccount", () -> accountClient.getAccount(jwt, id, DONT_RECALCULATE));
 			commission = account.getNextCommission();
 		} catch (Throwable t) {
 			logException(t);
@@ -307,8 +953,8 @@ public class BrokerService extends Application {
 		logger.fine("Calling PortfolioClient.updatePortfolio()");
 		portfolio = portfolioClient.updatePortfolio(jwt, owner, symbol, shares, commission);
 
-		String answer = "broker";
 		if (portfolio!=null) {
+			if (ReturnsEngine.isEnabled()) recordTrade(owner, symbol, shares, commission, portfolio);
 			double total = portfolio.getTotal();
 			account = null;
 			if (useAccount) try {
@@ -317,11 +963,78 @@ public class BrokerService extends Application {
 			} catch (Throwable t) {
 				logException(t);
 			}
+		}
+
+		return brokerUpdated(owner, portfolio, account);
+	}
+
+	/** Non-blocking equivalent of updateBroker.  Each step still needs the result of the one before it (the
+	 *  account ID, then the commission, then the new total), but no thread waits between them.
+	 */
+	private CompletionStage<Broker> updateBrokerAsync(String jwt, String owner, String symbol, int shares) {
+		CompletionStage<Portfolio> existing = CompletableFuture.completedFuture(null);
+		if (useAccount) existing = optional(() -> {
+			logger.fine("Calling PortfolioClient.getPortfolioAsync() to get accountID in updateBroker()");
+			return retries.callAsync("getPortfolio", () -> portfolioClient.getPortfolioAsync(jwt, owner, false));
+		});
+
+		return unwrapped(existing.thenCompose(current -> {
+			String accountID = (current != null) ? current.getAccountID() : null;
+			CompletionStage<Account> commissionSource = CompletableFuture.completedFuture(null);
+			if (accountID != null) commissionSource = optional(() -> {
+				logger.fine("Calling AccountClient.getAccountAsync() to get commission in updateBroker()");
+				return retries.callAsync("getAccount", () -> accountClient.getAccountAsync(jwt, accountID, DONT_RECALCULATE));
+			});
+
+			return commissionSource.thenCompose(account -> {
+				double commission = (account != null) ? account.getNextCommission() : 0.0;
+				logger.fine("Calling PortfolioClient.updatePortfolioAsync()");
+				return portfolioClient.updatePortfolioAsync(jwt, owner, symbol, shares, commission).thenApply(portfolio -> {
+					if ((portfolio != null) && ReturnsEngine.isEnabled()) recordTrade(owner, symbol, shares, commission, portfolio);
+					return portfolio;
+				});
+			}).thenCompose(portfolio -> {
+				CompletionStage<Account> updated = CompletableFuture.completedFuture(null);
+				if ((portfolio != null) && useAccount) updated = optional(() -> {
+					logger.fine("Calling AccountClient.updateAccountAsync()");
+					return accountClient.updateAccountAsync(jwt, accountID, portfolio.getTotal());
+				});
+				return updated.thenApply(account -> brokerUpdated(owner, portfolio, account));
+			});
+		}));
+	}
+
+	/** Feeds a completed trade to the local returns engine, taking the price it went through at from the updated
+	 *  portfolio; if that can't be found (say, the last of the shares were sold), the owner can no longer be
+	 *  answered locally.
+	 */
+	private void recordTrade(String owner, String symbol, int shares, double commission, Portfolio portfolio) {
+		JsonObject stocks = portfolio.getStocks();
+		JsonObject stock = ((stocks != null) && (symbol != null)) ? stocks.getJsonObject(symbol) : null;
+		if ((stock == null) || (stock.getJsonNumber("price") == null)) {
+			returnsEngine.forget(owner);
+			return;
+		}
+
+		double price = stock.getJsonNumber("price").doubleValue();
+		returnsEngine.record(new StockPurchase(UUID.randomUUID().toString(), owner, symbol, shares, price, Instant.now().toString(), commission));
+	}
+
+	private Broker brokerUpdated(String owner, Portfolio portfolio, Account account) {
+		Broker broker = null;
+
+		String answer = "broker";
+		if (portfolio!=null) {
 			broker = new Broker(portfolio, account);
+			cache.record(owner, broker, hasAccount(account));
+			returnsCache.invalidate(owner); //the trade changed the cost basis
+			directory.record(owner, portfolio);
+			if (PortfolioReplica.isEnabled()) replica.save(portfolio);
+			broadcaster.publish(owner, broker, BrokerBroadcaster.UPDATE);
 		} else {
 			answer = "null";
 		}
-		logger.fine("Returning "+answer);
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+answer);
 
 		return broker;
 	}
@@ -330,60 +1043,360 @@ public class BrokerService extends Application {
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 //	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Broker deleteBroker(@PathParam("owner") String owner, @Context HttpServletRequest request) {
-		Broker broker = null;
-		Portfolio portfolio = null;
+	public CompletionStage<Broker> deleteBroker(@PathParam("owner") String owner, @Context HttpServletRequest request) {
 		String jwt = request.getHeader("Authorization");
+		if (reactive) return deleteBrokerAsync(jwt, owner);
+		return executor.supply(() -> deleteBroker(jwt, owner));
+	}
+
+	private Broker deleteBroker(String jwt, String owner) {
+		Portfolio portfolio = null;
 
 		logger.fine("Calling PortfolioClient.deletePortfolio()");
 		portfolio = portfolioClient.deletePortfolio(jwt, owner);
 
+		Account account = null;
+		if ((portfolio!=null) && useAccount) try {
+			String accountID = portfolio.getAccountID();
+			logger.fine("Calling AccountClient.deleteAccount()");
+			account = accountClient.deleteAccount(jwt, accountID);
+		} catch (Throwable t) {
+			logException(t);
+		}
+
+		return brokerDeleted(owner, portfolio, account);
+	}
+
+	/** Non-blocking equivalent of deleteBroker */
+	private CompletionStage<Broker> deleteBrokerAsync(String jwt, String owner) {
+		logger.fine("Calling PortfolioClient.deletePortfolioAsync()");
+		return unwrapped(portfolioClient.deletePortfolioAsync(jwt, owner).thenCompose(portfolio -> {
+			CompletionStage<Account> deleted = CompletableFuture.completedFuture(null);
+			if ((portfolio != null) && useAccount) deleted = optional(() -> {
+				logger.fine("Calling AccountClient.deleteAccountAsync()");
+				return accountClient.deleteAccountAsync(jwt, portfolio.getAccountID());
+			});
+			return deleted.thenApply(account -> brokerDeleted(owner, portfolio, account));
+		}));
+	}
+
+	private Broker brokerDeleted(String owner, Portfolio portfolio, Account account) {
+		Broker broker = null;
+
 		String answer = "broker";
 		if (portfolio!=null) {
-			Account account = null;
-			if (useAccount) try {
-				String accountID = portfolio.getAccountID();
-				logger.fine("Calling AccountClient.deleteAccount()");
-				account = accountClient.deleteAccount(jwt, accountID);
-			} catch (Throwable t) {
-				logException(t);
-			}
 			broker = new Broker(portfolio, account);
+			cache.remove(owner, broker);
+			directory.remove(owner);
+			returnsCache.invalidate(owner);
+			returnsEngine.forget(owner);
+			if (PortfolioReplica.isEnabled()) replica.delete(owner);
+			broadcaster.publish(owner, broker, BrokerBroadcaster.DELETE);
 		} else {
 			answer = "null";
 		}
-		logger.fine("Returning "+answer);
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+answer);
 
 		return broker; //maybe this method should return void instead?
 	}
 
+	@GET
+	@Path("/{owner}/events")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void getBrokerEvents(@PathParam("owner") String owner, @Context SseEventSink sink, @Context Sse sse) {
+		logger.fine(() -> "Subscribing to broker events for "+owner);
+		broadcaster.subscribe(owner, sink, sse);
+	}
+
+	@GET
+	@Path("/events")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void getAllBrokerEvents(@Context SseEventSink sink, @Context Sse sse, @Context HttpServletRequest request) {
+		if (!request.isUserInRole(ADMIN_ROLE)) { //only admins get to watch every owner's trades
+			logger.warning("Rejecting subscription to all broker events from a caller not in the "+ADMIN_ROLE+" role");
+			throw new ForbiddenException();
+		}
+
+		logger.fine("Subscribing to broker events for all owners");
+		broadcaster.subscribe(null, sink, sse);
+	}
+
+	@POST
+	@Path("/stress")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<StressResult> stressTest(StressScenario scenario, @QueryParam("limit") Integer limit, @Context HttpServletRequest request) {
+		if (!request.isUserInRole(ADMIN_ROLE)) { //this sees every owner's holdings
+			logger.warning("Rejecting stress test from a caller not in the "+ADMIN_ROLE+" role");
+			throw new ForbiddenException();
+		}
+		if (!RevaluationEngine.isEnabled()) { //that's what keeps the book indexed
+			throw EdgeLimitFilter.declined(request, new ServiceUnavailableException("Stress testing requires REVALUATION_ENABLED"));
+		}
+		if ((scenario == null) || (scenario.getShocks() == null)) throw new BadRequestException("No shocks given");
+
+		logger.fine(() -> "Stress testing shocks to "+scenario.getShocks().size()+" symbols");
+		return executor.supply(() -> {
+			StressResult result = stressTester.run(scenario.getShocks(), (limit != null) ? limit : -1);
+			if (result.getPortfolios() == null) {
+				logger.warning("Stress test covered the "+result.getOwners()+" brokers cached here, without a GET / to index every portfolio");
+			}
+			return result;
+		});
+	}
+
+	@GET
+	@Path("/limits")
+	@Produces(MediaType.APPLICATION_JSON)
+	public LimiterStatus[] getLimits(@Context HttpServletRequest request) {
+		if (!request.isUserInRole(ADMIN_ROLE)) {
+			logger.warning("Rejecting request for concurrency limits from a caller not in the "+ADMIN_ROLE+" role");
+			throw new ForbiddenException();
+		}
+
+		List<LimiterStatus> status = ConcurrencyLimiter.getStatus();
+		return status.toArray(new LimiterStatus[status.size()]);
+	}
+
+	@GET
+	@Path("/latency")
+	@Produces(MediaType.APPLICATION_JSON)
+	public LatencyStats[] getLatency(@Context HttpServletRequest request) {
+		if (!request.isUserInRole(ADMIN_ROLE)) {
+			logger.warning("Rejecting request for latency summary from a caller not in the "+ADMIN_ROLE+" role");
+			throw new ForbiddenException();
+		}
+		if (!latencySummary.isRunning()) { //that's what feeds it
+			throw EdgeLimitFilter.declined(request, new ServiceUnavailableException("The latency summary requires JFR_EVENTS_ENABLED, and Java 14 or later"));
+		}
+
+		List<LatencyStats> stats = latencySummary.getStats();
+		return stats.toArray(new LatencyStats[stats.size()]);
+	}
+
+	@GET
+	@Path("/search")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Holding[] searchHoldings(@QueryParam("symbol") String symbol, @QueryParam("limit") Integer limit, @Context HttpServletRequest request) {
+		if (!request.isUserInRole(ADMIN_ROLE)) { //this sees other owners' holdings
+			logger.warning("Rejecting holdings search from a caller not in the "+ADMIN_ROLE+" role");
+			throw new ForbiddenException();
+		}
+		if (!HoldingsIndex.isEnabled()) {
+			throw EdgeLimitFilter.declined(request, new ServiceUnavailableException("Holdings search requires HOLDINGS_INDEX_ENABLED"));
+		}
+		if ((symbol == null) || symbol.isEmpty()) throw new BadRequestException("No symbol given");
+		if ((limit != null) && (limit < 0)) throw new BadRequestException("limit can't be negative");
+
+		logger.fine(() -> "Searching for owners holding "+symbol);
+		return holdingsIndex.search(symbol, (limit != null) ? limit : -1);
+	}
+
 	@POST
 	@Path("/{owner}/feedback")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 //	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Feedback submitFeedback(@PathParam("owner") String owner, WatsonInput input, @Context HttpServletRequest request) {
-		Feedback feedback = null;
+	public CompletionStage<Response> submitFeedback(@PathParam("owner") String owner, WatsonInput input, @Context HttpServletRequest request) {
 		String jwt = request.getHeader("Authorization");
+		if (FeedbackQueue.isEnabled()) {
+			FeedbackTicket ticket = feedbackQueue.submit(jwt, owner, input);
+			if (ticket == null) { //back-pressure: let the caller know to come back later, rather than queueing without limit
+				logger.warning("Feedback queue is full, so rejecting feedback from "+owner);
+				throw EdgeLimitFilter.declined(request, new ServiceUnavailableException(1L));
+			}
+			logger.fine(() -> "Returning ticket "+ticket.getId());
+			URI location = URI.create(request.getRequestURL()+"/"+ticket.getId()); //where to poll for the result
+			return CompletableFuture.completedFuture(Response.accepted(ticket).location(location).build());
+		}
+		if (reactive) {
+			logger.fine("Calling AccountClient.submitFeedbackAsync()");
+			return unwrapped(accountClient.submitFeedbackAsync(jwt, owner, input).thenApply(feedback -> {
+				logger.fine(() -> "Returning "+((feedback==null) ? "null" : "feedback"));
+				return feedbackResponse(feedback);
+			}));
+		}
+		return executor.supply(() -> feedbackResponse(submitFeedback(jwt, owner, input)));
+	}
+
+	private static Response feedbackResponse(Feedback feedback) {
+		return (feedback != null) ? Response.ok(feedback).build() : Response.noContent().build();
+	}
+
+	@GET
+	@Path("/{owner}/feedback/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getFeedback(@PathParam("owner") String owner, @PathParam("id") String id) {
+		FeedbackTicket ticket = FeedbackQueue.isEnabled() ? feedbackQueue.get(owner, id) : null;
+		if (ticket == null) throw new NotFoundException("No feedback "+id+" for "+owner);
+
+		if (FeedbackTicket.DONE.equals(ticket.getStatus())) return feedbackResponse(ticket.getFeedback());
+		if (FeedbackTicket.FAILED.equals(ticket.getStatus())) return Response.status(502).entity(ticket).build();
+		return Response.accepted(ticket).build(); //still queued
+	}
+
+	private Feedback submitFeedback(String jwt, String owner, WatsonInput input) {
+		Feedback feedback = null;
 
 		logger.fine("Calling AccountClient.submitFeedback()");
 		feedback = accountClient.submitFeedback(jwt, owner, input);
 
 		String answer = "feedback";
 		if (feedback==null) answer = "null";
-		logger.fine("Returning "+answer);
+		if (logger.isLoggable(Level.FINE)) logger.fine("Returning "+answer);
 
 		return feedback;
 	}
 
+	/** Who's calling, so that two callers happening to pick the same Idempotency-Key don't see each other's result */
+	private static String caller(HttpServletRequest request) {
+		Principal principal = request.getUserPrincipal();
+		return (principal != null) ? principal.getName() : "";
+	}
+
+	static int getIntFromEnv(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if ((value != null) && !value.isEmpty()) try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException nfe) {
+			logger.warning("Ignoring invalid value for "+name+": "+value);
+		}
+		return defaultValue;
+	}
+
+	/** Starts a call to an optional microservice, whose failure (now or later) is just logged, giving null */
+	private static <T> CompletionStage<T> optional(Supplier<CompletionStage<T>> call) {
+		try {
+			return call.get().exceptionally(t -> {
+				logException(t);
+				return null;
+			});
+		} catch (Throwable t) {
+			logException(t);
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	/** Starts an asynchronous call, turning a failure to even start it into a failed stage */
+	private static <T> CompletionStage<T> started(Supplier<CompletionStage<T>> call) {
+		try {
+			return call.get();
+		} catch (Throwable t) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(t);
+			return failed;
+		}
+	}
+
+	/** Reads from the Portfolio microservice, saving what it returns to the local replica (if enabled), and falling
+	 *  back to the replica if the call fails or times out.  A 4xx, such as a 404 for an unknown owner, is passed on.
+	 */
+	private static <T> T readPortfolio(Supplier<T> call, Supplier<T> replicated, Consumer<T> save) {
+		if (!PortfolioReplica.isEnabled()) return call.get();
+
+		T result = null;
+		try {
+			result = call.get();
+		} catch (RuntimeException e) {
+			T fallback = fromReplica(e, replicated);
+			if (fallback == null) throw e;
+			return fallback;
+		}
+		if (result != null) save.accept(result);
+		return result;
+	}
+
+	/** Non-blocking equivalent of readPortfolio; the replica itself is read on the BrokerExecutor */
+	private <T> CompletionStage<T> readPortfolioAsync(Supplier<CompletionStage<T>> call, Supplier<T> replicated, Consumer<T> save) {
+		if (!PortfolioReplica.isEnabled()) return call.get();
+
+		CompletionStage<T> stage = null;
+		try {
+			stage = call.get();
+		} catch (Throwable t) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(t);
+			stage = failed;
+		}
+		return stage.handle((result, t) -> {
+			if (t == null) {
+				if (result != null) save.accept(result);
+				return CompletableFuture.completedFuture(result);
+			}
+			return executor.supply(() -> {
+				T fallback = fromReplica(t, replicated);
+				if (fallback == null) throw new CompletionException(unwrap(t));
+				return fallback;
+			});
+		}).thenCompose(result -> result);
+	}
+
+	/** The replica's copy after a failed Portfolio call, or null if it's a client error or the replica has nothing */
+	private static <T> T fromReplica(Throwable t, Supplier<T> replicated) {
+		Throwable cause = unwrap(t);
+		if (cause instanceof WebApplicationException) {
+			Response response = ((WebApplicationException) cause).getResponse();
+			if ((response != null) && (response.getStatus() >= 400) && (response.getStatus() < 500)) return null;
+		}
+
+		try {
+			T result = replicated.get();
+			if (result != null) {
+				logger.warning("Portfolio call failed ("+cause.getClass().getName()+"), so serving from the local replica");
+				BrokerEvents.cacheDecision("replica", null, "fallback");
+			}
+			return result;
+		} catch (Throwable rt) { //make it plain the fallback isn't working, rather than just passing on the original failure
+			logger.warning("Portfolio call failed ("+cause.getClass().getName()+"), and so did reading the local replica");
+			logException(rt);
+			return null;
+		}
+	}
+
+	/** Dependent stages wrap a failure in a CompletionException; hand JAX-RS the original instead, so that
+	 *  (for example) a 404 from the Portfolio microservice is mapped just as it is when thrown synchronously.
+	 */
+	private static <T> CompletionStage<T> unwrapped(CompletionStage<T> stage) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		stage.whenComplete((value, t) -> {
+			if (t == null) result.complete(value);
+			else result.completeExceptionally(unwrap(t));
+		});
+		return result;
+	}
+
+	static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException) && (t.getCause() != null)) t = t.getCause();
+		return t;
+	}
+
+	/** Logs the exception (with its stack trace only if the level has been set to at least INFO) via BrokerLog,
+	 *  so that a microservice failing on every request doesn't also flood the log with the same stack trace.
+	 */
 	static void logException(Throwable t) {
-		logger.warning(t.getClass().getName()+": "+t.getMessage());
+		BrokerLog.exception(logger, unwrap(t));
+	}
+
+	/** An account lookup started from an AccountDirectory entry, before the portfolio said which account it is */
+	private static class Prefetch {
+		private final AccountDirectory.Entry known;
+		private final CompletableFuture<Account> account;
+
+		private Prefetch(AccountDirectory.Entry known, CompletableFuture<Account> account) {
+			this.known = known;
+			this.account = account;
+		}
+
+		/** Whether this lookup was for the portfolio's account, at its current total (which the loyalty level depends on) */
+		private boolean isFor(Portfolio portfolio) {
+			return known.getAccountID().equals(portfolio.getAccountID()) && (known.getTotal() == portfolio.getTotal());
+		}
 
-		//only log the stack trace if the level has been set to at least INFO
-		if (logger.isLoggable(Level.INFO)) {
-			StringWriter writer = new StringWriter();
-			t.printStackTrace(new PrintWriter(writer));
-			logger.info(writer.toString());
+		/** Gives up on the lookup if it won't be used, because there's no portfolio (null) or it's for another account
+		 *  or total; the call itself is cancelled too, if the REST Client (or RetryBudget) still has it in flight
+		 */
+		private void cancelUnlessFor(Portfolio portfolio) {
+			if (((portfolio == null) || !isFor(portfolio)) && account.cancel(true)) logger.fine(() -> "Cancelled the prefetched account lookup for "+known.getAccountID());
 		}
 	}
 }
@@ -0,0 +1,307 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//JSON-B 1.0 (JSR 367)
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+@ApplicationScoped
+/** Checkpoints the BrokerCache every CACHE_SNAPSHOT_INTERVAL_S (and at shutdown) to the file named by
+ *  CACHE_SNAPSHOT_FILE, so that a new pod can start warm.  At startup the file is memory-mapped and just the owner
+ *  names in it are read, which takes seconds at most (until then the pod reports itself not ready); each broker is
+ *  only decoded when its owner is first asked about, and keeps its version, so clients' since values stay good.  A
+ *  file written by a different format, or more than CACHE_SNAPSHOT_MAX_AGE_S ago, is ignored, as is any broker in it
+ *  whose holdings were last confirmed by Portfolio longer ago than that (each record keeps its own time, so one
+ *  carried forward unrestored from checkpoint to checkpoint doesn't look any newer for it).  Each cached Broker
+ *  holds both the portfolio and the account, so that covers everything Portfolio and Account would be asked for.
+ *  Any {hostname} in the file name is replaced by the pod's host name, giving each pod of a StatefulSet its own
+ *  file back after a restart; each checkpoint goes to its own temporary file first, so pods sharing one file on a
+ *  shared volume never write over each other's half-written copy (the last one swapped in wins).
+ */
+public class CacheSnapshot {
+	private static Logger logger = Logger.getLogger(CacheSnapshot.class.getName());
+
+	private static final int MAGIC = 0x42524b53; //"BRKS"
+	private static final int FORMAT = 3; //2: versions are pod-qualified strings; 3: each record has its own time
+	private static final int HEADER_SIZE = 24; //magic, format, written, record count
+
+	private static String file = null;
+	private static int intervalSeconds = 60;
+	private static int maxAgeSeconds = 3600;
+
+	private static Jsonb jsonb = JsonbBuilder.create(); //uses BrokerSerializer, which includes the version
+
+	private @Inject BrokerCache cache;
+	private @Inject BrokerExecutor executor;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	private volatile boolean loaded = false;
+	private ByteBuffer snapshot = null; //the mapped file being restored from
+	private Map<String, Record> restorable = new ConcurrentHashMap<String, Record>(); //owner -> where its JSON is
+
+	static {
+		file = System.getenv("CACHE_SNAPSHOT_FILE");
+		if ((file != null) && file.isEmpty()) file = null;
+		String hostname = System.getenv("HOSTNAME");
+		if ((file != null) && (hostname != null)) file = file.replace("{hostname}", hostname);
+		intervalSeconds = Math.max(1, BrokerService.getIntFromEnv("CACHE_SNAPSHOT_INTERVAL_S", intervalSeconds));
+		maxAgeSeconds = BrokerService.getIntFromEnv("CACHE_SNAPSHOT_MAX_AGE_S", maxAgeSeconds);
+		if (file != null) logger.info("Broker cache checkpointed to "+file+" every "+intervalSeconds+" seconds");
+	}
+
+	public static boolean isEnabled() {
+		return file != null;
+	}
+
+	/** Whether the readiness check can pass: either there's no snapshot to restore, or its index has been read */
+	public boolean isLoaded() {
+		return (file == null) || loaded;
+	}
+
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if (file == null) return;
+		executor.submit(() -> {
+			load();
+			loaded = true;
+			if (scheduler != null) try {
+				scheduler.scheduleWithFixedDelay(this::checkpoint, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+			} catch (RejectedExecutionException ree) {
+				logger.warning("Unable to schedule broker cache checkpoints; the cache will only be saved at shutdown");
+			}
+		});
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		if (loaded) checkpoint();
+	}
+
+	/** Maps the snapshot file and indexes where each owner's broker is in it, without decoding any of them */
+	private void load() {
+		Path path = Paths.get(file);
+		if (!Files.exists(path)) {
+			logger.info("No broker cache snapshot at "+file+", so starting cold");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); //stays valid after close
+			if ((mapped.remaining() < HEADER_SIZE) || (mapped.getInt() != MAGIC) || (mapped.getInt() != FORMAT)) {
+				logger.warning("Ignoring broker cache snapshot "+file+", which isn't in format "+FORMAT);
+				return;
+			}
+			long time = mapped.getLong();
+			if ((maxAgeSeconds > 0) && (start - time > maxAgeSeconds * 1000L)) {
+				logger.info("Ignoring broker cache snapshot "+file+" from "+(start - time) / 1000+" seconds ago");
+				return;
+			}
+
+			int count = mapped.getInt();
+			int stale = 0;
+			snapshot = mapped;
+			for (int index = 0; index < count; index++) {
+				String owner = string(mapped);
+				Record record = new Record(mapped.getLong(), mapped.getInt(), mapped.position());
+				mapped.position(mapped.position() + record.length);
+				if (isStale(record.confirmed, start)) {
+					stale++;
+				} else {
+					restorable.put(owner, record);
+				}
+			}
+			int indexed = count - stale;
+			logger.info("Indexed "+indexed+" brokers from snapshot "+file+" in "+(System.currentTimeMillis() - start)+" ms"
+				+((stale > 0) ? " (skipping "+stale+" too old to trust)" : ""));
+		} catch (Exception e) { //such as a truncated file
+			logger.warning("Unable to read broker cache snapshot "+file+", so starting cold");
+			restorable.clear();
+			BrokerService.logException(e);
+		}
+	}
+
+	/** The owner's broker from the snapshot, at most once per owner; null if it wasn't in there (or already restored) */
+	public Broker restore(String owner) {
+		Record record = (owner != null) ? restorable.remove(owner) : null;
+		if (record == null) return null;
+
+		Broker broker = OffHeapStore.decode(read(record));
+		if (broker.getVersion() == null) return null; //never versioned, so nothing to stay consistent with
+		logger.fine(() -> "Restored broker for "+owner+" at version "+broker.getVersion()+" from the snapshot");
+		return broker;
+	}
+
+	/** When the owner's holdings in the snapshot were last confirmed by Portfolio, in epoch millis (so restored
+	 *  brokers aren't taken as fresh); 0 if the owner isn't in it (or has already been restored)
+	 */
+	public long getConfirmed(String owner) {
+		Record record = (owner != null) ? restorable.get(owner) : null;
+		return (record != null) ? record.confirmed : 0;
+	}
+
+	/** So that a deleted broker doesn't come back from the snapshot */
+	public void forget(String owner) {
+		if (owner != null) restorable.remove(owner);
+	}
+
+	/** Writes every cached broker (plus any in the last snapshot not yet restored, unless by now they're too old) to
+	 *  a new file, then swaps it in
+	 */
+	public synchronized void checkpoint() {
+		long start = System.currentTimeMillis();
+		List<byte[]> records = new ArrayList<byte[]>();
+		List<Long> times = new ArrayList<Long>();
+		Set<String> owners = new HashSet<String>();
+		int[] size = new int[] {HEADER_SIZE};
+		cache.forEachCached((owner, broker, confirmed) -> {
+			owners.add(owner);
+			size[0] += add(records, times, owner, confirmed, jsonb.toJson(broker).getBytes(StandardCharsets.UTF_8));
+		});
+		for (Map.Entry<String, Record> entry : restorable.entrySet()) {
+			Record record = entry.getValue();
+			if (owners.contains(entry.getKey()) || isStale(record.confirmed, start)) continue;
+			size[0] += add(records, times, entry.getKey(), record.confirmed, read(record)); //keeps its own time, not ours
+		}
+
+		Path path = Paths.get(file).toAbsolutePath();
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(path.getParent(), path.getFileName()+".", ".tmp"); //unique, even with other pods writing alongside
+		} catch (IOException ioe) {
+			logger.warning("Unable to create a temporary file for broker cache snapshot "+file);
+			BrokerService.logException(ioe);
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size[0]);
+			mapped.putInt(MAGIC);
+			mapped.putInt(FORMAT);
+			mapped.putLong(start);
+			mapped.putInt(records.size() / 2);
+			for (int index = 0; index < records.size(); index += 2) {
+				mapped.putInt(records.get(index).length);
+				mapped.put(records.get(index));
+				mapped.putLong(times.get(index / 2));
+				mapped.putInt(records.get(index + 1).length);
+				mapped.put(records.get(index + 1));
+			}
+			mapped.force();
+		} catch (IOException ioe) {
+			logger.warning("Unable to write broker cache snapshot "+temp);
+			BrokerService.logException(ioe);
+			discard(temp);
+			return;
+		}
+
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.fine(() -> "Checkpointed "+records.size() / 2+" brokers to "+file+" in "+(System.currentTimeMillis() - start)+" ms");
+		} catch (IOException ioe) {
+			logger.warning("Unable to replace broker cache snapshot "+file);
+			BrokerService.logException(ioe);
+			discard(temp);
+		}
+	}
+
+	private static void discard(Path temp) {
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException ioe) {
+			logger.warning("Unable to delete "+temp);
+		}
+	}
+
+	/** Adds the owner, time and JSON of one record, returning the bytes it'll take up */
+	private static int add(List<byte[]> records, List<Long> times, String owner, long confirmed, byte[] json) {
+		byte[] name = owner.getBytes(StandardCharsets.UTF_8);
+		records.add(name);
+		records.add(json);
+		times.add(confirmed);
+		return 16 + name.length + json.length;
+	}
+
+	/** Whether holdings last confirmed at the given time are past CACHE_SNAPSHOT_MAX_AGE_S as of now */
+	private static boolean isStale(long confirmed, long now) {
+		return (maxAgeSeconds > 0) && (now - confirmed > maxAgeSeconds * 1000L);
+	}
+
+	private byte[] read(Record record) {
+		ByteBuffer buffer = snapshot.duplicate(); //its own position, so no locking needed
+		buffer.position(record.offset);
+		byte[] bytes = new byte[record.length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Where one owner's broker is in the mapped snapshot, and when its holdings were last confirmed by Portfolio */
+	private static class Record {
+		private long confirmed;
+		private int length;
+		private int offset;
+
+		private Record(long confirmed, int length, int offset) {
+			this.confirmed = confirmed;
+			this.length = length;
+			this.offset = offset;
+		}
+	}
+}
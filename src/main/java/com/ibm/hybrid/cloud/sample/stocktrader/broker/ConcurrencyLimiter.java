@@ -0,0 +1,152 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.LimiterStatus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+/** An adaptive (AIMD) limit on how many calls can be in flight at once, for the broker's own endpoints (see
+ *  EdgeLimitFilter) or for the calls to one downstream service (see DownstreamLimitFilter).  Each call that
+ *  completes within LIMIT_LATENCY_TARGET_MS while the limit is at least half used nudges the limit up by 1/limit
+ *  (so by about one per limit's worth of calls); a slow, overloaded (429, 503, 504) or never-completed call cuts
+ *  it to LIMIT_BACKOFF_RETAIN_PERCENT of what it was, at most once per latency target.  Calls over the limit are
+ *  rejected straight away.  Reads may only use LIMIT_READ_SHARE_PERCENT of the limit, so under load they're shed
+ *  before writes (trades) are.
+ */
+public class ConcurrencyLimiter {
+	private static Logger logger = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+	private static boolean enabled = false;
+	private static int initialLimit = 20;
+	private static int minLimit = 2;
+	private static int maxLimit = 500;
+	private static int targetMillis = 1000;
+	private static int retainPercent = 90;
+	private static int readSharePercent = 80;
+	private static int leaseMillis = 60000;
+
+	private static Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+	private String name;
+	private double limit = initialLimit;
+	private int inFlight = 0;
+	private long rejectedReads = 0;
+	private long rejectedWrites = 0;
+	private long lastDecrease = 0;
+	private long lastReap = 0;
+	private long nextLease = 0;
+	private Map<Long, Long> leases = new ConcurrentHashMap<Long, Long>(); //lease -> start, in nanos
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("LIMITER_ENABLED"));
+		initialLimit = Math.max(1, BrokerService.getIntFromEnv("LIMIT_INITIAL", initialLimit));
+		minLimit = Math.max(1, BrokerService.getIntFromEnv("LIMIT_MIN", minLimit));
+		maxLimit = Math.max(minLimit, BrokerService.getIntFromEnv("LIMIT_MAX", maxLimit));
+		targetMillis = Math.max(1, BrokerService.getIntFromEnv("LIMIT_LATENCY_TARGET_MS", targetMillis));
+		retainPercent = Math.min(99, Math.max(1, BrokerService.getIntFromEnv("LIMIT_BACKOFF_RETAIN_PERCENT", retainPercent)));
+		readSharePercent = Math.min(100, Math.max(1, BrokerService.getIntFromEnv("LIMIT_READ_SHARE_PERCENT", readSharePercent)));
+		leaseMillis = Math.max(targetMillis, BrokerService.getIntFromEnv("LIMIT_LEASE_MS", leaseMillis));
+		logger.info("Adaptive concurrency limits enabled: "+enabled+" (starting at "+initialLimit+", between "+minLimit+" and "+maxLimit+")");
+	}
+
+	private ConcurrencyLimiter(String name) {
+		this.name = name;
+		this.limit = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static ConcurrencyLimiter get(String name) {
+		return limiters.computeIfAbsent(name, ConcurrencyLimiter::new);
+	}
+
+	public static List<LimiterStatus> getStatus() {
+		List<LimiterStatus> status = new ArrayList<LimiterStatus>();
+		for (ConcurrencyLimiter limiter : limiters.values()) status.add(limiter.status());
+		status.sort((a, b) -> a.getName().compareTo(b.getName()));
+		return status;
+	}
+
+	/** Returns a lease to pass to release, or -1 if the call should be rejected */
+	public long acquire(boolean write) {
+		long now = System.nanoTime();
+		reap(now);
+
+		synchronized (this) {
+			double allowed = write ? limit : limit * readSharePercent / 100.0;
+			if (inFlight >= Math.max(1.0, allowed)) {
+				if (write) rejectedWrites++;
+				else rejectedReads++;
+				return -1;
+			}
+			inFlight++;
+			long lease = nextLease++;
+			leases.put(lease, now);
+			return lease;
+		}
+	}
+
+	/** Ends a call, adjusting the limit based on how long it took and whether it found the callee overloaded */
+	public void release(long lease, boolean overloaded) {
+		Long start = leases.remove(lease);
+		if (start == null) return; //already given up on
+		long now = System.nanoTime();
+		boolean slow = (now - start) > TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		finished(now, overloaded || slow);
+	}
+
+	/** Treats calls that haven't come back within LIMIT_LEASE_MS (say, a lost connection) as overloaded */
+	private void reap(long now) {
+		synchronized (this) {
+			if (now - lastReap < TimeUnit.SECONDS.toNanos(1)) return;
+			lastReap = now;
+		}
+		long cutoff = now - TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		for (Iterator<Map.Entry<Long, Long>> iterator = leases.entrySet().iterator(); iterator.hasNext(); ) {
+			Map.Entry<Long, Long> lease = iterator.next();
+			if ((lease.getValue() < cutoff) && leases.remove(lease.getKey(), lease.getValue())) finished(now, true);
+		}
+	}
+
+	private synchronized void finished(long now, boolean overloaded) {
+		if (overloaded) {
+			if (now - lastDecrease > TimeUnit.MILLISECONDS.toNanos(targetMillis)) { //one cut per round of calls
+				lastDecrease = now;
+				limit = Math.max(minLimit, limit * retainPercent / 100.0);
+				logger.fine(() -> "Concurrency limit for "+name+" cut to "+(int) limit);
+			}
+		} else if (inFlight * 2 >= limit) { //only grow a limit that's actually being used
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+		inFlight--;
+	}
+
+	private synchronized LimiterStatus status() {
+		return new LimiterStatus(name, (int) limit, inFlight, rejectedReads, rejectedWrites);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//mpRestClient 1.3
+import org.eclipse.microprofile.rest.client.ext.AsyncInvocationInterceptor;
+import org.eclipse.microprofile.rest.client.ext.AsyncInvocationInterceptorFactory;
+
+/** One call through a REST Client interface, so that its client filters (such as DownstreamLimitFilter and
+ *  DownstreamEventFilter) can finish what they started even if the call fails without a response, such as a refused
+ *  connection or a timeout, when no response filter runs.  Each injected client gets wrapped (see wrap), and while a
+ *  call is being made, its request filters can add cleanups to current(); if the call then throws, or the
+ *  CompletionStage it returned fails, each cleanup is run with the failure.  A failure can also come after the
+ *  response filters have run (such as a 404 turned into an exception), so cleanups need to check for that.
+ *  The request filters of an Async method may run on another thread than the one that called it, so each client
+ *  also registers Propagator, which the REST Client implementation uses to make the call current on that thread.
+ */
+public class DownstreamCall {
+	private static Logger logger = Logger.getLogger(DownstreamCall.class.getName());
+
+	private static ThreadLocal<DownstreamCall> current = new ThreadLocal<DownstreamCall>();
+
+	private List<Consumer<Throwable>> cleanups = new ArrayList<Consumer<Throwable>>();
+
+	private DownstreamCall() {
+	}
+
+	/** The call being made on this thread, or null if it's not being made through a wrapped client */
+	public static DownstreamCall current() {
+		return current.get();
+	}
+
+	/** Wraps a REST Client so each call through it is a DownstreamCall */
+	@SuppressWarnings("unchecked")
+	public static <T> T wrap(Class<T> type, T client) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			DownstreamCall call = new DownstreamCall();
+			DownstreamCall outer = current.get();
+			current.set(call);
+			Object result = null;
+			try {
+				result = method.invoke(client, args);
+			} catch (InvocationTargetException ite) {
+				call.failed(ite.getCause());
+				throw ite.getCause();
+			} finally {
+				if (outer != null) current.set(outer);
+				else current.remove();
+			}
+			if (result instanceof CompletionStage) ((CompletionStage<?>) result).whenComplete((value, t) -> {
+				if (t != null) call.failed(t);
+			});
+			return result;
+		});
+	}
+
+	/** Carries the current call over to the thread an Async method's request is sent from, if it's another one */
+	public static class Propagator implements AsyncInvocationInterceptorFactory {
+		public AsyncInvocationInterceptor newInterceptor() {
+			return new AsyncInvocationInterceptor() {
+				private DownstreamCall call = null;
+				private DownstreamCall outer = null;
+
+				public void prepareContext() { //on the calling thread
+					call = current.get();
+				}
+
+				public void applyContext() { //on the sending thread
+					outer = current.get();
+					if (call != null) current.set(call);
+				}
+
+				public void removeContext() {
+					if (outer != null) current.set(outer);
+					else current.remove();
+				}
+			};
+		}
+	}
+
+	public synchronized void onFailure(Consumer<Throwable> cleanup) {
+		cleanups.add(cleanup);
+	}
+
+	private void failed(Throwable t) {
+		List<Consumer<Throwable>> toRun = null;
+		synchronized (this) {
+			toRun = new ArrayList<Consumer<Throwable>>(cleanups);
+			cleanups.clear();
+		}
+		for (Consumer<Throwable> cleanup : toRun) try {
+			cleanup.accept(t);
+		} catch (Throwable ct) { //don't let one cleanup hide the original failure, or stop the others
+			logger.warning("Unable to clean up after a failed downstream call");
+			BrokerService.logException(ct);
+		}
+	}
+}
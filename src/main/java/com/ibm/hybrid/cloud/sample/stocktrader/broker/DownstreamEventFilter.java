@@ -0,0 +1,66 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.Method;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+
+/** Registered on the Portfolio, Account, TradeHistory and Stock Quote REST Client interfaces, this times each call
+ *  as a JFR DownstreamCall event (see BrokerEvents), named after the client interface and method where the REST
+ *  Client implementation says which were invoked (or else the host and HTTP method).  The path carries the owner,
+ *  account ID or symbol, and the payload size is the response's Content-Length, if it gave one.  If a call fails without a
+ *  response (such as a timeout), no response filter runs, so its event is ended through its DownstreamCall instead,
+ *  with a status of 0 and an outcome of error.
+ */
+public class DownstreamEventFilter implements ClientRequestFilter, ClientResponseFilter {
+	private static final String EVENT = DownstreamEventFilter.class.getName()+".event";
+	private static final String INVOKED_METHOD = "org.eclipse.microprofile.rest.client.invokedMethod";
+
+	public void filter(ClientRequestContext request) {
+		Object event = BrokerEvents.beginCall();
+		if (event == null) return;
+		request.setProperty(EVENT, event);
+
+		DownstreamCall call = DownstreamCall.current();
+		if (call != null) call.onFailure(t -> end(request, 0, 0));
+	}
+
+	public void filter(ClientRequestContext request, ClientResponseContext response) {
+		end(request, response.getStatus(), Math.max(0, response.getLength()));
+	}
+
+	/** Ends the call's event, if it has one that hasn't been ended already */
+	private static void end(ClientRequestContext request, int status, long payloadSize) {
+		Object event = request.getProperty(EVENT);
+		if (event == null) return;
+		request.removeProperty(EVENT);
+
+		String service = request.getUri().getAuthority();
+		String method = request.getMethod();
+		Object invoked = request.getProperty(INVOKED_METHOD);
+		if (invoked instanceof Method) {
+			service = ((Method) invoked).getDeclaringClass().getSimpleName();
+			method = ((Method) invoked).getName();
+		}
+		BrokerEvents.endCall(event, service, method, request.getUri().getPath(), status, payloadSize);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.Response;
+
+/** Registered on each MicroProfile REST Client interface, this applies a ConcurrencyLimiter per downstream service
+ *  (by host and port), if LIMITER_ENABLED is set.  A call over the limit fails straight away with a 503, just as if
+ *  the service had sent one, so callers handle it the way they already handle an overloaded service (except that it's
+ *  marked, so that RetryBudget doesn't retry it straight back into the same limit; see isShed).  A call that
+ *  fails without a response (such as a timeout) runs no response filter, so it's released through its DownstreamCall
+ *  instead, as an overloaded one; anything that still slips through is reclaimed by the limiter after a while.
+ */
+public class DownstreamLimitFilter implements ClientRequestFilter, ClientResponseFilter {
+	private static Logger logger = Logger.getLogger(DownstreamLimitFilter.class.getName());
+
+	private static final String LEASE = DownstreamLimitFilter.class.getName()+".lease";
+	private static final String SHED = "X-Broker-Shed"; //only ever on the local 503, which never goes over the wire
+
+	public void filter(ClientRequestContext request) {
+		if (!ConcurrencyLimiter.isEnabled()) return;
+
+		boolean write = !HttpMethod.GET.equals(request.getMethod());
+		long lease = limiter(request).acquire(write);
+		if (lease < 0) {
+			logger.fine(() -> "Not calling "+request.getUri()+"; over the concurrency limit for "+request.getUri().getAuthority());
+			request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE).header(SHED, "true").build());
+			return;
+		}
+		request.setProperty(LEASE, lease);
+
+		DownstreamCall call = DownstreamCall.current();
+		if (call != null) call.onFailure(t -> release(request, true));
+	}
+
+	public void filter(ClientRequestContext request, ClientResponseContext response) {
+		int status = response.getStatus();
+		release(request, (status == 429) || (status == 503) || (status == 504));
+	}
+
+	/** Whether the response is the 503 given in place of a call over the limit, rather than one from the service */
+	public static boolean isShed(Response response) {
+		return (response != null) && (response.getHeaderString(SHED) != null);
+	}
+
+	/** Releases the call's lease, if it has one that hasn't been released already */
+	private static void release(ClientRequestContext request, boolean overloaded) {
+		Object lease = request.getProperty(LEASE);
+		if (lease == null) return;
+		request.removeProperty(LEASE);
+		limiter(request).release((Long) lease, overloaded);
+	}
+
+	private static ConcurrencyLimiter limiter(ClientRequestContext request) {
+		return ConcurrencyLimiter.get("downstream:"+request.getUri().getAuthority());
+	}
+}
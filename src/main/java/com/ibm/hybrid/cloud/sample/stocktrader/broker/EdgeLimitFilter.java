@@ -0,0 +1,79 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.Method;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//Servlet 4.0
+import javax.servlet.http.HttpServletRequest;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+@Provider
+/** Applies the "broker" ConcurrencyLimiter to every request, if LIMITER_ENABLED is set: a request over the limit
+ *  gets an immediate 503 with Retry-After, rather than waiting its turn in Liberty's queue while everyone's latency
+ *  grows.  GETs are reads; anything else is a write.  Server-Sent Event subscriptions stay open indefinitely, so
+ *  they aren't counted.  A 503 counts as overload unless the broker chose to send it (see declined).
+ */
+public class EdgeLimitFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	private static Logger logger = Logger.getLogger(EdgeLimitFilter.class.getName());
+
+	private static final String LEASE = EdgeLimitFilter.class.getName()+".lease";
+	private static final String DECLINED = EdgeLimitFilter.class.getName()+".declined";
+
+	private @Context ResourceInfo resourceInfo;
+
+	public void filter(ContainerRequestContext request) {
+		Method method = (resourceInfo != null) ? resourceInfo.getResourceMethod() : null;
+		if (!ConcurrencyLimiter.isEnabled() || BrokerBroadcaster.isSubscription(method)) return;
+
+		boolean write = !HttpMethod.GET.equals(request.getMethod());
+		long lease = ConcurrencyLimiter.get("broker").acquire(write);
+		if (lease < 0) {
+			logger.fine(() -> "Shedding "+request.getMethod()+" of "+request.getUriInfo().getPath()+"; over the concurrency limit");
+			request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "1").build());
+			return;
+		}
+		request.setProperty(LEASE, lease);
+	}
+
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+		Object lease = request.getProperty(LEASE);
+		if (lease != null) ConcurrencyLimiter.get("broker").release((Long) lease, (response.getStatus() == 503) && (request.getProperty(DECLINED) == null));
+	}
+
+	/** Marks a 503 as one the broker chose to send (a feature that's turned off, or a full queue), which says nothing
+	 *  about how loaded it is; request properties are the servlet request's attributes, so the filter sees the mark.
+	 */
+	public static ServiceUnavailableException declined(HttpServletRequest request, ServiceUnavailableException exception) {
+		request.setAttribute(DECLINED, Boolean.TRUE);
+		return exception;
+	}
+}
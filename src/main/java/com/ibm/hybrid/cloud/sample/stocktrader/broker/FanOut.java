@@ -0,0 +1,116 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+@ApplicationScoped
+/** Runs a task over each item in a list, with at most a given number in flight at once.  Rather than queueing
+ *  a task per item, a few workers (the calling thread being one of them) each keep claiming the next index until
+ *  the list is exhausted, so each result can be stored in its original position the moment it completes.
+ */
+public class FanOut {
+	private static Logger logger = Logger.getLogger(FanOut.class.getName());
+
+	private @Inject BrokerExecutor executor; //virtual threads, if enabled, else the managed executor
+
+	/** Work to do for the item at a given position; it should handle its own failures */
+	public interface Task<T> {
+		void run(int index, T item);
+	}
+
+	/** Asynchronous work for the item at a given position; failures of the returned stage are just logged */
+	public interface AsyncTask<T> {
+		CompletionStage<?> run(int index, T item);
+	}
+
+	/** Returns once the task has been run for every item */
+	public <T> void run(List<T> items, int concurrency, Task<T> task) {
+		int size = items.size();
+		int workers = Math.min(Math.max(1, concurrency), size);
+		AtomicInteger next = new AtomicInteger();
+
+		Runnable worker = () -> {
+			for (int index = next.getAndIncrement(); index < size; index = next.getAndIncrement()) {
+				task.run(index, items.get(index));
+			}
+		};
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int count = 1; count < workers; count++) futures.add(executor.submit(worker));
+		} catch (RejectedExecutionException ree) {
+			logger.warning("Executor is saturated, so running the rest of this fan-out with fewer workers");
+		}
+		worker.run(); //the calling thread takes its share rather than just waiting
+
+		for (Future<?> future : futures) try {
+			future.get();
+		} catch (ExecutionException ee) {
+			BrokerService.logException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.warning("Interrupted while waiting for a fan-out to complete");
+			break;
+		}
+	}
+
+	/** Like run, but without tying up any threads: each of the chains starts the next item when its current one
+	 *  completes, and the returned stage completes once every item's stage has.
+	 */
+	public <T> CompletionStage<Void> runAsync(List<T> items, int concurrency, AsyncTask<T> task) {
+		int size = items.size();
+		int chains = Math.min(Math.max(1, concurrency), size);
+		AtomicInteger next = new AtomicInteger();
+
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[chains];
+		for (int chain = 0; chain < chains; chain++) futures[chain] = runNext(items, next, task);
+		return CompletableFuture.allOf(futures);
+	}
+
+	private <T> CompletableFuture<Void> runNext(List<T> items, AtomicInteger next, AsyncTask<T> task) {
+		int index = next.getAndIncrement();
+		if (index >= items.size()) return CompletableFuture.completedFuture(null);
+
+		CompletionStage<?> stage = null;
+		try {
+			stage = task.run(index, items.get(index));
+		} catch (Throwable t) {
+			BrokerService.logException(t);
+		}
+		if (stage == null) stage = CompletableFuture.completedFuture(null);
+
+		return stage.handle((result, t) -> {
+			if (t != null) BrokerService.logException(t);
+			return null;
+		}).thenCompose(ignored -> runNext(items, next, task)).toCompletableFuture();
+	}
+}
@@ -0,0 +1,204 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Feedback;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.FeedbackTicket;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.WatsonInput;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+//mpRestClient 1.3
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+@ApplicationScoped
+/** Takes feedback submissions off the request path: each one is queued (up to FEEDBACK_QUEUE_SIZE of them, beyond which
+ *  callers are told to retry later) and the caller gets a ticket to poll.  FEEDBACK_WORKERS workers each take up to
+ *  FEEDBACK_BATCH_SIZE submissions at a time and send them to Account together, waiting for the whole batch before
+ *  taking more, so no more than workers times batch size are ever in flight.  Finished tickets are kept for
+ *  FEEDBACK_TICKET_TTL_S (swept by the workers as they poll, and on each submit and get, so they go even when idle).
+ *  Tickets and queued submissions only live in this pod's memory: polling another pod gets a 404, a restart loses
+ *  them, and a submission carries its caller's JWT, which may have expired by the time a long queue reaches it.
+ */
+public class FeedbackQueue {
+	private static Logger logger = Logger.getLogger(FeedbackQueue.class.getName());
+
+	private static boolean enabled = false;
+	private static int queueSize = 1000;
+	private static int workers = 2;
+	private static int batchSize = 10;
+	private static int ticketSeconds = 600;
+
+	private @Inject @RestClient AccountClient accountClient;
+	private @Inject BrokerExecutor executor;
+
+	private BlockingQueue<Submission> queue = null;
+	private Map<String, Submission> tickets = new ConcurrentHashMap<String, Submission>();
+	private ConcurrentLinkedQueue<Submission> finished = new ConcurrentLinkedQueue<Submission>(); //in the order they finished
+	private volatile boolean running = false;
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("FEEDBACK_ASYNC_ENABLED"));
+		queueSize = Math.max(1, BrokerService.getIntFromEnv("FEEDBACK_QUEUE_SIZE", queueSize));
+		workers = Math.max(1, BrokerService.getIntFromEnv("FEEDBACK_WORKERS", workers));
+		batchSize = Math.max(1, BrokerService.getIntFromEnv("FEEDBACK_BATCH_SIZE", batchSize));
+		ticketSeconds = BrokerService.getIntFromEnv("FEEDBACK_TICKET_TTL_S", ticketSeconds);
+		logger.info("Asynchronous feedback enabled: "+enabled+" (queue of "+queueSize+", "+workers+" workers, batches of "+batchSize+")");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	@PostConstruct
+	private void initialize() { //see DownstreamCall
+		accountClient = DownstreamCall.wrap(AccountClient.class, accountClient);
+	}
+
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if (!enabled) return;
+		queue = new ArrayBlockingQueue<Submission>(queueSize);
+		running = true;
+		for (int worker = 0; worker < workers; worker++) executor.submit(this::work);
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		running = false;
+	}
+
+	/** Queues a submission, returning its ticket, or null if the queue is full */
+	public FeedbackTicket submit(String jwt, String owner, WatsonInput input) {
+		expire();
+		Submission submission = new Submission(jwt, input, new FeedbackTicket(UUID.randomUUID().toString(), owner));
+		if ((queue == null) || !queue.offer(submission)) return null;
+		tickets.put(submission.ticket.getId(), submission);
+		logger.fine(() -> "Queued feedback "+submission.ticket.getId()+" from "+owner+"; "+queue.size()+" waiting");
+		return submission.ticket;
+	}
+
+	/** A copy of the owner's ticket with that id, or null if there isn't one */
+	public FeedbackTicket get(String owner, String id) {
+		expire();
+		Submission submission = (id != null) ? tickets.get(id) : null;
+		if ((submission == null) || !submission.ticket.getOwner().equals(owner)) return null;
+
+		FeedbackTicket ticket = submission.ticket;
+		synchronized (ticket) {
+			FeedbackTicket copy = new FeedbackTicket(ticket.getId(), ticket.getOwner());
+			copy.setStatus(ticket.getStatus());
+			copy.setFeedback(ticket.getFeedback());
+			copy.setError(ticket.getError());
+			return copy;
+		}
+	}
+
+	private void work() {
+		List<Submission> batch = new ArrayList<Submission>(batchSize);
+		while (running) try {
+			expire();
+			Submission first = queue.poll(1, TimeUnit.SECONDS); //so the worker notices when it's time to stop
+			if (first == null) continue;
+			batch.add(first);
+			queue.drainTo(batch, batchSize - 1);
+
+			List<CompletableFuture<?>> calls = new ArrayList<CompletableFuture<?>>(batch.size());
+			for (Submission submission : batch) calls.add(send(submission).toCompletableFuture());
+			CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join(); //send never fails
+			logger.fine(() -> "Sent a batch of "+batch.size()+" feedback submissions");
+			batch.clear();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (Throwable t) { //keep the worker going
+			BrokerService.logException(t);
+			batch.clear();
+		}
+	}
+
+	private CompletionStage<Void> send(Submission submission) {
+		FeedbackTicket ticket = submission.ticket;
+		CompletionStage<Feedback> call = null;
+		try {
+			call = accountClient.submitFeedbackAsync(submission.jwt, ticket.getOwner(), submission.input);
+		} catch (Throwable t) {
+			CompletableFuture<Feedback> failed = new CompletableFuture<Feedback>();
+			failed.completeExceptionally(t);
+			call = failed;
+		}
+
+		return call.handle((feedback, t) -> {
+			synchronized (ticket) {
+				if (t != null) {
+					BrokerService.logException(t);
+					ticket.setError(t.getClass().getName()+": "+t.getMessage());
+					ticket.setStatus(FeedbackTicket.FAILED);
+				} else {
+					ticket.setFeedback(feedback);
+					ticket.setStatus(FeedbackTicket.DONE);
+				}
+			}
+			submission.jwt = null; //no need to hang on to the caller's credentials
+			submission.finished = System.currentTimeMillis();
+			finished.add(submission);
+			return null;
+		});
+	}
+
+	/** Drops finished tickets older than FEEDBACK_TICKET_TTL_S, from the oldest, so only expired ones are looked at */
+	private void expire() {
+		long cutoff = System.currentTimeMillis() - ticketSeconds * 1000L;
+		for (Submission oldest = finished.peek(); (oldest != null) && (oldest.finished < cutoff); oldest = finished.peek()) {
+			if (finished.remove(oldest)) tickets.remove(oldest.ticket.getId());
+		}
+	}
+
+	private static class Submission {
+		private String jwt;
+		private WatsonInput input;
+		private FeedbackTicket ticket;
+		private volatile long finished = 0;
+
+		private Submission(String jwt, WatsonInput input, FeedbackTicket ticket) {
+			this.jwt = jwt;
+			this.input = input;
+			this.ticket = ticket;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Holding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.JsonObject;
+
+@ApplicationScoped
+/** Maps each symbol to the owners holding it (and how many shares each has), so that "who holds IBM?" can be
+ *  answered without going through every broker.  BrokerCache keeps it up to date whenever a broker's holdings
+ *  change or it gets deleted, and only the symbols that owner held before or holds now get touched.  Like the
+ *  cache, it only knows about brokers this pod has seen.
+ */
+public class HoldingsIndex {
+	private static Logger logger = Logger.getLogger(HoldingsIndex.class.getName());
+
+	private static boolean enabled = false;
+
+	private static final Comparator<Map.Entry<String, Integer>> MOST_SHARES_FIRST = (a, b) -> {
+		int bySize = Integer.compare(b.getValue(), a.getValue());
+		return (bySize != 0) ? bySize : a.getKey().compareTo(b.getKey());
+	};
+
+	private Map<String, Map<String, Integer>> bySymbol = new ConcurrentHashMap<String, Map<String, Integer>>();
+	private Map<String, Map<String, Integer>> byOwner = new ConcurrentHashMap<String, Map<String, Integer>>();
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("HOLDINGS_INDEX_ENABLED"));
+		logger.info("Holdings index enabled: "+enabled);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Brings the owner's entries in line with the broker's current holdings */
+	public void index(String owner, Broker broker) {
+		if ((owner == null) || (broker == null)) return;
+		JsonObject stocks = broker.getStocks();
+
+		Map<String, Integer> current = new ConcurrentHashMap<String, Integer>();
+		if (stocks != null) for (String symbol : stocks.keySet()) {
+			int shares = stocks.getJsonObject(symbol).getInt("shares", 0);
+			if (shares > 0) current.put(symbol, shares);
+		}
+
+		synchronized (this) { //so that two updates of the same owner can't interleave
+			Map<String, Integer> previous = byOwner.put(owner, current);
+			if (previous != null) for (String symbol : previous.keySet()) {
+				if (!current.containsKey(symbol)) unindex(symbol, owner);
+			}
+			for (Map.Entry<String, Integer> entry : current.entrySet()) {
+				if ((previous == null) || !entry.getValue().equals(previous.get(entry.getKey()))) {
+					bySymbol.computeIfAbsent(entry.getKey(), key -> new ConcurrentHashMap<String, Integer>()).put(owner, entry.getValue());
+				}
+			}
+		}
+	}
+
+	public synchronized void remove(String owner) {
+		if (owner == null) return;
+		Map<String, Integer> previous = byOwner.remove(owner);
+		if (previous != null) for (String symbol : previous.keySet()) unindex(symbol, owner);
+	}
+
+	/** The owners holding the symbol, most shares first, up to limit of them (all of them if limit is negative).
+	 *  With a limit, only that many holders are kept (in a heap whose head is the smallest kept) and sorted, rather
+	 *  than sorting every holder of the symbol.  The heap is sized by the holders, as the limit comes from the caller.
+	 */
+	public Holding[] search(String symbol, int limit) {
+		Map<String, Integer> holders = bySymbol.get(symbol);
+		if ((holders == null) || (limit == 0)) return new Holding[0];
+
+		List<Map.Entry<String, Integer>> selected = null;
+		if (limit > 0) {
+			PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<Map.Entry<String, Integer>>(Math.max(1, Math.min(limit, holders.size())), Collections.reverseOrder(MOST_SHARES_FIRST));
+			for (Map.Entry<String, Integer> entry : holders.entrySet()) {
+				if (heap.size() < limit) {
+					heap.add(entry);
+				} else if (MOST_SHARES_FIRST.compare(entry, heap.peek()) < 0) { //more than the smallest one kept
+					heap.poll();
+					heap.add(entry);
+				}
+			}
+			selected = new ArrayList<Map.Entry<String, Integer>>(heap);
+		} else {
+			selected = new ArrayList<Map.Entry<String, Integer>>(holders.entrySet());
+		}
+		selected.sort(MOST_SHARES_FIRST);
+
+		Holding[] holdings = new Holding[selected.size()];
+		for (int index = 0; index < holdings.length; index++) {
+			Map.Entry<String, Integer> entry = selected.get(index);
+			holdings[index] = new Holding(entry.getKey(), symbol, entry.getValue());
+		}
+		logger.fine(() -> "Found "+holders.size()+" owners holding "+symbol);
+		return holdings;
+	}
+
+	private void unindex(String symbol, String owner) {
+		Map<String, Integer> holders = bySymbol.get(symbol);
+		if (holders == null) return;
+		holders.remove(owner);
+		if (holders.isEmpty()) bySymbol.remove(symbol);
+	}
+}
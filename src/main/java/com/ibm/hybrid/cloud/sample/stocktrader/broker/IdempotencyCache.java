@@ -0,0 +1,148 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.WebApplicationException;
+
+@ApplicationScoped
+/** Makes POST and PUT of a broker safe to retry, for callers that send an Idempotency-Key header.  The first
+ *  request with a given key (per caller) runs as normal, and its Broker is kept for IDEMPOTENCY_TTL_S; any
+ *  repeat of it within that time gets the same Broker back without anything being executed again, and a repeat
+ *  arriving while the first is still running waits for (and shares) its result.  Reusing a key for a different
+ *  request is a 422.  A request that fails isn't kept, so it can be retried with the same key.  At most
+ *  IDEMPOTENCY_MAX_KEYS finished results are kept, the oldest being dropped first.
+ */
+public class IdempotencyCache {
+	private static Logger logger = Logger.getLogger(IdempotencyCache.class.getName());
+
+	private static final int MAX_KEY_LENGTH = 255;
+
+	private static boolean enabled = false;
+	private static int ttlSeconds = 600;
+	private static int maxKeys = 10000;
+
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private Queue<Entry> finished = new ConcurrentLinkedQueue<Entry>(); //oldest first, for eviction; running ones aren't in it
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("IDEMPOTENCY_ENABLED"));
+		ttlSeconds = Math.max(1, BrokerService.getIntFromEnv("IDEMPOTENCY_TTL_S", ttlSeconds));
+		maxKeys = Math.max(1, BrokerService.getIntFromEnv("IDEMPOTENCY_MAX_KEYS", maxKeys));
+		logger.info("Idempotency keys enabled: "+enabled+" (kept for "+ttlSeconds+" seconds, up to "+maxKeys+" of them)");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Runs the call, unless this caller has already sent this key, in which case that call's result is used.
+	 *  The request describes the operation and its parameters, to catch a key being reused for something else.
+	 */
+	public CompletionStage<Broker> execute(String caller, String key, String request, Supplier<CompletionStage<Broker>> call) {
+		if (!enabled || (key == null) || key.isEmpty()) return call.get();
+		if (key.length() > MAX_KEY_LENGTH) throw new BadRequestException("Idempotency-Key can't be longer than "+MAX_KEY_LENGTH);
+
+		evict(System.nanoTime());
+
+		String scopedKey = caller+"\n"+key;
+		Entry entry = new Entry(scopedKey, request);
+		Entry existing = entries.putIfAbsent(scopedKey, entry);
+		while ((existing != null) && existing.isExpired(System.nanoTime())) { //not evicted yet
+			entries.remove(scopedKey, existing);
+			existing = entries.putIfAbsent(scopedKey, entry);
+		}
+
+		if (existing != null) {
+			if (!existing.request.equals(request)) {
+				logger.warning("Idempotency-Key "+key+" was reused for a different request: "+request);
+				throw new WebApplicationException("Idempotency-Key was already used for a different request", 422);
+			}
+			boolean running = (existing.expires == 0);
+			logger.fine(() -> "Replaying result for Idempotency-Key "+key+(running ? " once it's finished" : ""));
+			return existing.result.thenApply(broker -> broker); //so the caller can't complete the shared one
+		}
+
+		CompletionStage<Broker> stage = null;
+		try {
+			stage = call.get();
+		} catch (RuntimeException e) {
+			entries.remove(scopedKey, entry);
+			entry.result.completeExceptionally(e); //fail any duplicates already waiting on it
+			throw e;
+		}
+
+		stage.whenComplete((broker, t) -> {
+			if (t != null) {
+				entries.remove(scopedKey, entry); //nothing to replay, so let the caller try again
+				entry.result.completeExceptionally(t);
+			} else {
+				entry.expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds);
+				finished.add(entry);
+				entry.result.complete(broker);
+			}
+		});
+		return stage;
+	}
+
+	/** Drops expired results, then the oldest finished ones if there are too many.  A request still running is
+	 *  never dropped, and doesn't hold up the finished ones behind it, since it only joins the queue once it's done
+	 *  (there can only be as many of those as there are requests in flight).
+	 */
+	private void evict(long now) {
+		for (Entry oldest = finished.peek(); oldest != null; oldest = finished.peek()) {
+			boolean gone = entries.get(oldest.key) != oldest; //already replaced
+			boolean full = entries.size() >= maxKeys;
+			if (!gone && !oldest.isExpired(now) && !full) return;
+			if (finished.remove(oldest)) entries.remove(oldest.key, oldest);
+		}
+	}
+
+	private static class Entry {
+		private String key;
+		private String request;
+		private CompletableFuture<Broker> result = new CompletableFuture<Broker>();
+		private volatile long expires = 0; //0 until the request finishes
+
+		private Entry(String key, String request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		private boolean isExpired(long now) {
+			return (expires != 0) && (now - expires > 0);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+
+//JDK Flight Recorder
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+
+/** The broker's JFR event types, and everything else that touches the jdk.jfr API.  Nothing refers to this class
+ *  except BrokerEvents, and only once it has checked that the JVM has JFR at all (OpenJ9, for one, doesn't), so on
+ *  a JVM without it this class is never loaded.  Events whose type isn't enabled in any recording cost one check.
+ */
+final class JfrEvents {
+	static final String OPERATION = "com.ibm.hybrid.cloud.sample.stocktrader.broker.Operation";
+	static final String DOWNSTREAM_CALL = "com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamCall";
+	static final String CACHE_DECISION = "com.ibm.hybrid.cloud.sample.stocktrader.broker.CacheDecision";
+
+	private JfrEvents() {
+	}
+
+	@Name(OPERATION)
+	@Label("Broker Operation")
+	@Description("A call to one of the broker's REST endpoints")
+	@Category({"Stock Trader", "Broker"})
+	@StackTrace(false)
+	static class Operation extends Event {
+		@Label("Endpoint")
+		String endpoint;
+
+		@Label("Owner")
+		String owner;
+
+		@Label("Status")
+		int status;
+
+		@Label("Outcome")
+		String outcome;
+
+		@Label("Payload Size")
+		@DataAmount
+		long payloadSize;
+	}
+
+	@Name(DOWNSTREAM_CALL)
+	@Label("Downstream Call")
+	@Description("A call from the broker to another Stock Trader microservice")
+	@Category({"Stock Trader", "Broker"})
+	@StackTrace(false)
+	static class DownstreamCall extends Event {
+		@Label("Service")
+		String service;
+
+		@Label("Method")
+		String method;
+
+		@Label("Path")
+		String path;
+
+		@Label("Status")
+		int status;
+
+		@Label("Outcome")
+		String outcome;
+
+		@Label("Payload Size")
+		@DataAmount
+		long payloadSize;
+	}
+
+	@Name(CACHE_DECISION)
+	@Label("Cache Decision")
+	@Description("Whether the broker answered from one of its caches, or had to call (or fall back from) a microservice")
+	@Category({"Stock Trader", "Broker"})
+	@StackTrace(false)
+	static class CacheDecision extends Event {
+		@Label("Cache")
+		String cache;
+
+		@Label("Owner")
+		String owner;
+
+		@Label("Decision")
+		String decision;
+	}
+
+	/** Returns the started event, or null if no recording wants it */
+	static Object beginOperation() {
+		Operation event = new Operation();
+		if (!event.isEnabled()) return null;
+		event.begin();
+		return event;
+	}
+
+	static void endOperation(Object started, String endpoint, String owner, int status, long payloadSize) {
+		Operation event = (Operation) started;
+		event.end();
+		if (!event.shouldCommit()) return; //such as under the recording's duration threshold
+		event.endpoint = endpoint;
+		event.owner = owner;
+		event.status = status;
+		event.outcome = outcome(status);
+		event.payloadSize = payloadSize;
+		event.commit();
+	}
+
+	static Object beginCall() {
+		DownstreamCall event = new DownstreamCall();
+		if (!event.isEnabled()) return null;
+		event.begin();
+		return event;
+	}
+
+	static void endCall(Object started, String service, String method, String path, int status, long payloadSize) {
+		DownstreamCall event = (DownstreamCall) started;
+		event.end();
+		if (!event.shouldCommit()) return;
+		event.service = service;
+		event.method = method;
+		event.path = path;
+		event.status = status;
+		event.outcome = outcome(status);
+		event.payloadSize = payloadSize;
+		event.commit();
+	}
+
+	static void cacheDecision(String cache, String owner, String decision) {
+		CacheDecision event = new CacheDecision();
+		if (!event.shouldCommit()) return;
+		event.cache = cache;
+		event.owner = owner;
+		event.decision = decision;
+		event.commit();
+	}
+
+	static String outcome(int status) {
+		if (status == 0) return "error"; //no response at all, such as a timeout
+		if (status >= 500) return "server error";
+		if (status >= 400) return "client error";
+		return "success";
+	}
+
+	/** Starts an in-process stream of the broker's timed events into the summary, returning the stream to close
+	 *  when done.  Event streaming only arrived in Java 14, and the project compiles for Java 8, so the stream is
+	 *  created reflectively; on older JVMs this throws NoSuchMethodException or ClassNotFoundException.
+	 */
+	static AutoCloseable stream(LatencySummary summary) throws Exception {
+		Class<?> type = Class.forName("jdk.jfr.consumer.RecordingStream");
+		AutoCloseable stream = (AutoCloseable) type.getConstructor().newInstance();
+		Method enable = type.getMethod("enable", String.class);
+		Method onEvent = type.getMethod("onEvent", String.class, Consumer.class);
+
+		enable.invoke(stream, OPERATION);
+		onEvent.invoke(stream, OPERATION, (Consumer<RecordedEvent>) event ->
+			summary.record("broker "+event.getString("endpoint"), event.getDuration().toNanos(), event.getInt("status") >= 500));
+
+		enable.invoke(stream, DOWNSTREAM_CALL);
+		onEvent.invoke(stream, DOWNSTREAM_CALL, (Consumer<RecordedEvent>) event ->
+			summary.record(event.getString("service")+" "+event.getString("method"), event.getDuration().toNanos(), (event.getInt("status") == 0) || (event.getInt("status") >= 500)));
+
+		type.getMethod("startAsync").invoke(stream);
+		return stream;
+	}
+}
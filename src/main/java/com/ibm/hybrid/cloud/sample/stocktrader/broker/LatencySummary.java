@@ -0,0 +1,169 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.LatencyStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+
+@ApplicationScoped
+/** A rolling summary of the latency of each broker endpoint and downstream call over the last JFR_LATENCY_WINDOW_S
+ *  seconds, fed in-process from a JFR event stream of the broker's own Operation and DownstreamCall events (so it
+ *  needs JFR_EVENTS_ENABLED, and Java 14 or later for event streaming).  Each name keeps one slot per second of the
+ *  window, each with a log-scale histogram (four buckets per power of two microseconds), so percentiles are within
+ *  25% and memory doesn't grow with traffic.
+ */
+public class LatencySummary {
+	private static Logger logger = Logger.getLogger(LatencySummary.class.getName());
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = SUB_BUCKETS * 40; //up to 2^40 microseconds, which is nearly two weeks
+
+	private static int windowSeconds = 60;
+
+	private Map<String, Window> windows = new ConcurrentHashMap<String, Window>();
+	private AutoCloseable stream = null;
+
+	static {
+		windowSeconds = Math.max(0, BrokerService.getIntFromEnv("JFR_LATENCY_WINDOW_S", windowSeconds));
+	}
+
+	/** Starts streaming events as soon as the application starts */
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if (!BrokerEvents.isEnabled() || (windowSeconds == 0)) return;
+		try {
+			stream = JfrEvents.stream(this);
+			logger.info("Summarizing JFR event latency over "+windowSeconds+" seconds");
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			logger.warning("Java "+System.getProperty("java.version")+" has no JFR event streaming, so there will be no latency summary");
+		} catch (Exception e) {
+			logger.warning("Unable to start JFR event stream, so there will be no latency summary");
+			BrokerService.logException(e);
+		}
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		if (stream != null) try {
+			stream.close();
+		} catch (Exception e) {
+			BrokerService.logException(e);
+		}
+	}
+
+	public boolean isRunning() {
+		return stream != null;
+	}
+
+	void record(String name, long nanos, boolean failed) {
+		windows.computeIfAbsent(name, key -> new Window()).record(System.currentTimeMillis() / 1000, nanos, failed);
+	}
+
+	public List<LatencyStats> getStats() {
+		long now = System.currentTimeMillis() / 1000;
+		List<LatencyStats> stats = new ArrayList<LatencyStats>();
+		for (Map.Entry<String, Window> entry : windows.entrySet()) {
+			LatencyStats summary = entry.getValue().summarize(entry.getKey(), now);
+			if (summary.getCount() > 0) stats.add(summary);
+		}
+		stats.sort((a, b) -> a.getName().compareTo(b.getName()));
+		return stats;
+	}
+
+	private static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) return (int) Math.max(0, micros);
+		int exponent = 63 - Long.numberOfLeadingZeros(micros); //at least 2
+		int sub = (int) (micros >>> (exponent - 2)) - SUB_BUCKETS; //the next two bits
+		return Math.min(BUCKETS - 1, SUB_BUCKETS * (exponent - 1) + sub);
+	}
+
+	/** The largest number of microseconds that falls into the bucket */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+	}
+
+	private static class Window {
+		private Slot[] slots = new Slot[windowSeconds];
+
+		private synchronized void record(long second, long nanos, boolean failed) {
+			int index = (int) (second % slots.length);
+			Slot slot = slots[index];
+			if ((slot == null) || (slot.second != second)) { //reuse the slot from a full window ago
+				slot = new Slot(second);
+				slots[index] = slot;
+			}
+			slot.count++;
+			if (failed) slot.failures++;
+			slot.max = Math.max(slot.max, nanos);
+			slot.buckets[bucket(TimeUnit.NANOSECONDS.toMicros(nanos))]++;
+		}
+
+		private synchronized LatencyStats summarize(String name, long now) {
+			long count = 0;
+			long failures = 0;
+			long max = 0;
+			long[] buckets = new long[BUCKETS];
+			for (Slot slot : slots) {
+				if ((slot == null) || (now - slot.second >= slots.length)) continue; //too old
+				count += slot.count;
+				failures += slot.failures;
+				max = Math.max(max, slot.max);
+				for (int bucket = 0; bucket < BUCKETS; bucket++) buckets[bucket] += slot.buckets[bucket];
+			}
+			return new LatencyStats(name, count, failures, percentile(buckets, count, 0.50), percentile(buckets, count, 0.95),
+				percentile(buckets, count, 0.99), max / 1000000.0);
+		}
+
+		private static double percentile(long[] buckets, long count, double fraction) {
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += buckets[bucket];
+				if ((seen >= rank) && (seen > 0)) return upperBound(bucket) / 1000.0;
+			}
+			return 0.0;
+		}
+	}
+
+	private static class Slot {
+		private long second;
+		private long count = 0;
+		private long failures = 0;
+		private long max = 0; //in nanos
+		private long[] buckets = new long[BUCKETS];
+
+		private Slot(long second) {
+			this.second = second;
+		}
+	}
+}
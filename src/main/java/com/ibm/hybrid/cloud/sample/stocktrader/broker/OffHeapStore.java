@@ -0,0 +1,268 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.EncodedBroker;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+
+//JSON-B 1.0 (JSR 367)
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+@ApplicationScoped
+/** Keeps the cached copy of each owner's broker outside the Java heap, as the JSON it would be sent as, so that
+ *  tens of thousands of cached brokers don't sit in the old generation as trees of JSON-P objects.  The holdings of
+ *  each version BrokerCache still remembers (for deltas) are kept here too, by version.  Reading either back parses
+ *  the whole record into a new JSON-P tree, which is the price of not keeping the tree on the heap.  Up to
+ *  OFFHEAP_STORE_MB of direct memory is used, in slabs of OFFHEAP_SLAB_KB that are filled in turn; when they're all
+ *  full, the oldest slab is emptied and reused, dropping whichever brokers were last written there.  If
+ *  OFFHEAP_MAX_AGE_MS is set, a record younger than that is sent to GET /{owner} callers as is (see EncodedBroker),
+ *  without calling Portfolio or serializing anything.
+ */
+public class OffHeapStore {
+	private static Logger logger = Logger.getLogger(OffHeapStore.class.getName());
+
+	private static int capacityMB = 0;
+	private static int slabKB = 1024;
+	private static int maxAgeMillis = 0;
+
+	private static Jsonb jsonb = JsonbBuilder.create(); //uses BrokerSerializer, so records match what GET /{owner} sends
+
+	private Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+	private Map<String, Record> holdings = new ConcurrentHashMap<String, Record>(); //by version, for deltas
+	private Slab[] slabs = null; //allocated as needed
+	private int current = -1; //the slab being filled
+
+	static {
+		capacityMB = Math.max(0, BrokerService.getIntFromEnv("OFFHEAP_STORE_MB", capacityMB));
+		slabKB = Math.max(1, BrokerService.getIntFromEnv("OFFHEAP_SLAB_KB", slabKB));
+		maxAgeMillis = BrokerService.getIntFromEnv("OFFHEAP_MAX_AGE_MS", maxAgeMillis);
+		if (capacityMB > 0) logger.info("Caching brokers in "+capacityMB+" MB off-heap, in "+slabKB+" KB slabs; served directly for "+maxAgeMillis+" ms");
+	}
+
+	public static boolean isEnabled() {
+		return capacityMB > 0;
+	}
+
+	public static boolean isServingEnabled() {
+		return (capacityMB > 0) && (maxAgeMillis > 0);
+	}
+
+	/** Encodes the broker (which should include its account fields and version) and writes it to the current slab */
+	public void put(String owner, Broker broker) {
+		put(owner, broker, System.currentTimeMillis());
+	}
+
+	/** As above, for a broker that was current as of the given time, such as one restored from a CacheSnapshot */
+	public void put(String owner, Broker broker, long written) {
+		byte[] bytes = jsonb.toJson(broker).getBytes(StandardCharsets.UTF_8);
+		if (!write(records, owner, bytes, broker.getVersion(), written)) { //can't ever fit, so don't keep a stale copy either
+			logger.fine(() -> "Broker for "+owner+" is too big to store off-heap ("+bytes.length+" bytes)");
+		}
+	}
+
+	public void remove(String owner) {
+		records.remove(owner);
+	}
+
+	/** The stored broker, rebuilt on the heap, or null if there isn't one (any more) */
+	public Broker get(String owner) {
+		byte[] bytes = read(records.get(owner));
+		return (bytes != null) ? decode(bytes) : null;
+	}
+
+	/** The stored bytes, if written within the last OFFHEAP_MAX_AGE_MS */
+	public EncodedBroker getEncoded(String owner) {
+		Record record = records.get(owner);
+		if ((record == null) || (System.currentTimeMillis() - record.written > maxAgeMillis)) return null;
+		byte[] bytes = read(record);
+		return (bytes != null) ? new EncodedBroker(owner, record.version, bytes) : null;
+	}
+
+	/** Writes the holdings of one version of a broker, as encoded by encode */
+	public void putHoldings(String version, byte[] encoded) {
+		if (!write(holdings, version, encoded, version, System.currentTimeMillis())) logger.fine(() -> "Holdings at version "+version+" are too big to store off-heap");
+	}
+
+	/** The holdings stored for a version, or null if there aren't any (any more) */
+	public JsonObject getHoldings(String version) {
+		byte[] bytes = read(holdings.get(version));
+		return (bytes != null) ? parse(bytes) : null;
+	}
+
+	public void removeHoldings(String version) {
+		holdings.remove(version);
+	}
+
+	/** Appends the bytes to the current slab, moving on to the next if they don't fit; false if they never could */
+	private boolean write(Map<String, Record> map, String key, byte[] bytes, String version, long written) {
+		int slabSize = slabKB * 1024;
+		if (bytes.length > slabSize) {
+			map.remove(key);
+			return false;
+		}
+
+		synchronized (this) {
+			Slab slab = (current >= 0) ? slabs[current] : null;
+			if ((slab == null) || (slab.used + bytes.length > slabSize)) slab = nextSlab(slabSize);
+
+			ByteBuffer buffer = slab.buffer.duplicate();
+			buffer.position(slab.used);
+			buffer.put(bytes);
+			map.put(key, new Record(slab, slab.generation, slab.used, bytes.length, version, written));
+			slab.used += bytes.length;
+			((map == records) ? slab.owners : slab.versions).add(key);
+		}
+		return true;
+	}
+
+	/** Copies a record out of its slab, unless the slab has been reused since it was written */
+	private byte[] read(Record record) {
+		if (record == null) return null;
+
+		byte[] bytes = new byte[record.length];
+		synchronized (this) { //a slab only gets reused under this lock
+			if (record.slab.generation != record.generation) return null;
+			ByteBuffer buffer = record.slab.buffer.duplicate();
+			buffer.position(record.offset);
+			buffer.get(bytes);
+		}
+		return bytes;
+	}
+
+	/** Moves on to the next slab, allocating it if this is its first use, or emptying it (oldest first) if not */
+	private Slab nextSlab(int slabSize) {
+		if (slabs == null) slabs = new Slab[Math.max(1, capacityMB * 1024 / slabKB)];
+		current = (current + 1) % slabs.length;
+
+		Slab slab = slabs[current];
+		if (slab == null) {
+			slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+			slabs[current] = slab;
+		} else {
+			int evicted = evict(records, slab.owners, slab);
+			evict(holdings, slab.versions, slab);
+			slab.generation++;
+			slab.used = 0;
+			slab.owners.clear();
+			slab.versions.clear();
+			int reused = current; //the field moves on with the next slab
+			logger.fine(() -> "Reused off-heap slab "+reused+", evicting "+evicted+" brokers");
+		}
+		return slab;
+	}
+
+	/** Drops the map's records for the keys written to the slab, unless they've been rewritten elsewhere since */
+	private static int evict(Map<String, Record> map, List<String> keys, Slab slab) {
+		int evicted = 0;
+		int generation = slab.generation;
+		for (String key : keys) {
+			if (map.computeIfPresent(key, (k, record) -> ((record.slab == slab) && (record.generation == generation)) ? null : record) == null) evicted++;
+		}
+		return evicted;
+	}
+
+	/** The holdings as the bytes putHoldings stores, whose hash BrokerCache compares instead of keeping the holdings */
+	static byte[] encode(JsonObject stocks) {
+		return ((stocks != null) ? stocks : JsonValue.EMPTY_JSON_OBJECT).toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** 64-bit FNV-1a hash of the bytes */
+	static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte value : bytes) {
+			hash ^= (value & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** Rebuilds a broker from the JSON it was stored as (here or in a CacheSnapshot) */
+	static Broker decode(byte[] bytes) {
+		JsonObject json = parse(bytes);
+
+		Broker broker = new Broker(json.getString("owner", null), number(json, "total"), json.getString("loyalty", null),
+			number(json, "balance"), number(json, "commissions"), json.getInt("free", 0), json.getString("sentiment", null),
+			number(json, "nextCommission"));
+		broker.setStocks(json.getJsonObject("stocks"));
+		broker.setVersion(json.getString("version", null));
+		return broker;
+	}
+
+	private static JsonObject parse(byte[] bytes) {
+		try (JsonReader reader = Json.createReader(new ByteArrayInputStream(bytes))) {
+			return reader.readObject();
+		}
+	}
+
+	private static double number(JsonObject json, String field) {
+		JsonNumber number = json.getJsonNumber(field);
+		return (number != null) ? number.doubleValue() : 0.0;
+	}
+
+	/** Where one owner's latest broker (or one version's holdings) was written; stale once its slab's generation moves on */
+	private static class Record {
+		private Slab slab;
+		private int generation;
+		private int offset;
+		private int length;
+		private String version;
+		private long written;
+
+		private Record(Slab slab, int generation, int offset, int length, String version, long written) {
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+			this.written = written;
+		}
+	}
+
+	private static class Slab {
+		private ByteBuffer buffer;
+		private int generation = 0;
+		private int used = 0;
+		private List<String> owners = new ArrayList<String>(); //everyone written here, to drop when it's reused
+		private List<String> versions = new ArrayList<String>(); //likewise for holdings
+
+		private Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Stock;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//JDBC 4.2 and JPA 2.2
+import javax.annotation.sql.DataSourceDefinition;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+@ApplicationScoped
+@DataSourceDefinition(name = "java:app/jdbc/brokerReplica", className = "org.apache.derby.jdbc.EmbeddedDataSource",
+	databaseName = "memory:brokerReplica", properties = {"createDatabase=create"})
+/** A local copy of the portfolios the broker has seen, in an embedded (in-memory Derby) database, for serving reads
+ *  when the Portfolio microservice fails or is slow (see PORTFOLIO_TIMEOUT_MS).  Whatever Portfolio returns is queued
+ *  here and written every PORTFOLIO_REPLICA_FLUSH_MS, up to PORTFOLIO_REPLICA_BATCH_SIZE portfolios at a time, as
+ *  batched JDBC upserts; reads go through the Portfolio and Stock JPA entities, fetching each portfolio's stocks in
+ *  the same query.  Only holdings this pod has seen are known, so the data can be stale; it's a fallback, not a cache.
+ *  For the same reason it only answers for a single owner: a list from it would silently leave out everyone else.
+ */
+public class PortfolioReplica {
+	private static Logger logger = Logger.getLogger(PortfolioReplica.class.getName());
+
+	//same as createTables.ddl
+	private static final String[] DDL = {
+		"CREATE TABLE Portfolio(owner VARCHAR(32) NOT NULL, total DOUBLE, accountID VARCHAR(64), PRIMARY KEY(owner))",
+		"CREATE TABLE Stock(owner VARCHAR(32) NOT NULL, symbol VARCHAR(8) NOT NULL, shares INTEGER, commission DOUBLE, price DOUBLE, "
+			+"total DOUBLE, dateQuoted VARCHAR(64), PRIMARY KEY(owner, symbol), FOREIGN KEY(owner) REFERENCES Portfolio(owner))"
+	};
+	private static final String TABLE_EXISTS = "X0Y32"; //Derby's SQLState for it
+
+	private static final String UPSERT_PORTFOLIO = "MERGE INTO Portfolio p USING SYSIBM.SYSDUMMY1 ON p.owner = ? "
+		+"WHEN MATCHED THEN UPDATE SET total = ?, accountID = ? WHEN NOT MATCHED THEN INSERT (owner, total, accountID) VALUES (?, ?, ?)";
+	private static final String DELETE_STOCKS = "DELETE FROM Stock WHERE owner = ?";
+	private static final String INSERT_STOCK = "INSERT INTO Stock(owner, symbol, shares, commission, price, total, dateQuoted) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String DELETE_PORTFOLIO = "DELETE FROM Portfolio WHERE owner = ?";
+
+	private static final Portfolio DELETED = new Portfolio(); //queued in place of a deleted owner's portfolio
+
+	private static boolean enabled = false;
+	private static int batchSize = 100;
+	private static int flushMillis = 1000;
+
+	@PersistenceContext(unitName = "broker-replica")
+	private EntityManager entityManager;
+
+	@Resource(lookup = "java:app/jdbc/brokerReplica")
+	private DataSource dataSource;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	private Map<String, Portfolio> pending = new LinkedHashMap<String, Portfolio>(); //just the latest per owner
+	private volatile boolean ready = false;
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("PORTFOLIO_REPLICA_ENABLED"));
+		batchSize = Math.max(1, BrokerService.getIntFromEnv("PORTFOLIO_REPLICA_BATCH_SIZE", batchSize));
+		flushMillis = Math.max(1, BrokerService.getIntFromEnv("PORTFOLIO_REPLICA_FLUSH_MS", flushMillis));
+		logger.info("Local Portfolio replica enabled: "+enabled);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	@PostConstruct
+	private void initialize() {
+		if (!enabled) return;
+
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			for (String ddl : DDL) try {
+				statement.executeUpdate(ddl);
+			} catch (SQLException sqle) {
+				if (!TABLE_EXISTS.equals(sqle.getSQLState())) throw sqle;
+			}
+			ready = true;
+		} catch (SQLException sqle) {
+			logger.warning("Unable to create the Portfolio replica tables, so there'll be no replica");
+			BrokerService.logException(sqle);
+			return;
+		}
+
+		if (scheduler != null) try {
+			scheduler.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			logger.warning("Unable to schedule Portfolio replica writes");
+			ready = false;
+		}
+	}
+
+	/** Queues portfolios as returned by the Portfolio microservice (with their stocks) to be written */
+	public void save(Portfolio... portfolios) {
+		if (!ready || (portfolios == null)) return;
+		synchronized (pending) {
+			for (Portfolio portfolio : portfolios) {
+				if ((portfolio != null) && (portfolio.getOwner() != null)) pending.put(portfolio.getOwner(), portfolio);
+			}
+		}
+	}
+
+	public void delete(String owner) {
+		if (!ready || (owner == null)) return;
+		synchronized (pending) {
+			pending.put(owner, DELETED);
+		}
+	}
+
+	/** Writes whatever's queued, a batch at a time, each batch in one transaction */
+	private void flush() {
+		while (true) {
+			List<Portfolio> batch = new ArrayList<Portfolio>();
+			List<String> owners = new ArrayList<String>();
+			synchronized (pending) {
+				if (pending.isEmpty()) return;
+				Iterator<Map.Entry<String, Portfolio>> entries = pending.entrySet().iterator();
+				while (entries.hasNext() && (batch.size() < batchSize)) {
+					Map.Entry<String, Portfolio> entry = entries.next();
+					owners.add(entry.getKey());
+					batch.add(entry.getValue());
+					entries.remove();
+				}
+			}
+
+			try {
+				write(owners, batch);
+				logger.fine(() -> "Wrote "+batch.size()+" portfolios to the replica");
+			} catch (SQLException sqle) { //the next write for these owners will put them right
+				logger.warning("Unable to write "+batch.size()+" portfolios to the replica");
+				BrokerService.logException(sqle);
+				return;
+			}
+		}
+	}
+
+	private void write(List<String> owners, List<Portfolio> batch) throws SQLException {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement deleteStocks = connection.prepareStatement(DELETE_STOCKS);
+				 PreparedStatement deletePortfolio = connection.prepareStatement(DELETE_PORTFOLIO);
+				 PreparedStatement upsertPortfolio = connection.prepareStatement(UPSERT_PORTFOLIO);
+				 PreparedStatement insertStock = connection.prepareStatement(INSERT_STOCK)) {
+				for (int index = 0; index < batch.size(); index++) {
+					String owner = owners.get(index);
+					Portfolio portfolio = batch.get(index);
+					deleteStocks.setString(1, owner); //the stocks are replaced wholesale, so sold ones go too
+					deleteStocks.addBatch();
+					if (portfolio == DELETED) {
+						deletePortfolio.setString(1, owner);
+						deletePortfolio.addBatch();
+						continue;
+					}
+
+					upsertPortfolio.setString(1, owner);
+					upsertPortfolio.setDouble(2, portfolio.getTotal());
+					upsertPortfolio.setString(3, portfolio.getAccountID());
+					upsertPortfolio.setString(4, owner);
+					upsertPortfolio.setDouble(5, portfolio.getTotal());
+					upsertPortfolio.setString(6, portfolio.getAccountID());
+					upsertPortfolio.addBatch();
+
+					JsonObject stocks = portfolio.getStocks();
+					if (stocks != null) for (String symbol : stocks.keySet()) {
+						JsonObject stock = stocks.getJsonObject(symbol);
+						insertStock.setString(1, owner);
+						insertStock.setString(2, symbol);
+						insertStock.setInt(3, stock.getInt("shares", 0));
+						insertStock.setDouble(4, number(stock, "commission"));
+						insertStock.setDouble(5, number(stock, "price"));
+						insertStock.setDouble(6, number(stock, "total"));
+						insertStock.setString(7, stock.getString("date", null));
+						insertStock.addBatch();
+					}
+				}
+				deleteStocks.executeBatch();
+				deletePortfolio.executeBatch();
+				upsertPortfolio.executeBatch(); //before the stocks, which reference it
+				insertStock.executeBatch();
+				connection.commit();
+			} catch (SQLException sqle) {
+				connection.rollback();
+				throw sqle;
+			}
+		}
+	}
+
+	/** The replicated portfolio, with its stocks, or null if this pod hasn't seen it */
+	public Portfolio getPortfolio(String owner) {
+		List<Portfolio> found = entityManager.createNamedQuery("Portfolio.findByOwnerWithStocks", Portfolio.class)
+			.setParameter("owner", owner).getResultList();
+		return found.isEmpty() ? null : copy(found.get(0));
+	}
+
+	/** Turns an entity (with its stockList fetched) back into a Portfolio as the microservice would return it */
+	private static Portfolio copy(Portfolio entity) {
+		JsonObjectBuilder stocks = Json.createObjectBuilder();
+		for (Stock stock : entity.getStockList()) {
+			JsonObjectBuilder builder = Json.createObjectBuilder();
+			builder.add("symbol", stock.getSymbol());
+			builder.add("shares", stock.getShares());
+			builder.add("commission", stock.getCommission());
+			builder.add("price", stock.getPrice());
+			builder.add("total", stock.getTotal());
+			if (stock.getDate() != null) builder.add("date", stock.getDate());
+			stocks.add(stock.getSymbol(), builder);
+		}
+
+		Portfolio portfolio = new Portfolio(entity.getOwner(), entity.getTotal(), entity.getAccountID());
+		portfolio.setStocks(stocks.build());
+		return portfolio;
+	}
+
+	private static double number(JsonObject json, String field) {
+		JsonNumber number = json.getJsonNumber(field);
+		return (number != null) ? number.doubleValue() : 0.0;
+	}
+}
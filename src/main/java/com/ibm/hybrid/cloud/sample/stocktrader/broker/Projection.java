@@ -0,0 +1,88 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.BadRequestException;
+
+/** The Broker fields a caller asked for via the fields query parameter (for example, fields=owner,total).
+ *  Besides trimming the response, this tells BrokerService which downstream calls it can skip entirely.
+ */
+public class Projection {
+	public static final Projection ALL = new Projection(null);
+
+	private static final Set<String> ACCOUNT_FIELDS = new HashSet<String>(Arrays.asList(
+		"loyalty", "balance", "commissions", "free", "sentiment", "nextCommission"));
+	private static final Set<String> KNOWN_FIELDS = new HashSet<String>(Arrays.asList(
+		"owner", "total", "stocks", "version"));
+
+	static {
+		KNOWN_FIELDS.addAll(ACCOUNT_FIELDS);
+	}
+
+	private Set<String> fields; //null means all fields
+
+	private Projection(Set<String> fields) {
+		this.fields = fields;
+	}
+
+	/** Parses a comma-separated list of field names; a missing or empty list means all fields */
+	public static Projection parse(String list) {
+		if ((list == null) || list.trim().isEmpty()) return ALL;
+
+		Set<String> fields = new HashSet<String>();
+		fields.add("owner"); //always sent, so entries in a list of brokers can be told apart
+		for (String field : list.split(",")) {
+			field = field.trim();
+			if (field.isEmpty()) continue;
+			if (!KNOWN_FIELDS.contains(field)) throw new BadRequestException("Unknown broker field: "+field);
+			fields.add(field);
+		}
+		return new Projection(Collections.unmodifiableSet(fields));
+	}
+
+	public boolean isAll() {
+		return fields == null;
+	}
+
+	public boolean includes(String field) {
+		return (fields == null) || fields.contains(field);
+	}
+
+	/** Whether any requested field has to come from the Account microservice */
+	public boolean needsAccount() {
+		return (fields == null) || !Collections.disjoint(fields, ACCOUNT_FIELDS);
+	}
+
+	/** Returns a copy of the broker that will serialize only the requested fields; the original (which may
+	 *  be shared via the cache) is left alone.
+	 */
+	public Broker apply(Broker broker) {
+		if ((fields == null) || (broker == null)) return broker;
+
+		Broker projected = new Broker(broker);
+		projected.setFields(fields);
+		return projected;
+	}
+}
@@ -0,0 +1,222 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.StockQuoteClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Quote;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+//mpRestClient 1.3
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+@ApplicationScoped
+/** Stock prices shared by every request, each kept for QUOTE_CACHE_TTL_MS.  Symbols that aren't cached are fetched
+ *  from the Stock Quote microservice in a single batch call, and a request wanting a symbol that another request is
+ *  already fetching waits for that fetch instead of starting its own.  If QUOTE_REVALUE_ENABLED is set, BrokerService
+ *  uses these prices to revalue the holdings of a broker it already has cached, rather than asking Portfolio again,
+ *  until those holdings are QUOTE_REVALUE_MAX_AGE_S old.
+ */
+public class QuoteCache {
+	private static Logger logger = Logger.getLogger(QuoteCache.class.getName());
+
+	private static int ttlMillis = 30000;
+	private static boolean revalue = false;
+	private static int revalueMaxAgeSeconds = 60;
+
+	private @Inject @RestClient StockQuoteClient stockQuoteClient;
+
+	private Map<String, Entry> quotes = new ConcurrentHashMap<String, Entry>();
+	private Map<String, CompletableFuture<Quote>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Quote>>();
+
+	static {
+		ttlMillis = BrokerService.getIntFromEnv("QUOTE_CACHE_TTL_MS", ttlMillis);
+		revalue = Boolean.parseBoolean(System.getenv("QUOTE_REVALUE_ENABLED"));
+		revalueMaxAgeSeconds = Math.max(0, BrokerService.getIntFromEnv("QUOTE_REVALUE_MAX_AGE_S", revalueMaxAgeSeconds));
+		logger.info("Stock quotes cached for "+ttlMillis+" ms; revaluing cached brokers: "+revalue+" (holdings up to "+revalueMaxAgeSeconds+" s old)");
+	}
+
+	@PostConstruct
+	private void initialize() { //see DownstreamCall
+		stockQuoteClient = DownstreamCall.wrap(StockQuoteClient.class, stockQuoteClient);
+	}
+
+	public static boolean isRevalueEnabled() {
+		return revalue;
+	}
+
+	/** How long a cached broker's holdings can be revalued for, before Portfolio is asked for them again */
+	public static long getRevalueMaxAgeMillis() {
+		return revalueMaxAgeSeconds * 1000L;
+	}
+
+	/** Blocks until getQuotesAsync completes */
+	public Map<String, Quote> getQuotes(String jwt, Collection<String> symbols) {
+		return getQuotesAsync(jwt, symbols).toCompletableFuture().join();
+	}
+
+	/** Completes with a quote for each symbol that has one; symbols that couldn't be looked up are left out */
+	public CompletionStage<Map<String, Quote>> getQuotesAsync(String jwt, Collection<String> symbols) {
+		if ((symbols == null) || symbols.isEmpty()) return CompletableFuture.completedFuture(Collections.<String, Quote>emptyMap());
+
+		long now = System.currentTimeMillis();
+		Map<String, CompletableFuture<Quote>> wanted = new HashMap<String, CompletableFuture<Quote>>();
+		Map<String, CompletableFuture<Quote>> toFetch = new HashMap<String, CompletableFuture<Quote>>();
+		for (String symbol : new LinkedHashSet<String>(symbols)) {
+			Entry entry = quotes.get(symbol);
+			if ((entry != null) && (entry.expires > now)) {
+				wanted.put(symbol, CompletableFuture.completedFuture(entry.quote));
+				continue;
+			}
+
+			CompletableFuture<Quote> future = new CompletableFuture<Quote>();
+			CompletableFuture<Quote> existing = inFlight.putIfAbsent(symbol, future);
+			if (existing != null) { //someone else is already fetching it
+				wanted.put(symbol, existing);
+			} else {
+				wanted.put(symbol, future);
+				toFetch.put(symbol, future);
+			}
+		}
+		if (!toFetch.isEmpty()) fetch(jwt, toFetch);
+
+		return CompletableFuture.allOf(wanted.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			Map<String, Quote> found = new HashMap<String, Quote>();
+			for (Map.Entry<String, CompletableFuture<Quote>> entry : wanted.entrySet()) {
+				Quote quote = entry.getValue().join(); //fetch never completes exceptionally
+				if (quote != null) found.put(entry.getKey(), quote);
+			}
+			return found;
+		});
+	}
+
+	/** Just the unexpired quotes already cached for these symbols, without fetching any others */
+	public Map<String, Quote> getCachedQuotes(Collection<String> symbols) {
+		long now = System.currentTimeMillis();
+		Map<String, Quote> found = new HashMap<String, Quote>();
+		for (String symbol : symbols) {
+			Entry entry = quotes.get(symbol);
+			if ((entry != null) && (entry.expires > now)) found.put(symbol, entry.quote);
+		}
+		return found;
+	}
+
+	/** Takes in a quote from somewhere other than a lookup, such as a price feed */
+	public void put(Quote quote) {
+		if ((quote != null) && (quote.getSymbol() != null)) {
+			quotes.put(quote.getSymbol(), new Entry(quote, System.currentTimeMillis() + ttlMillis));
+		}
+	}
+
+	private void fetch(String jwt, Map<String, CompletableFuture<Quote>> toFetch) {
+		List<String> symbols = new ArrayList<String>(toFetch.keySet());
+		CompletionStage<Quote[]> call = null;
+		try {
+			logger.fine(() -> "Calling StockQuoteClient.getStockQuotesAsync() for "+symbols.size()+" symbols");
+			call = stockQuoteClient.getStockQuotesAsync(jwt, symbols);
+		} catch (Throwable t) {
+			CompletableFuture<Quote[]> failed = new CompletableFuture<Quote[]>();
+			failed.completeExceptionally(t);
+			call = failed;
+		}
+
+		call.whenComplete((results, t) -> {
+			if (t != null) BrokerService.logException(t);
+
+			Map<String, Quote> bySymbol = new HashMap<String, Quote>();
+			if (results != null) for (Quote quote : results) {
+				if ((quote != null) && (quote.getSymbol() != null)) bySymbol.put(quote.getSymbol(), quote);
+			}
+			for (Map.Entry<String, CompletableFuture<Quote>> entry : toFetch.entrySet()) {
+				Quote quote = bySymbol.get(entry.getKey());
+				put(quote);
+				inFlight.remove(entry.getKey(), entry.getValue());
+				entry.getValue().complete(quote);
+			}
+		});
+	}
+
+	public static Collection<String> symbols(Broker broker) {
+		JsonObject stocks = broker.getStocks();
+		return (stocks != null) ? stocks.keySet() : Collections.<String>emptySet();
+	}
+
+	/** Returns a copy of the broker with each holding (and the overall total) recalculated at the given prices;
+	 *  holdings without a price are left as they were.
+	 */
+	public static Broker revalue(Broker broker, Map<String, Quote> prices) {
+		JsonObject stocks = broker.getStocks();
+		if ((stocks == null) || prices.isEmpty()) return broker;
+
+		JsonObjectBuilder revalued = Json.createObjectBuilder();
+		double total = 0.0;
+		for (String symbol : stocks.keySet()) {
+			JsonObject stock = stocks.getJsonObject(symbol);
+			Quote quote = prices.get(symbol);
+			if (quote != null) {
+				double stockTotal = stock.getInt("shares", 0) * quote.getPrice();
+				JsonObjectBuilder builder = Json.createObjectBuilder(stock);
+				builder.add("price", quote.getPrice());
+				builder.add("total", stockTotal);
+				if (quote.getDate() != null) builder.add("date", quote.getDate());
+				stock = builder.build();
+			}
+			JsonNumber stockTotal = stock.getJsonNumber("total");
+			if (stockTotal != null) total += stockTotal.doubleValue();
+			revalued.add(symbol, stock);
+		}
+
+		Broker copy = new Broker(broker);
+		copy.setStocks(revalued.build());
+		copy.setTotal(total);
+		return copy;
+	}
+
+	private static class Entry {
+		private Quote quote;
+		private long expires;
+
+		private Entry(Quote quote, long expires) {
+			this.quote = quote;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//Concurrency Utilities 1.0 (JSR 236)
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//JAX-RS 2.1 (JSR 339)
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+//mpMetrics 3.0
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+
+@ApplicationScoped
+/** Retries idempotent reads from the Portfolio and Account microservices (never trades or other writes) when
+ *  they fail in a way that might not happen next time: no connection or response at all, or a 502, 503 or 504.
+ *  Each retry waits a random time of up to RETRY_BASE_DELAY_MS doubled per attempt (capped at RETRY_MAX_DELAY_MS),
+ *  so that callers which failed together don't all come back together.  Retries also have to be paid for out of
+ *  a budget shared by every call: each first attempt adds RETRY_BUDGET_PERCENT/100 of a token (up to
+ *  RETRY_BUDGET_MAX_TOKENS), and each retry takes a whole one.  So retries can never add more than that
+ *  percentage to the load on a service that's already struggling; once the budget is spent, failures are
+ *  passed on straight away.  A 503 that never left this pod, because the downstream concurrency limit was full (see
+ *  DownstreamLimitFilter), isn't retried either: the service hasn't seen the call, and the limit won't have moved.
+ */
+public class RetryBudget {
+	private static Logger logger = Logger.getLogger(RetryBudget.class.getName());
+
+	private static boolean enabled = false;
+	private static int maxAttempts = 3;
+	private static int baseDelayMillis = 50;
+	private static int maxDelayMillis = 1000;
+	private static int budgetPercent = 10;
+	private static int maxTokens = 20;
+
+	private @Inject MetricRegistry registry;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	private double tokens = maxTokens; //start full, so a pod can ride out a blip right after it starts
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("RETRY_ENABLED"));
+		maxAttempts = Math.max(1, BrokerService.getIntFromEnv("RETRY_MAX_ATTEMPTS", maxAttempts));
+		baseDelayMillis = Math.max(1, BrokerService.getIntFromEnv("RETRY_BASE_DELAY_MS", baseDelayMillis));
+		maxDelayMillis = Math.max(baseDelayMillis, BrokerService.getIntFromEnv("RETRY_MAX_DELAY_MS", maxDelayMillis));
+		budgetPercent = Math.min(100, Math.max(0, BrokerService.getIntFromEnv("RETRY_BUDGET_PERCENT", budgetPercent)));
+		maxTokens = Math.max(1, BrokerService.getIntFromEnv("RETRY_BUDGET_MAX_TOKENS", maxTokens));
+		logger.info("Retries enabled: "+enabled+" (up to "+maxAttempts+" attempts, budget "+budgetPercent+"% of calls)");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	@PostConstruct
+	private void initialize() {
+		registry.gauge("retryBudgetTokens", this::getTokens);
+	}
+
+	public synchronized double getTokens() {
+		return tokens;
+	}
+
+	/** Makes the call, retrying it (after a sleep) while it fails with a retryable error and the budget allows */
+	public <T> T call(String name, Supplier<T> call) {
+		if (!enabled) return call.get();
+
+		deposit();
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return call.get();
+			} catch (RuntimeException e) {
+				if (!shouldRetry(name, e, attempt)) throw e;
+				try {
+					Thread.sleep(delay(attempt));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/** Non-blocking equivalent of call; retries are started from the scheduler rather than by sleeping */
+	public <T> CompletionStage<T> callAsync(String name, Supplier<CompletionStage<T>> call) {
+		if (!enabled) return call.get();
+
+		deposit();
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		attempt(name, call, 1, result);
+		return result;
+	}
+
+	private <T> void attempt(String name, Supplier<CompletionStage<T>> call, int attempt, CompletableFuture<T> result) {
+		if (result.isDone()) return; //cancelled by the caller while waiting to retry
+
+		CompletionStage<T> stage = null;
+		try {
+			stage = call.get();
+		} catch (Throwable t) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(t);
+			stage = failed;
+		}
+
+		if (stage instanceof Future) { //so cancelling the result cancels the call in flight, where the client supports it
+			Future<?> inFlight = (Future<?>) stage;
+			result.whenComplete((value, t) -> {
+				if (result.isCancelled()) inFlight.cancel(true);
+			});
+		}
+
+		stage.whenComplete((value, t) -> {
+			if (t == null) {
+				result.complete(value);
+			} else if (!shouldRetry(name, t, attempt)) {
+				result.completeExceptionally(t);
+			} else try {
+				scheduler.schedule(() -> attempt(name, call, attempt + 1, result), delay(attempt), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ree) {
+				result.completeExceptionally(t);
+			}
+		});
+	}
+
+	/** Whether the failed attempt should be tried again, taking a token from the budget if so */
+	private boolean shouldRetry(String name, Throwable t, int attempt) {
+		if ((attempt >= maxAttempts) || !isRetryable(BrokerService.unwrap(t))) return false;
+
+		if (!withdraw()) {
+			count("downstreamRetriesDenied", name);
+			logger.fine(() -> "Retry budget spent, so not retrying "+name);
+			return false;
+		}
+		count("downstreamRetries", name);
+		logger.fine(() -> "Retrying "+name+" after attempt "+attempt+" failed with "+t.getClass().getName());
+		return true;
+	}
+
+	/** Connection failures and timeouts, or a gateway error; a 4xx (such as a 404 for an unknown owner) won't change */
+	private static boolean isRetryable(Throwable t) {
+		if (t instanceof ProcessingException) return true;
+		if (t instanceof WebApplicationException) {
+			Response response = ((WebApplicationException) t).getResponse();
+			if (DownstreamLimitFilter.isShed(response)) return false;
+			int status = (response != null) ? response.getStatus() : 0;
+			return (status == 502) || (status == 503) || (status == 504);
+		}
+		return false;
+	}
+
+	private void count(String counter, String name) {
+		if (registry != null) registry.counter(counter, new Tag("call", name)).inc(); //there's none outside the container
+	}
+
+	/** Full jitter: anywhere from zero up to the exponential backoff for this attempt */
+	static long delay(int attempt) {
+		long ceiling = Math.min(maxDelayMillis, (long) baseDelayMillis << Math.min(attempt - 1, 20));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	private synchronized void deposit() {
+		tokens = Math.min(maxTokens, tokens + budgetPercent / 100.0);
+	}
+
+	private synchronized boolean withdraw() {
+		if (tokens < 1.0) return false;
+		tokens -= 1.0;
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+/** Remembers the return on investment the TradeHistory microservice last calculated for each owner, along with
+ *  the portfolio value it was calculated from, rounded into a bucket of RETURNS_VALUE_BUCKET dollars.  Returns
+ *  only change when prices move (which changes the value) or a trade goes through (which invalidates the entry),
+ *  so while the value stays in the same bucket, the cached answer is still good enough.
+ */
+public class ReturnsCache {
+	private static Logger logger = Logger.getLogger(ReturnsCache.class.getName());
+
+	private static double bucketSize = 1.0;
+
+	//bumped on every invalidation, so a calculation that raced with a trade doesn't get cached afterwards
+	private AtomicLong epoch = new AtomicLong();
+
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	static {
+		String size = System.getenv("RETURNS_VALUE_BUCKET");
+		if ((size != null) && !size.isEmpty()) try {
+			bucketSize = Double.parseDouble(size);
+		} catch (NumberFormatException nfe) {
+			logger.warning("Ignoring invalid RETURNS_VALUE_BUCKET: "+size);
+		}
+		if (!(bucketSize > 0.0)) bucketSize = 1.0;
+		logger.info("Portfolio returns cached per "+bucketSize+" of portfolio value");
+	}
+
+	/** Call before asking TradeHistory, and pass the result to put afterwards */
+	public long epoch() {
+		return epoch.get();
+	}
+
+	/** Returns the cached returns for the owner, or null if there are none for a portfolio worth this much */
+	public String get(String owner, double portfolioValue) {
+		if (owner == null) return null;
+		Entry entry = entries.get(owner);
+		return ((entry != null) && (entry.bucket == bucket(portfolioValue))) ? entry.returns : null;
+	}
+
+	public void put(String owner, double portfolioValue, String returns, long startingEpoch) {
+		if ((owner == null) || (returns == null)) return;
+		if (epoch.get() != startingEpoch) {
+			logger.fine(() -> "Not caching returns for "+owner+", since a trade happened while they were being calculated");
+			return;
+		}
+		entries.put(owner, new Entry(bucket(portfolioValue), returns));
+	}
+
+	/** Forgets the owner's returns, such as after a trade */
+	public void invalidate(String owner) {
+		epoch.incrementAndGet();
+		if (owner != null) entries.remove(owner);
+	}
+
+	private static long bucket(double portfolioValue) {
+		return Math.round(portfolioValue / bucketSize);
+	}
+
+	private static class Entry {
+		private long bucket;
+		private String returns;
+
+		private Entry(long bucket, String returns) {
+			this.bucket = bucket;
+			this.returns = returns;
+		}
+	}
+}
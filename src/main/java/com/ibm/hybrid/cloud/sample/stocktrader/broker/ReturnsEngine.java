@@ -0,0 +1,178 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StockPurchase;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+
+//JSON-B 1.0 (JSR 367)
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
+@ApplicationScoped
+/** Keeps running totals per owner (spent on purchases, received from sales, and commissions), updated as each
+ *  StockPurchase goes through, so that the return on investment can be answered locally from just the current
+ *  portfolio, rather than asking the TradeHistory microservice to go through the owner's whole trade history every
+ *  time.  Only owners whose full history has been seen (because they were created since startup, or were in the
+ *  trade log replayed at startup from RETURNS_TRADE_LOG) are tracked, and even then only answered while the shares
+ *  and commissions seen for each symbol still match the portfolio's; a mismatch means a trade went through somewhere
+ *  else (such as another pod), so the owner is dropped, and the caller should keep asking TradeHistory.
+ */
+public class ReturnsEngine {
+	private static Logger logger = Logger.getLogger(ReturnsEngine.class.getName());
+
+	private static boolean enabled = false;
+	private static String tradeLog = null;
+
+	private Map<String, Position> positions = new ConcurrentHashMap<String, Position>();
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("RETURNS_ENGINE_ENABLED"));
+		tradeLog = System.getenv("RETURNS_TRADE_LOG");
+		logger.info("Local returns engine enabled: "+enabled+((tradeLog != null) ? " (replaying "+tradeLog+")" : ""));
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Loads the trade log (a JSON array of StockPurchase objects) as soon as the application starts */
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if (!enabled || (tradeLog == null) || tradeLog.isEmpty()) return;
+
+		try (Reader reader = new FileReader(tradeLog); Jsonb jsonb = JsonbBuilder.create()) {
+			StockPurchase[] trades = jsonb.fromJson(reader, StockPurchase[].class);
+			replay((trades != null) ? Arrays.asList(trades) : new ArrayList<StockPurchase>());
+		} catch (Exception e) {
+			logger.warning("Unable to replay trade log "+tradeLog+", so returns will come from TradeHistory");
+			BrokerService.logException(e);
+		}
+	}
+
+	/** Rebuilds the state of every owner in the given trades from scratch, applying them in time order */
+	public void replay(List<StockPurchase> trades) {
+		List<StockPurchase> ordered = new ArrayList<StockPurchase>(trades);
+		ordered.sort(Comparator.comparing(StockPurchase::getWhen, Comparator.nullsFirst(Comparator.<String>naturalOrder())));
+
+		Map<String, Position> rebuilt = new HashMap<String, Position>();
+		Set<String> applied = new HashSet<String>(); //trade IDs, so a trade listed twice isn't counted twice
+		for (StockPurchase trade : ordered) {
+			String owner = trade.getOwner();
+			if ((owner == null) || ((trade.getId() != null) && !applied.add(trade.getId()))) continue;
+			rebuilt.computeIfAbsent(owner, key -> new Position()).apply(trade);
+		}
+		positions.putAll(rebuilt);
+		logger.info("Replayed "+ordered.size()+" trades for "+rebuilt.size()+" owners");
+	}
+
+	/** Starts tracking a brand new owner, whose entire history will therefore be seen */
+	public void create(String owner) {
+		if (owner != null) positions.put(owner, new Position());
+	}
+
+	/** Applies a trade to its owner's running totals, if the owner is being tracked */
+	public void record(StockPurchase trade) {
+		if ((trade == null) || (trade.getOwner() == null)) return;
+		Position position = positions.get(trade.getOwner());
+		if (position != null) position.apply(trade);
+	}
+
+	/** Stops tracking an owner, such as when a trade can't be accounted for or the owner is deleted */
+	public void forget(String owner) {
+		if (owner != null) positions.remove(owner);
+	}
+
+	/** The percentage return on what the owner has put in (purchases plus commissions), counting both the current
+	 *  value of the portfolio and what sales have brought in; or null if unknown, including if the portfolio's
+	 *  holdings (its stocks, with their shares and commission) show trades this pod hasn't seen.
+	 */
+	public String getReturns(String owner, double portfolioValue, JsonObject stocks) {
+		Position position = (owner != null) ? positions.get(owner) : null;
+		if (position == null) return null;
+
+		if (!position.matches(stocks)) {
+			logger.fine(() -> "Portfolio of "+owner+" has trades that weren't seen here, so no longer calculating their returns locally");
+			positions.remove(owner, position);
+			return null;
+		}
+		return position.returns(portfolioValue);
+	}
+
+	/** Running totals for one owner, plus their current holdings, kept the way the portfolio keeps them */
+	private static class Position {
+		private Map<String, double[]> holdings = new HashMap<String, double[]>(); //symbol -> {shares, commissions}
+		private double spent = 0.0; //on every purchase
+		private double proceeds = 0.0; //from every sale
+		private double commissions = 0.0;
+
+		private synchronized void apply(StockPurchase trade) {
+			int shares = trade.getShares();
+			double value = Math.abs(shares) * trade.getPrice();
+			if (shares >= 0) spent += value;
+			else proceeds += value;
+			commissions += trade.getCommission();
+
+			double[] holding = holdings.computeIfAbsent(trade.getSymbol(), key -> new double[2]);
+			holding[0] += shares;
+			holding[1] += trade.getCommission();
+			if (holding[0] <= 0) holdings.remove(trade.getSymbol()); //as the portfolio drops a stock once it's all sold
+		}
+
+		/** Whether the portfolio holds exactly the shares seen here, having paid exactly the commissions seen here */
+		private synchronized boolean matches(JsonObject stocks) {
+			int held = (stocks != null) ? stocks.size() : 0;
+			if (held != holdings.size()) return false;
+			for (Map.Entry<String, double[]> entry : holdings.entrySet()) {
+				JsonObject stock = stocks.getJsonObject(entry.getKey());
+				if ((stock == null) || (stock.getInt("shares", -1) != (int) entry.getValue()[0])) return false;
+				JsonNumber commission = stock.getJsonNumber("commission");
+				if ((commission == null) || (Math.abs(commission.doubleValue() - entry.getValue()[1]) >= 0.005)) return false;
+			}
+			return true;
+		}
+
+		private synchronized String returns(double portfolioValue) {
+			double invested = spent + commissions;
+			if (invested <= 0.0) return "0.00";
+			return String.format(Locale.ROOT, "%.2f", (portfolioValue + proceeds - invested) / invested * 100.0);
+		}
+	}
+}
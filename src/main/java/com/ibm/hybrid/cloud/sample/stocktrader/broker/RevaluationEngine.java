@@ -0,0 +1,344 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Quote;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+//JSON-B 1.0 (JSR 367)
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+//JSON-P 1.1 (JSR 374)
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
+@ApplicationScoped
+/** Keeps the holdings of every cached broker indexed by symbol, so that when a new price arrives for a symbol,
+ *  only the holdings of that symbol get recalculated.  The index is kept in parallel primitive arrays (owner slot,
+ *  shares and current value per holding), and a symbol held by more than REVALUE_PARALLEL_THRESHOLD owners is
+ *  repriced in a parallel pass.  Prices come in via tick, either from code (an in-memory feed) or from the
+ *  JSON-lines file named by QUOTE_FEED_FILE, which is played at startup.  New prices also go into the QuoteCache,
+ *  any owner being watched over Server-Sent Events is sent their revalued broker, and brokers read from Portfolio
+ *  get revalued at the latest prices before being returned.
+ */
+public class RevaluationEngine {
+	private static Logger logger = Logger.getLogger(RevaluationEngine.class.getName());
+
+	private static boolean enabled = false;
+	private static int parallelThreshold = 10000;
+	private static String feedFile = null;
+	private static int feedIntervalMillis = 0;
+
+	private @Inject QuoteCache quoteCache;
+	private @Inject BrokerCache cache;
+	private @Inject BrokerBroadcaster broadcaster;
+	private @Inject BrokerExecutor executor;
+
+	//per owner, indexed by slot
+	private Map<String, Integer> slots = new HashMap<String, Integer>();
+	private Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private String[] owners = new String[64];
+	private String[][] ownerSymbols = new String[64][];
+	private int slotCount = 0;
+
+	private Map<String, Holdings> bySymbol = new HashMap<String, Holdings>();
+	private Map<String, Quote> latest = new HashMap<String, Quote>(); //the last tick of each symbol
+
+	private long modifications = 0; //bumped whenever the index or any value in it changes
+	private Book book = null; //the last snapshot, reused until the next modification
+	private volatile Integer listed = null; //how many portfolios the last full listing had, if there's been one
+
+	static {
+		enabled = Boolean.parseBoolean(System.getenv("REVALUATION_ENABLED"));
+		parallelThreshold = BrokerService.getIntFromEnv("REVALUE_PARALLEL_THRESHOLD", parallelThreshold);
+		feedFile = System.getenv("QUOTE_FEED_FILE");
+		feedIntervalMillis = BrokerService.getIntFromEnv("QUOTE_FEED_INTERVAL_MS", feedIntervalMillis);
+		logger.info("Revaluation engine enabled: "+enabled+((feedFile != null) ? " (quote feed from "+feedFile+")" : ""));
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Starts playing the quote feed file, if any, as soon as the application starts */
+	private void startup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+		if (!enabled || (feedFile == null) || feedFile.isEmpty()) return;
+		executor.submit(this::playFeed);
+	}
+
+	/** Each line of the file is a Quote in JSON; blank lines and lines starting with # are skipped */
+	private void playFeed() {
+		int count = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(feedFile)); Jsonb jsonb = JsonbBuilder.create()) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				tick(jsonb.fromJson(line, Quote.class));
+				count++;
+				if (feedIntervalMillis > 0) Thread.sleep(feedIntervalMillis);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.warning("Unable to play quote feed "+feedFile);
+			BrokerService.logException(e);
+		}
+		logger.info("Played "+count+" quotes from "+feedFile);
+	}
+
+	/** (Re)indexes an owner's holdings, such as whenever their broker gets cached */
+	public void index(String owner, Broker broker) {
+		if ((owner == null) || (broker == null)) return;
+		JsonObject stocks = broker.getStocks();
+
+		synchronized (this) {
+			int slot = slotFor(owner);
+			unindex(slot);
+
+			String[] symbols = (stocks != null) ? stocks.keySet().toArray(new String[0]) : new String[0];
+			for (String symbol : symbols) {
+				JsonObject stock = stocks.getJsonObject(symbol);
+				int shares = stock.getInt("shares", 0);
+				Quote quote = latest.get(symbol);
+				JsonNumber value = stock.getJsonNumber("total");
+				double holdingTotal = (quote != null) ? shares * quote.getPrice() : (value != null) ? value.doubleValue() : 0.0;
+				bySymbol.computeIfAbsent(symbol, key -> new Holdings()).add(slot, shares, holdingTotal);
+			}
+			ownerSymbols[slot] = symbols;
+			modifications++;
+		}
+	}
+
+	public synchronized void remove(String owner) {
+		Integer slot = slots.remove(owner);
+		if (slot == null) return;
+		unindex(slot);
+		owners[slot] = null;
+		ownerSymbols[slot] = null;
+		freeSlots.push(slot);
+		modifications++;
+	}
+
+	/** Returns a copy of the broker with each holding (and the overall total) recalculated at the latest prices to
+	 *  have come in via tick; symbols that haven't ticked keep the prices the broker already had.
+	 */
+	public Broker revalue(Broker broker) {
+		if (broker == null) return null;
+		Map<String, Quote> prices = new HashMap<String, Quote>();
+		synchronized (this) {
+			for (String symbol : QuoteCache.symbols(broker)) {
+				Quote quote = latest.get(symbol);
+				if (quote != null) prices.put(symbol, quote);
+			}
+		}
+		return QuoteCache.revalue(broker, prices);
+	}
+
+	public void tick(Quote quote) {
+		tick(Collections.singletonList(quote));
+	}
+
+	/** Applies new prices, recalculating just the holdings of those symbols and the totals of their owners */
+	public void tick(List<Quote> quotes) {
+		List<String> watched = new ArrayList<String>();
+		synchronized (this) {
+			boolean[] affected = new boolean[slotCount];
+			for (Quote quote : quotes) {
+				if ((quote == null) || (quote.getSymbol() == null)) continue;
+				quoteCache.put(quote);
+				latest.put(quote.getSymbol(), quote);
+
+				Holdings holdings = bySymbol.get(quote.getSymbol());
+				if (holdings == null) continue;
+				holdings.reprice(quote.getPrice());
+				modifications++;
+				for (int index = 0; index < holdings.size; index++) affected[holdings.slots[index]] = true;
+			}
+
+			for (int slot = 0; slot < affected.length; slot++) {
+				if (affected[slot] && broadcaster.isWatched(owners[slot])) watched.add(owners[slot]);
+			}
+		}
+
+		for (String owner : watched) { //only build the full JSON for owners someone is actually watching
+			Broker cached = cache.get(owner);
+			if (cached == null) continue;
+			Broker broker = revalue(cached);
+			cache.revalued(owner, broker);
+			broadcaster.publish(owner, broker, BrokerBroadcaster.UPDATE);
+		}
+	}
+
+	/** Notes how many portfolios a full listing (GET /) just indexed, so whole-book results can say what they cover */
+	public void listed(int portfolios) {
+		listed = portfolios;
+	}
+
+	/** How many portfolios the last full listing had, or null if this pod hasn't served one */
+	public Integer getListed() {
+		return listed;
+	}
+
+	/** A compact, read-only copy of the whole index, grouped by owner, for whole-book calculations such as
+	 *  stress tests.  Building it is linear in the number of holdings, and it's only rebuilt after a change.
+	 */
+	public synchronized Book snapshot() {
+		if ((book != null) && (book.modifications == modifications)) return book;
+
+		int[] start = new int[slotCount + 1];
+		for (Holdings holdings : bySymbol.values()) {
+			for (int index = 0; index < holdings.size; index++) start[holdings.slots[index] + 1]++;
+		}
+		for (int slot = 0; slot < slotCount; slot++) start[slot + 1] += start[slot];
+
+		String[] symbols = new String[bySymbol.size()];
+		int[] symbolIDs = new int[start[slotCount]];
+		double[] values = new double[start[slotCount]];
+		int[] next = Arrays.copyOf(start, slotCount);
+		int symbolID = 0;
+		for (Map.Entry<String, Holdings> entry : bySymbol.entrySet()) {
+			symbols[symbolID] = entry.getKey();
+			Holdings holdings = entry.getValue();
+			for (int index = 0; index < holdings.size; index++) {
+				int position = next[holdings.slots[index]]++;
+				symbolIDs[position] = symbolID;
+				values[position] = holdings.totals[index];
+			}
+			symbolID++;
+		}
+
+		book = new Book(Arrays.copyOf(owners, slotCount), symbols, start, symbolIDs, values, modifications);
+		return book;
+	}
+
+	/** The holdings of owner slot n are at positions start[n] up to start[n+1] of symbolIDs and values; slots
+	 *  freed by deleted owners have a null owner and no holdings.
+	 */
+	public static class Book {
+		final String[] owners;
+		final String[] symbols;
+		final int[] start;
+		final int[] symbolIDs;
+		final double[] values;
+		private final long modifications;
+
+		private Book(String[] owners, String[] symbols, int[] start, int[] symbolIDs, double[] values, long modifications) {
+			this.owners = owners;
+			this.symbols = symbols;
+			this.start = start;
+			this.symbolIDs = symbolIDs;
+			this.values = values;
+			this.modifications = modifications;
+		}
+	}
+
+	private int slotFor(String owner) {
+		Integer slot = slots.get(owner);
+		if (slot != null) return slot;
+
+		slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pop();
+		if (slot >= owners.length) {
+			int capacity = owners.length * 2;
+			owners = Arrays.copyOf(owners, capacity);
+			ownerSymbols = Arrays.copyOf(ownerSymbols, capacity);
+		}
+		owners[slot] = owner;
+		slots.put(owner, slot);
+		return slot;
+	}
+
+	private void unindex(int slot) {
+		String[] symbols = ownerSymbols[slot];
+		if (symbols == null) return;
+		for (String symbol : symbols) {
+			Holdings holdings = bySymbol.get(symbol);
+			if (holdings == null) continue;
+			holdings.remove(slot);
+			if (holdings.size == 0) bySymbol.remove(symbol);
+		}
+		ownerSymbols[slot] = null;
+	}
+
+	/** Every owner's holding of one symbol; removal swaps in the last entry, so order isn't kept */
+	private class Holdings {
+		private int[] slots = new int[8];
+		private int[] shares = new int[8];
+		private double[] totals = new double[8];
+		private Map<Integer, Integer> positions = new HashMap<Integer, Integer>(); //owner slot to index
+		private int size = 0;
+
+		private void add(int slot, int holdingShares, double holdingTotal) {
+			if (size == slots.length) {
+				slots = Arrays.copyOf(slots, size * 2);
+				shares = Arrays.copyOf(shares, size * 2);
+				totals = Arrays.copyOf(totals, size * 2);
+			}
+			slots[size] = slot;
+			shares[size] = holdingShares;
+			totals[size] = holdingTotal;
+			positions.put(slot, size);
+			size++;
+		}
+
+		private void remove(int slot) {
+			Integer index = positions.remove(slot);
+			if (index == null) return;
+			size--;
+			if (index < size) {
+				slots[index] = slots[size];
+				shares[index] = shares[size];
+				totals[index] = totals[size];
+				positions.put(slots[index], index);
+			}
+		}
+
+		/** Each index is written by just one thread, so the parallel pass needs no further locking */
+		private void reprice(double price) {
+			if (size >= parallelThreshold) {
+				IntStream.range(0, size).parallel().forEach(index -> reprice(index, price));
+			} else {
+				for (int index = 0; index < size; index++) reprice(index, price);
+			}
+		}
+
+		private void reprice(int index, double price) {
+			totals[index] = shares[index] * price;
+		}
+	}
+}
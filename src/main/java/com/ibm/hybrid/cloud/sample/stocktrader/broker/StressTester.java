@@ -0,0 +1,138 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StressImpact;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StressResult;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+@ApplicationScoped
+/** Works out what a set of per-symbol price shocks would do to every indexed owner's holdings, over the compact
+ *  copy of the book kept by the RevaluationEngine (so only the brokers this pod has cached, which is all of them
+ *  after a GET /).  Owners are split into ranges of STRESS_CHUNK_SIZE, each evaluated in a fork-join task writing
+ *  only its own owners' results, and the totals are summed on the way back up.
+ */
+public class StressTester {
+	private static Logger logger = Logger.getLogger(StressTester.class.getName());
+
+	private static int chunkSize = 4096;
+
+	private @Inject RevaluationEngine revaluation;
+
+	static {
+		chunkSize = Math.max(1, BrokerService.getIntFromEnv("STRESS_CHUNK_SIZE", chunkSize));
+	}
+
+	/** Returns the book-wide totals, plus up to limit of the affected owners (all of them if limit is negative) */
+	public StressResult run(Map<String, Double> shocks, int limit) {
+		long start = System.nanoTime();
+		RevaluationEngine.Book book = revaluation.snapshot();
+
+		double[] factors = new double[book.symbols.length]; //fractional change per symbol ID; 0 if not shocked
+		if (shocks != null) for (int symbolID = 0; symbolID < factors.length; symbolID++) {
+			Double shock = shocks.get(book.symbols[symbolID]);
+			if (shock != null) factors[symbolID] = shock;
+		}
+
+		int slots = book.owners.length;
+		double[] before = new double[slots];
+		double[] change = new double[slots];
+		double[] totals = ForkJoinPool.commonPool().invoke(new Evaluation(book, factors, before, change, 0, slots));
+
+		Integer[] affected = new Integer[slots];
+		int count = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			if ((book.owners[slot] != null) && (change[slot] != 0.0)) affected[count++] = slot;
+		}
+		Arrays.sort(affected, 0, count, (a, b) -> Double.compare(change[a], change[b])); //biggest loss first
+
+		int reported = (limit < 0) ? count : Math.min(limit, count);
+		StressImpact[] impacts = new StressImpact[reported];
+		for (int index = 0; index < reported; index++) {
+			int slot = affected[index];
+			impacts[index] = new StressImpact(book.owners[slot], before[slot], before[slot] + change[slot], change[slot]);
+		}
+
+		logger.fine("Stress tested "+(int) totals[2]+" owners in "+(System.nanoTime() - start) / 1000000+" ms; "+count+" affected");
+		StressResult result = new StressResult((int) totals[2], totals[0], totals[0] + totals[1], totals[1], impacts);
+		result.setPortfolios(revaluation.getListed());
+		return result;
+	}
+
+	/** Evaluates a range of owner slots, returning {total before, total change, owner count} for the range */
+	private static class Evaluation extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+
+		private RevaluationEngine.Book book;
+		private double[] factors;
+		private double[] before;
+		private double[] change;
+		private int from;
+		private int to;
+
+		private Evaluation(RevaluationEngine.Book book, double[] factors, double[] before, double[] change, int from, int to) {
+			this.book = book;
+			this.factors = factors;
+			this.before = before;
+			this.change = change;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected double[] compute() {
+			if (to - from > chunkSize) {
+				int middle = (from + to) >>> 1;
+				Evaluation left = new Evaluation(book, factors, before, change, from, middle);
+				left.fork();
+				double[] right = new Evaluation(book, factors, before, change, middle, to).compute();
+				double[] sums = left.join();
+				for (int index = 0; index < sums.length; index++) sums[index] += right[index];
+				return sums;
+			}
+
+			double totalBefore = 0.0;
+			double totalChange = 0.0;
+			int owners = 0;
+			for (int slot = from; slot < to; slot++) {
+				if (book.owners[slot] == null) continue;
+				double value = 0.0;
+				double delta = 0.0;
+				for (int position = book.start[slot]; position < book.start[slot + 1]; position++) {
+					value += book.values[position];
+					delta += book.values[position] * factors[book.symbolIDs[position]];
+				}
+				before[slot] = value;
+				change[slot] = delta;
+				totalBefore += value;
+				totalChange += delta;
+				owners++;
+			}
+			return new double[] {totalBefore, totalChange, owners};
+		}
+	}
+}
@@ -16,10 +16,16 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.broker.client;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamCall;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamEventFilter;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamLimitFilter;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Account;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Feedback;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.WatsonInput;
 
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
 import javax.enterprise.context.ApplicationScoped;
 
 import javax.ws.rs.ApplicationPath;
@@ -35,6 +41,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.MediaType;
 
+import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
 
@@ -42,7 +49,12 @@ import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 @Path("/")
 @ApplicationScoped
 @RegisterRestClient
-/** mpRestClient "remote" interface for the Account microservice */
+@RegisterProvider(DownstreamLimitFilter.class)
+@RegisterProvider(DownstreamEventFilter.class)
+@RegisterProvider(DownstreamCall.Propagator.class)
+/** mpRestClient "remote" interface for the Account microservice.  The Async variants return right away and
+ *  complete the CompletionStage when the response arrives.
+ */
 public interface AccountClient {
 	@GET
 	@Path("/")
@@ -50,33 +62,81 @@ public interface AccountClient {
 	@Produces(MediaType.APPLICATION_JSON)
 	public Account[] getAccounts(@HeaderParam("Authorization") String jwt);
 
+	@GET
+	@Path("/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account[]> getAccountsAsync(@HeaderParam("Authorization") String jwt);
+
+	@GET
+	@Path("/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Account[] getAccounts(@HeaderParam("Authorization") String jwt, @QueryParam("id") List<String> ids, @QueryParam("total") List<Double> totals);
+
+	@GET
+	@Path("/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account[]> getAccountsAsync(@HeaderParam("Authorization") String jwt, @QueryParam("id") List<String> ids, @QueryParam("total") List<Double> totals);
+
 	@GET
 	@Path("/{id}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	public Account getAccount(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, @QueryParam("total") double total);
 
+	@GET
+	@Path("/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account> getAccountAsync(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, @QueryParam("total") double total);
+
 	@POST
 	@Path("/{id}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	public Account createAccount(@HeaderParam("Authorization") String jwt, @PathParam("id") String id);
 
+	@POST
+	@Path("/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account> createAccountAsync(@HeaderParam("Authorization") String jwt, @PathParam("id") String id);
+
 	@PUT
 	@Path("/{id}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	public Account updateAccount(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, @QueryParam("total") double total);
 
+	@PUT
+	@Path("/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account> updateAccountAsync(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, @QueryParam("total") double total);
+
 	@DELETE
 	@Path("/{id}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	public Account deleteAccount(@HeaderParam("Authorization") String jwt, @PathParam("id") String id);
 
+	@DELETE
+	@Path("/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Account> deleteAccountAsync(@HeaderParam("Authorization") String jwt, @PathParam("id") String id);
+
 	@POST
 	@Path("/{id}/feedback")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	public Feedback submitFeedback(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, WatsonInput input);
+
+	@POST
+	@Path("/{id}/feedback")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Feedback> submitFeedbackAsync(@HeaderParam("Authorization") String jwt, @PathParam("id") String id, WatsonInput input);
 }
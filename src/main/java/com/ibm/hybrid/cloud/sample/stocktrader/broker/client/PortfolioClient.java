@@ -16,10 +16,15 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.broker.client;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamCall;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamEventFilter;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamLimitFilter;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Feedback;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
 import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.WatsonInput;
 
+import java.util.concurrent.CompletionStage;
+
 import javax.enterprise.context.ApplicationScoped;
 
 import javax.ws.rs.ApplicationPath;
@@ -35,6 +40,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.MediaType;
 
+import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
 
@@ -42,30 +48,60 @@ import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 @Path("/")
 @ApplicationScoped
 @RegisterRestClient
-/** mpRestClient "remote" interface for the Portfolio microservice */
+@RegisterProvider(DownstreamLimitFilter.class)
+@RegisterProvider(DownstreamEventFilter.class)
+@RegisterProvider(DownstreamCall.Propagator.class)
+/** mpRestClient "remote" interface for the Portfolio microservice.  Each operation also has an Async
+ *  variant, which returns right away and completes the CompletionStage when the response arrives.
+ */
 public interface PortfolioClient {
 	@GET
 	@Path("/")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Portfolio[] getPortfolios(@HeaderParam("Authorization") String jwt);
 
+	@GET
+	@Path("/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Portfolio[]> getPortfoliosAsync(@HeaderParam("Authorization") String jwt);
+
 	@POST
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Portfolio createPortfolio(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("accountID") String accountID);
 
+	@POST
+	@Path("/{owner}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Portfolio> createPortfolioAsync(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("accountID") String accountID);
+
 	@GET
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Portfolio getPortfolio(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("immutable") boolean immutable);
 
+	@GET
+	@Path("/{owner}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Portfolio> getPortfolioAsync(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("immutable") boolean immutable);
+
 	@PUT
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Portfolio updatePortfolio(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("symbol") String symbol, @QueryParam("shares") int shares, @QueryParam("commission") double commission);
 
+	@PUT
+	@Path("/{owner}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Portfolio> updatePortfolioAsync(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner, @QueryParam("symbol") String symbol, @QueryParam("shares") int shares, @QueryParam("commission") double commission);
+
 	@DELETE
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Portfolio deletePortfolio(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner);
+
+	@DELETE
+	@Path("/{owner}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Portfolio> deletePortfolioAsync(@HeaderParam("Authorization") String jwt, @PathParam("owner") String owner);
 }
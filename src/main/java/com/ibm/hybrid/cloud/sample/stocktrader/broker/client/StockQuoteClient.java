@@ -0,0 +1,65 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.client;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamCall;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamEventFilter;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamLimitFilter;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Quote;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.ws.rs.ApplicationPath;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
+import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
+
+
+@ApplicationPath("/")
+@Path("/")
+@ApplicationScoped
+@RegisterRestClient
+@RegisterProvider(DownstreamLimitFilter.class)
+@RegisterProvider(DownstreamEventFilter.class)
+@RegisterProvider(DownstreamCall.Propagator.class)
+/** mpRestClient "remote" interface for the Stock Quote microservice */
+public interface StockQuoteClient {
+	@GET
+	@Path("/{symbol}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Quote getStockQuote(@HeaderParam("Authorization") String jwt, @PathParam("symbol") String symbol);
+
+	@GET
+	@Path("/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Quote[] getStockQuotes(@HeaderParam("Authorization") String jwt, @QueryParam("symbol") List<String> symbols);
+
+	@GET
+	@Path("/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public CompletionStage<Quote[]> getStockQuotesAsync(@HeaderParam("Authorization") String jwt, @QueryParam("symbol") List<String> symbols);
+}
@@ -16,6 +16,12 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.broker.client;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamCall;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamEventFilter;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.DownstreamLimitFilter;
+
+import java.util.concurrent.CompletionStage;
+
 import javax.enterprise.context.ApplicationScoped;
 
 import javax.ws.rs.ApplicationPath;
@@ -26,16 +32,25 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.Path;
+import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
 @ApplicationPath("/")
 @Path("/")
 @ApplicationScoped
 @RegisterRestClient
+@RegisterProvider(DownstreamLimitFilter.class)
+@RegisterProvider(DownstreamEventFilter.class)
+@RegisterProvider(DownstreamCall.Propagator.class)
 /** mpRestClient "remote" interface for the trade history microservice */
 public interface TradeHistoryClient {
     @GET
     @Path("/returns/{owner}")
     @Produces(MediaType.TEXT_PLAIN)
     public String getReturns(@HeaderParam("Authorization") String jwt, @PathParam("owner") String ownerName, @QueryParam("currentValue") Double portfolioValue);
+
+    @GET
+    @Path("/returns/{owner}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public CompletionStage<String> getReturnsAsync(@HeaderParam("Authorization") String jwt, @PathParam("owner") String ownerName, @QueryParam("currentValue") Double portfolioValue);
 }
@@ -19,14 +19,18 @@ package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
 import java.util.Iterator;
+import java.util.Set;
 
 //JSON-P 1.0 (JSR 353).  This replaces my old usage of IBM's JSON4J (com.ibm.json.java.JSONObject)
 import javax.json.Json;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.bind.annotation.JsonbTransient;
+import javax.json.bind.annotation.JsonbTypeSerializer;
 
 
+@JsonbTypeSerializer(BrokerSerializer.class)
 /** JSON-B POJO class representing a Broker JSON object */
 public class Broker {
     private static String UNKNOWN_STRING = "Unknown";
@@ -42,6 +46,10 @@ public class Broker {
     private String sentiment;
     private double nextCommission;
     private JsonObject stocks;
+    private String version;
+    private String since;     //only set on a delta response, in which case stocks holds just the added or changed holdings
+    private String[] removed; //symbols no longer held since that version; also only set on a delta response
+    private Set<String> fields; //which fields to serialize; null means all of them
     private NumberFormat currency = null;
     private static double ERROR = -1.0;
 
@@ -65,6 +73,16 @@ public class Broker {
         setNextCommission(initialNextCommission);
     }
 
+    public Broker(Broker other) { //copy constructor; stocks is an immutable JsonObject, so it can be shared
+        this(other.getOwner(), other.getTotal(), other.getLoyalty(), other.getBalance(), other.getCommissions(),
+             other.getFree(), other.getSentiment(), other.getNextCommission());
+        setStocks(other.getStocks());
+        setVersion(other.getVersion());
+        setSince(other.getSince());
+        setRemoved(other.getRemoved());
+        setFields(other.getFields());
+    }
+
     public Broker(Portfolio portfolio, Account account) {
         if (portfolio!=null) {
             setOwner(portfolio.getOwner());
@@ -161,6 +179,43 @@ public class Broker {
         stocks = newStocks;
     }
 
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String newVersion) {
+        version = newVersion;
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    public void setSince(String newSince) {
+        since = newSince;
+    }
+
+    public String[] getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(String[] newRemoved) {
+        removed = newRemoved;
+    }
+
+    @JsonbTransient
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(Set<String> newFields) {
+        fields = newFields;
+    }
+
+    public boolean includes(String field) {
+        return (fields == null) || fields.contains(field);
+    }
+
     public void addStock(Stock newStock) {
         if (newStock != null) {
             String symbol = newStock.getSymbol();
@@ -0,0 +1,76 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing the outcome for one owner of a bulk Broker lookup */
+public class BrokerResult {
+    private String owner;
+    private int status;
+    private Broker broker;
+    private String error;
+
+
+    public BrokerResult() { //default constructor
+    }
+
+    public BrokerResult(String initialOwner) { //primary key constructor
+        setOwner(initialOwner);
+    }
+
+    public BrokerResult(String initialOwner, int initialStatus, Broker initialBroker, String initialError) {
+        setOwner(initialOwner);
+        setStatus(initialStatus);
+        setBroker(initialBroker);
+        setError(initialError);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int newStatus) {
+        status = newStatus;
+    }
+
+    public Broker getBroker() {
+        return broker;
+    }
+
+    public void setBroker(Broker newBroker) {
+        broker = newBroker;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String newError) {
+        error = newError;
+    }
+
+    public String toString() {
+        return "{\"owner\": \""+owner+"\", \"status\": "+status+", \"broker\": "+broker+", \"error\": \""+error+"\"}";
+    }
+}
@@ -0,0 +1,62 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+//JSON-B 1.0 (JSR 367)
+import javax.json.bind.serializer.JsonbSerializer;
+import javax.json.bind.serializer.SerializationContext;
+import javax.json.stream.JsonGenerator;
+
+
+/** JSON-B serializer for Broker that writes only the fields the caller asked for (all of them by default).
+ *  Skipped fields, notably the potentially large stocks object, are never serialized at all.
+ */
+public class BrokerSerializer implements JsonbSerializer<Broker> {
+    public void serialize(Broker broker, JsonGenerator generator, SerializationContext ctx) {
+        generator.writeStartObject();
+
+        String owner = broker.getOwner();
+        if (owner != null) generator.write("owner", owner);
+        if (broker.includes("total")) generator.write("total", broker.getTotal());
+
+        String loyalty = broker.getLoyalty();
+        if ((loyalty != null) && broker.includes("loyalty")) generator.write("loyalty", loyalty);
+        if (broker.includes("balance")) generator.write("balance", broker.getBalance());
+        if (broker.includes("commissions")) generator.write("commissions", broker.getCommissions());
+        if (broker.includes("free")) generator.write("free", broker.getFree());
+
+        String sentiment = broker.getSentiment();
+        if ((sentiment != null) && broker.includes("sentiment")) generator.write("sentiment", sentiment);
+        if (broker.includes("nextCommission")) generator.write("nextCommission", broker.getNextCommission());
+
+        if ((broker.getStocks() != null) && broker.includes("stocks")) generator.write("stocks", broker.getStocks());
+        String version = broker.getVersion();
+        if ((version != null) && broker.includes("version")) generator.write("version", version);
+
+        String since = broker.getSince();
+        if (since != null) generator.write("since", since);
+
+        String[] removed = broker.getRemoved();
+        if (removed != null) {
+            generator.writeStartArray("removed");
+            for (String symbol : removed) generator.write(symbol);
+            generator.writeEnd();
+        }
+
+        generator.writeEnd();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+import java.util.Arrays;
+
+/** JSON-B POJO class representing everything the UI shows for one owner: their broker and its returns, plus the
+ *  names of any optional microservices (Account, TradeHistory) that failed, whose fields are therefore defaults
+ */
+public class Dashboard {
+    private String owner;
+    private Broker broker;
+    private String returns;
+    private String[] unavailable = new String[0];
+
+
+    public Dashboard() { //default constructor
+    }
+
+    public Dashboard(String initialOwner) { //primary key constructor
+        setOwner(initialOwner);
+    }
+
+    public Dashboard(String initialOwner, Broker initialBroker, String initialReturns, String[] initialUnavailable) {
+        setOwner(initialOwner);
+        setBroker(initialBroker);
+        setReturns(initialReturns);
+        setUnavailable(initialUnavailable);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public Broker getBroker() {
+        return broker;
+    }
+
+    public void setBroker(Broker newBroker) {
+        broker = newBroker;
+    }
+
+    public String getReturns() {
+        return returns;
+    }
+
+    public void setReturns(String newReturns) {
+        returns = newReturns;
+    }
+
+    public String[] getUnavailable() {
+        return unavailable;
+    }
+
+    public void setUnavailable(String[] newUnavailable) {
+        unavailable = newUnavailable;
+    }
+
+    public String toString() {
+        return "{\"owner\": \""+owner+"\", \"broker\": "+broker+", \"returns\": \""+returns+"\", \"unavailable\": "+Arrays.toString(unavailable)+"}";
+    }
+}
@@ -0,0 +1,35 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** A Broker that's already been serialized, such as one read back from the off-heap store.  Only the owner and
+ *  version are filled in; EncodedBrokerWriter sends the bytes as they are, so nothing else about it gets looked at.
+ */
+public class EncodedBroker extends Broker {
+    private byte[] encoded;
+
+
+    public EncodedBroker(String initialOwner, String initialVersion, byte[] initialEncoded) {
+        super(initialOwner);
+        setVersion(initialVersion);
+        encoded = initialEncoded;
+    }
+
+    public byte[] getEncoded() {
+        return encoded;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing a queued feedback submission: its status, and once done, its Feedback */
+public class FeedbackTicket {
+    public static final String QUEUED = "queued";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private String id;
+    private String owner;
+    private String status;
+    private Feedback feedback;
+    private String error;
+
+
+    public FeedbackTicket() { //default constructor
+    }
+
+    public FeedbackTicket(String initialId, String initialOwner) {
+        setId(initialId);
+        setOwner(initialOwner);
+        setStatus(QUEUED);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String newId) {
+        id = newId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String newStatus) {
+        status = newStatus;
+    }
+
+    public Feedback getFeedback() {
+        return feedback;
+    }
+
+    public void setFeedback(Feedback newFeedback) {
+        feedback = newFeedback;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String newError) {
+        error = newError;
+    }
+
+    public String toString() {
+        return "{\"id\": \""+id+"\", \"owner\": \""+owner+"\", \"status\": \""+status+"\", \"feedback\": "+feedback+", \"error\": \""+error+"\"}";
+    }
+}
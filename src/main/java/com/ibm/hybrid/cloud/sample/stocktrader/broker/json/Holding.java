@@ -0,0 +1,62 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing how many shares of a symbol one owner holds */
+public class Holding {
+    private String owner;
+    private String symbol;
+    private int shares;
+
+
+    public Holding() { //default constructor
+    }
+
+    public Holding(String initialOwner, String initialSymbol, int initialShares) {
+        setOwner(initialOwner);
+        setSymbol(initialSymbol);
+        setShares(initialShares);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(String newSymbol) {
+        symbol = newSymbol;
+    }
+
+    public int getShares() {
+        return shares;
+    }
+
+    public void setShares(int newShares) {
+        shares = newShares;
+    }
+
+    public String toString() {
+        return "{\"owner\": \""+owner+"\", \"symbol\": \""+symbol+"\", \"shares\": "+shares+"}";
+    }
+}
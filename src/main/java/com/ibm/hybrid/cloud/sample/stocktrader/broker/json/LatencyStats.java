@@ -0,0 +1,106 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing the recent latency of one broker endpoint or downstream call, in milliseconds */
+public class LatencyStats {
+    private String name;
+    private long count;
+    private long failures;
+    private double p50;
+    private double p95;
+    private double p99;
+    private double max;
+
+
+    public LatencyStats() { //default constructor
+    }
+
+    public LatencyStats(String initialName) { //primary key constructor
+        setName(initialName);
+    }
+
+    public LatencyStats(String initialName, long initialCount, long initialFailures, double initialP50, double initialP95, double initialP99, double initialMax) {
+        setName(initialName);
+        setCount(initialCount);
+        setFailures(initialFailures);
+        setP50(initialP50);
+        setP95(initialP95);
+        setP99(initialP99);
+        setMax(initialMax);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String newName) {
+        name = newName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long newCount) {
+        count = newCount;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public void setFailures(long newFailures) {
+        failures = newFailures;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public void setP50(double newP50) {
+        p50 = newP50;
+    }
+
+    public double getP95() {
+        return p95;
+    }
+
+    public void setP95(double newP95) {
+        p95 = newP95;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public void setP99(double newP99) {
+        p99 = newP99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public void setMax(double newMax) {
+        max = newMax;
+    }
+
+    public String toString() {
+        return "{\"name\": \""+name+"\", \"count\": "+count+", \"failures\": "+failures+", \"p50\": "+p50+", \"p95\": "+p95+", \"p99\": "+p99+", \"max\": "+max+"}";
+    }
+}
@@ -0,0 +1,82 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing the state of one concurrency limiter */
+public class LimiterStatus {
+    private String name;
+    private int limit;
+    private int inFlight;
+    private long rejectedReads;
+    private long rejectedWrites;
+
+
+    public LimiterStatus() { //default constructor
+    }
+
+    public LimiterStatus(String initialName, int initialLimit, int initialInFlight, long initialRejectedReads, long initialRejectedWrites) {
+        setName(initialName);
+        setLimit(initialLimit);
+        setInFlight(initialInFlight);
+        setRejectedReads(initialRejectedReads);
+        setRejectedWrites(initialRejectedWrites);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String newName) {
+        name = newName;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int newLimit) {
+        limit = newLimit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public void setInFlight(int newInFlight) {
+        inFlight = newInFlight;
+    }
+
+    public long getRejectedReads() {
+        return rejectedReads;
+    }
+
+    public void setRejectedReads(long newRejectedReads) {
+        rejectedReads = newRejectedReads;
+    }
+
+    public long getRejectedWrites() {
+        return rejectedWrites;
+    }
+
+    public void setRejectedWrites(long newRejectedWrites) {
+        rejectedWrites = newRejectedWrites;
+    }
+
+    public String toString() {
+        return "{\"name\": \""+name+"\", \"limit\": "+limit+", \"inFlight\": "+inFlight+", \"rejectedReads\": "+rejectedReads+", \"rejectedWrites\": "+rejectedWrites+"}";
+    }
+}
@@ -38,6 +38,8 @@ import javax.json.JsonObjectBuilder;
 @Entity
 @Table
 @NamedQuery(name = "Portfolio.findAll", query = "SELECT p FROM Portfolio p")
+@NamedQuery(name = "Portfolio.findByOwnerWithStocks",
+            query = "SELECT DISTINCT p FROM Portfolio p LEFT JOIN FETCH p.stockList WHERE p.owner = :owner")
 /** JSON-B POJO class representing a Portfolio JSON object */
 public class Portfolio {
 
@@ -54,7 +56,7 @@ public class Portfolio {
     JsonObject stocks;
 
     @JsonbTransient
-    @OneToMany(mappedBy = "broker", cascade = CascadeType.ALL)
+    @OneToMany(mappedBy = "portfolio", cascade = CascadeType.ALL)
     private List<Stock> stockList = new ArrayList<Stock>();
 
     public Portfolio() { //default constructor
@@ -94,6 +96,11 @@ public class Portfolio {
         accountID = newAccountID;
     }
 
+    @JsonbTransient
+    public List<Stock> getStockList() {
+        return stockList;
+    }
+
     public JsonObject getStocks() {
         return stocks;
     }
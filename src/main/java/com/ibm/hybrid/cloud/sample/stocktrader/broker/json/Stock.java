@@ -27,6 +27,7 @@ import javax.persistence.ManyToOne;
 
 @Entity
 @Table
+@IdClass(StockId.class)
 @NamedQuery(name = "Stock.findByOwner", query = "SELECT s FROM Stock s WHERE s.portfolio.owner = :owner")
 @NamedQuery(name = "Stock.findByOwnerAndSymbol", 
             query = "SELECT s FROM Stock s WHERE s.portfolio.owner = :owner AND s.symbol = :symbol")
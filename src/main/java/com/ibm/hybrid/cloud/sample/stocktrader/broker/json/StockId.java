@@ -0,0 +1,47 @@
+/*
+       Copyright 2017-2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/** JPA composite primary key of a Stock: the symbol, plus the owner of the Portfolio holding it */
+public class StockId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String symbol;
+    private String portfolio;
+
+
+    public StockId() { //default constructor
+    }
+
+    public StockId(String initialSymbol, String initialPortfolio) {
+        symbol = initialSymbol;
+        portfolio = initialPortfolio;
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StockId)) return false;
+        StockId other = (StockId) obj;
+        return Objects.equals(symbol, other.symbol) && Objects.equals(portfolio, other.portfolio);
+    }
+
+    public int hashCode() {
+        return Objects.hash(symbol, portfolio);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+/** JSON-B POJO class representing what a stress test scenario does to one owner's holdings */
+public class StressImpact {
+    private String owner;
+    private double before;
+    private double after;
+    private double change;
+
+
+    public StressImpact() { //default constructor
+    }
+
+    public StressImpact(String initialOwner, double initialBefore, double initialAfter, double initialChange) {
+        setOwner(initialOwner);
+        setBefore(initialBefore);
+        setAfter(initialAfter);
+        setChange(initialChange);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public double getBefore() {
+        return before;
+    }
+
+    public void setBefore(double newBefore) {
+        before = newBefore;
+    }
+
+    public double getAfter() {
+        return after;
+    }
+
+    public void setAfter(double newAfter) {
+        after = newAfter;
+    }
+
+    public double getChange() {
+        return change;
+    }
+
+    public void setChange(double newChange) {
+        change = newChange;
+    }
+
+    public String toString() {
+        return "{\"owner\": \""+owner+"\", \"before\": "+before+", \"after\": "+after+", \"change\": "+change+"}";
+    }
+}
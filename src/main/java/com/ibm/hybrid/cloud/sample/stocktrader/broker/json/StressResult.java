@@ -0,0 +1,98 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+import java.util.Arrays;
+
+/** JSON-B POJO class representing the outcome of a stress test: totals across the indexed owners, plus the owners
+ *  affected, biggest loss first.  Since only the brokers this pod has cached are indexed, portfolios gives the
+ *  number in the last full listing (GET /) this pod served, which indexed them all, so coverage can be judged; it's
+ *  null if there hasn't been one.
+ */
+public class StressResult {
+    private int owners;
+    private Integer portfolios;
+    private double before;
+    private double after;
+    private double change;
+    private StressImpact[] impacts;
+
+
+    public StressResult() { //default constructor
+    }
+
+    public StressResult(int initialOwners, double initialBefore, double initialAfter, double initialChange, StressImpact[] initialImpacts) {
+        setOwners(initialOwners);
+        setBefore(initialBefore);
+        setAfter(initialAfter);
+        setChange(initialChange);
+        setImpacts(initialImpacts);
+    }
+
+    public int getOwners() {
+        return owners;
+    }
+
+    public void setOwners(int newOwners) {
+        owners = newOwners;
+    }
+
+    public Integer getPortfolios() {
+        return portfolios;
+    }
+
+    public void setPortfolios(Integer newPortfolios) {
+        portfolios = newPortfolios;
+    }
+
+    public double getBefore() {
+        return before;
+    }
+
+    public void setBefore(double newBefore) {
+        before = newBefore;
+    }
+
+    public double getAfter() {
+        return after;
+    }
+
+    public void setAfter(double newAfter) {
+        after = newAfter;
+    }
+
+    public double getChange() {
+        return change;
+    }
+
+    public void setChange(double newChange) {
+        change = newChange;
+    }
+
+    public StressImpact[] getImpacts() {
+        return impacts;
+    }
+
+    public void setImpacts(StressImpact[] newImpacts) {
+        impacts = newImpacts;
+    }
+
+    public String toString() {
+        return "{\"owners\": "+owners+", \"portfolios\": "+portfolios+", \"before\": "+before+", \"after\": "+after+", \"change\": "+change
+               +", \"impacts\": "+Arrays.toString(impacts)+"}";
+    }
+}
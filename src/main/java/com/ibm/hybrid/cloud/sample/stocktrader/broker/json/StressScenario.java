@@ -0,0 +1,44 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker.json;
+
+import java.util.Map;
+
+/** JSON-B POJO class representing a stress test scenario: the fractional price change to apply to each symbol */
+public class StressScenario {
+    private Map<String, Double> shocks; //for example, {"IBM": -0.1} for IBM dropping 10%
+
+
+    public StressScenario() { //default constructor
+    }
+
+    public StressScenario(Map<String, Double> initialShocks) {
+        setShocks(initialShocks);
+    }
+
+    public Map<String, Double> getShocks() {
+        return shocks;
+    }
+
+    public void setShocks(Map<String, Double> newShocks) {
+        shocks = newShocks;
+    }
+
+    public String toString() {
+        return "{\"shocks\": "+shocks+"}";
+    }
+}
@@ -0,0 +1,162 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Account;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ProcessingException;
+
+import org.eclipse.microprofile.metrics.Histogram;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccountBatcherTest {
+    private ScheduledExecutorService executor;
+    private AccountBatcher batcher;
+    private List<List<String>> calls;
+    private List<List<Double>> totals;
+    private List<Long> sizes;
+    private RuntimeException failure;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        calls = Collections.synchronizedList(new ArrayList<List<String>>());
+        totals = Collections.synchronizedList(new ArrayList<List<Double>>());
+        sizes = Collections.synchronizedList(new ArrayList<Long>());
+        failure = null;
+
+        AccountClient client = TestSupport.stub(AccountClient.class, (proxy, method, args) -> {
+            if (!method.getName().equals("getAccountsAsync") || (args.length != 3)) throw new UnsupportedOperationException(method.getName());
+            @SuppressWarnings("unchecked")
+            List<String> ids = (List<String>) args[1];
+            calls.add(new ArrayList<String>(ids));
+            @SuppressWarnings("unchecked")
+            List<Double> values = (List<Double>) args[2];
+            totals.add(new ArrayList<Double>(values));
+            CompletableFuture<Account[]> result = new CompletableFuture<Account[]>();
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                Account[] accounts = new Account[ids.size()];
+                for (int index = 0; index < accounts.length; index++) {
+                    accounts[index] = new Account("owner of " + ids.get(index));
+                    accounts[index].set_id(ids.get(index));
+                }
+                result.complete(accounts);
+            }
+            return result;
+        });
+
+        batcher = new AccountBatcher();
+        TestSupport.inject(batcher, "accountClient", client);
+        TestSupport.inject(batcher, "retries", new RetryBudget());
+        TestSupport.inject(batcher, "scheduler", TestSupport.managed(executor));
+        TestSupport.inject(batcher, "batchSizes", TestSupport.stub(Histogram.class, (proxy, method, args) -> {
+            if (method.getName().equals("update")) sizes.add(((Number) args[0]).longValue());
+            return null;
+        }));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void lookupsFromDifferentCallersShareOneCall() throws Exception {
+        CompletableFuture<Account> first = batcher.getAccountAsync("a1", 100.0);
+        CompletableFuture<Account> second = batcher.getAccountAsync("a2", 200.0);
+        CompletableFuture<Account> again = batcher.getAccountAsync("a1", 100.0);
+
+        assertEquals("a1", first.get(5, TimeUnit.SECONDS).get_id());
+        assertEquals("a2", second.get(5, TimeUnit.SECONDS).get_id());
+        assertEquals("a1", again.get(5, TimeUnit.SECONDS).get_id());
+
+        assertEquals(1, calls.size());
+        assertEquals(2, calls.get(0).size()); //a1 only asked for once
+        assertEquals(Long.valueOf(2), sizes.get(0));
+    }
+
+    @Test
+    public void sameAccountAtAnotherTotalGetsItsOwnCall() throws Exception {
+        CompletableFuture<Account> stale = batcher.getAccountAsync("a1", 100.0);
+        CompletableFuture<Account> other = batcher.getAccountAsync("a2", 200.0);
+        CompletableFuture<Account> current = batcher.getAccountAsync("a1", 150.0);
+
+        assertEquals("a1", stale.get(5, TimeUnit.SECONDS).get_id());
+        assertEquals("a2", other.get(5, TimeUnit.SECONDS).get_id());
+        assertEquals("a1", current.get(5, TimeUnit.SECONDS).get_id());
+
+        assertEquals(2, calls.size());
+        assertEquals(Arrays.asList("a1", "a2"), calls.get(0));
+        assertEquals(Arrays.asList("a1"), calls.get(1));
+        assertEquals(Arrays.asList(Double.valueOf(150.0)), totals.get(1));
+    }
+
+    @Test
+    public void missingAccountCompletesWithNull() throws Exception {
+        AccountClient empty = TestSupport.stub(AccountClient.class, (proxy, method, args) -> CompletableFuture.completedFuture(new Account[0]));
+        TestSupport.inject(batcher, "accountClient", empty);
+
+        assertNull(batcher.getAccountAsync("nobody", 0.0).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failureReachesEveryWaitingLookup() throws Exception {
+        failure = new ProcessingException("Connection refused");
+        CompletableFuture<Account> first = batcher.getAccountAsync("a1", 100.0);
+        CompletableFuture<Account> second = batcher.getAccountAsync("a2", 200.0);
+
+        for (CompletableFuture<Account> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected the batch failure");
+            } catch (ExecutionException ee) {
+                assertSame(failure, ee.getCause());
+            }
+        }
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void newBatchStartsAfterFlush() throws Exception {
+        batcher.getAccountAsync("a1", 100.0).get(5, TimeUnit.SECONDS);
+        batcher.getAccountAsync("a2", 200.0).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, calls.size());
+        assertTrue(calls.get(1).contains("a2"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.junit.Test;
+
+public class BrokerBroadcasterTest {
+
+    @Test
+    public void subscriptionsAreKnownByWhatTheyProduceNotTheirPath() {
+        assertTrue(BrokerBroadcaster.isSubscription(method("getBrokerEvents")));
+        assertTrue(BrokerBroadcaster.isSubscription(method("getAllBrokerEvents")));
+        assertFalse(BrokerBroadcaster.isSubscription(method("getBroker"))); //even for an owner called "myevents"
+        assertFalse(BrokerBroadcaster.isSubscription(null)); //nothing matched
+    }
+
+    @Test
+    public void sweepDropsClosedSubscribersOfQuietOwners() {
+        BrokerBroadcaster broadcaster = new BrokerBroadcaster();
+        AtomicBoolean closed = new AtomicBoolean(false);
+        broadcaster.subscribe("alice", sink(closed, new AtomicInteger()), sse());
+        assertTrue(broadcaster.isWatched("alice"));
+
+        closed.set(true);
+        broadcaster.sweep();
+
+        assertFalse(broadcaster.isWatched("alice"));
+        assertEquals(0, broadcaster.getWatchedOwnerCount());
+    }
+
+    @Test
+    public void sweepSendsHeartbeatToOpenSubscribers() {
+        BrokerBroadcaster broadcaster = new BrokerBroadcaster();
+        AtomicInteger sent = new AtomicInteger();
+        broadcaster.subscribe("bob", sink(new AtomicBoolean(false), sent), sse());
+
+        broadcaster.sweep();
+        broadcaster.sweep();
+
+        assertEquals(2, sent.get());
+        assertTrue(broadcaster.isWatched("bob"));
+    }
+
+    @Test
+    public void failedHeartbeatUnsubscribes() {
+        BrokerBroadcaster broadcaster = new BrokerBroadcaster();
+        AtomicBoolean closed = new AtomicBoolean(false);
+        SseEventSink sink = (SseEventSink) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SseEventSink.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isClosed": return closed.get();
+                case "close": closed.set(true); return null;
+                case "send":
+                    CompletableFuture<Void> failed = new CompletableFuture<Void>();
+                    failed.completeExceptionally(new java.io.IOException("Broken pipe"));
+                    return failed;
+                default: return null;
+            }
+        });
+        broadcaster.subscribe("carol", sink, sse());
+
+        broadcaster.sweep();
+
+        assertTrue(closed.get());
+        assertEquals(0, broadcaster.getWatchedOwnerCount());
+    }
+
+    private static SseEventSink sink(AtomicBoolean closed, AtomicInteger sent) {
+        return (SseEventSink) Proxy.newProxyInstance(BrokerBroadcasterTest.class.getClassLoader(), new Class<?>[] {SseEventSink.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isClosed": return closed.get();
+                case "close": closed.set(true); return null;
+                case "send": sent.incrementAndGet(); return CompletableFuture.completedFuture(null);
+                default: return null;
+            }
+        });
+    }
+
+    private static Sse sse() {
+        OutboundSseEvent event = (OutboundSseEvent) Proxy.newProxyInstance(BrokerBroadcasterTest.class.getClassLoader(), new Class<?>[] {OutboundSseEvent.class}, (proxy, method, args) -> null);
+        Object[] builder = new Object[1];
+        builder[0] = Proxy.newProxyInstance(BrokerBroadcasterTest.class.getClassLoader(), new Class<?>[] {OutboundSseEvent.Builder.class},
+            (proxy, method, args) -> method.getName().equals("build") ? event : proxy);
+        return (Sse) Proxy.newProxyInstance(BrokerBroadcasterTest.class.getClassLoader(), new Class<?>[] {Sse.class},
+            (proxy, method, args) -> method.getName().equals("newEventBuilder") ? builder[0] : null);
+    }
+
+    private static Method method(String name) {
+        for (Method method : BrokerService.class.getMethods()) {
+            if (method.getName().equals(name)) return method;
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Test;
+
+public class BrokerCacheTest {
+
+    @Test
+    public void versionOnlyChangesWithHoldings() {
+        BrokerCache cache = new BrokerCache();
+        String first = cache.record("alice", broker("alice", stocks("IBM", 10, 1000.0)));
+        String same = cache.record("alice", broker("alice", stocks("IBM", 10, 1000.0)));
+        String changed = cache.record("alice", broker("alice", stocks("IBM", 20, 2000.0)));
+
+        assertEquals(first, same);
+        assertNotEquals(first, changed);
+        assertTrue("version should be pod-qualified: " + first, first.indexOf(':') > 0);
+    }
+
+    @Test
+    public void deltaHasOnlyChangedAndRemovedHoldings() {
+        BrokerCache cache = new BrokerCache();
+        JsonObject before = Json.createObjectBuilder()
+            .add("IBM", holding(10, 1000.0))
+            .add("AAPL", holding(5, 500.0))
+            .add("MSFT", holding(1, 300.0))
+            .build();
+        String since = cache.record("bob", broker("bob", before));
+
+        JsonObject after = Json.createObjectBuilder()
+            .add("IBM", holding(10, 1000.0))
+            .add("AAPL", holding(6, 600.0))
+            .build();
+        Broker current = broker("bob", after);
+        cache.record("bob", current);
+
+        Broker delta = cache.delta(current, since);
+        assertEquals(since, delta.getSince());
+        assertEquals(1, delta.getStocks().size());
+        assertTrue(delta.getStocks().containsKey("AAPL"));
+        assertArrayEquals(new String[] {"MSFT"}, delta.getRemoved());
+    }
+
+    @Test
+    public void foreignVersionGetsFullBroker() {
+        BrokerCache cache = new BrokerCache();
+        String since = cache.record("carol", broker("carol", stocks("IBM", 10, 1000.0)));
+        Broker current = broker("carol", stocks("IBM", 20, 2000.0));
+        cache.record("carol", current);
+
+        //same counter as a version we handed out, but from another pod's epoch
+        String foreign = "otherpod" + since.substring(since.indexOf(':'));
+        Broker answer = cache.delta(current, foreign);
+
+        assertSame(current, answer);
+        assertNull(answer.getSince());
+    }
+
+    @Test
+    public void unknownOwnerGetsFullBroker() {
+        BrokerCache cache = new BrokerCache();
+        Broker current = broker("dave", stocks("IBM", 1, 100.0));
+        assertSame(current, cache.delta(current, "anything:1"));
+    }
+
+    @Test
+    public void offHeapDeltaDecodesTheEarlierHoldings() {
+        BrokerCache cache = new BrokerCache();
+        TestSupport.inject(cache, "offHeap", new OffHeapStore());
+        TestSupport.setStatic(OffHeapStore.class, "capacityMB", 1);
+        try {
+            String since = cache.record("erin", broker("erin", stocks("IBM", 10, 1000.0)), false);
+            assertEquals(since, cache.record("erin", broker("erin", stocks("IBM", 10, 1000.0)), false));
+
+            Broker current = broker("erin", stocks("AAPL", 5, 500.0));
+            cache.record("erin", current, false);
+            Broker delta = cache.delta(current, since);
+
+            assertEquals(since, delta.getSince());
+            assertTrue(delta.getStocks().containsKey("AAPL"));
+            assertArrayEquals(new String[] {"IBM"}, delta.getRemoved());
+        } finally {
+            TestSupport.setStatic(OffHeapStore.class, "capacityMB", 0);
+        }
+    }
+
+    @Test
+    public void revaluingDoesNotRenewTheHoldings() throws Exception {
+        BrokerCache cache = new BrokerCache();
+        cache.record("dave", broker("dave", stocks("IBM", 10, 1000.0)));
+        assertNotNull(cache.getConfirmed("dave", 60000));
+
+        Thread.sleep(20);
+        cache.revalued("dave", broker("dave", stocks("IBM", 10, 1100.0))); //same holdings, new price
+        assertNull(cache.getConfirmed("dave", 10)); //so time to ask Portfolio again
+
+        cache.record("dave", broker("dave", stocks("IBM", 10, 1100.0)));
+        assertNotNull(cache.getConfirmed("dave", 10));
+    }
+
+    private static Broker broker(String owner, JsonObject stocks) {
+        double total = 0.0;
+        for (String symbol : stocks.keySet()) total += stocks.getJsonObject(symbol).getJsonNumber("total").doubleValue();
+        Broker broker = new Broker(owner, total, "Basic", 50.0, 0.0, 0, "Unknown", 9.99);
+        broker.setStocks(stocks);
+        return broker;
+    }
+
+    private static JsonObject stocks(String symbol, int shares, double total) {
+        return Json.createObjectBuilder().add(symbol, holding(shares, total)).build();
+    }
+
+    private static JsonObject holding(int shares, double total) {
+        return Json.createObjectBuilder().add("shares", shares).add("total", total).build();
+    }
+}
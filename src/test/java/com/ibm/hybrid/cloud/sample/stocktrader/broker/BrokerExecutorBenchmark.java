@@ -0,0 +1,132 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/** Compares BrokerExecutor's two modes under the same load: closed-loop clients each sending a request as soon as
+ *  their last one completes, through a fixed pool standing in for Liberty's request threads.  Each request makes two
+ *  independent downstream calls, as GET /{owner} does (Portfolio, and Account via the AccountDirectory), simulated
+ *  by sleeping.  With platform threads the request holds its pool thread, making the calls one after the other;
+ *  with virtual threads it hands off to a virtual thread, which forks the calls.  Virtual threads need Java 21:
+ *
+ *  java -cp target/classes:target/test-classes com.ibm.hybrid.cloud.sample.stocktrader.broker.BrokerExecutorBenchmark
+ *  [pool threads] [downstream ms] [seconds per run] [clients...]
+ */
+public class BrokerExecutorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int poolThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+        int downstreamMillis = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        List<Integer> clientCounts = new ArrayList<Integer>();
+        for (int index = 3; index < args.length; index++) clientCounts.add(Integer.parseInt(args[index]));
+        if (clientCounts.isEmpty()) Collections.addAll(clientCounts, 25, 100, 400, 1600);
+
+        ExecutorService virtualThreads = null;
+        try {
+            virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException nsme) {
+            System.out.println("Java " + System.getProperty("java.version") + " has no virtual threads, so only platform threads are measured");
+        }
+
+        System.out.println("Java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " CPUs, "
+            + poolThreads + " request threads, 2 x " + downstreamMillis + " ms downstream calls per request, " + seconds + " s per run");
+        System.out.println(String.format("%-9s %8s %12s %10s %10s", "mode", "clients", "requests/s", "p50 ms", "p99 ms"));
+        for (int clients : clientCounts) {
+            print("platform", clients, run(new BrokerExecutor(), poolThreads, downstreamMillis, seconds, clients));
+            if (virtualThreads != null) {
+                BrokerExecutor executor = new BrokerExecutor();
+                TestSupport.inject(executor, "virtualThreads", virtualThreads);
+                print("virtual", clients, run(executor, poolThreads, downstreamMillis, seconds, clients));
+            }
+        }
+        if (virtualThreads != null) virtualThreads.shutdownNow();
+    }
+
+    private static void print(String mode, int clients, Result result) {
+        System.out.println(String.format("%-9s %8d %12.0f %10.1f %10.1f", mode, clients, result.throughput, result.p50, result.p99));
+    }
+
+    private static Result run(BrokerExecutor executor, int poolThreads, int downstreamMillis, int seconds, int clients) throws Exception {
+        ExecutorService requestThreads = Executors.newFixedThreadPool(poolThreads);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        AtomicBoolean running = new AtomicBoolean(true);
+        Supplier<String> request = () -> {
+            try (BrokerExecutor.TaskScope scope = executor.newScope()) {
+                Supplier<String> portfolio = scope.fork(() -> downstream(downstreamMillis, "portfolio"));
+                Supplier<String> account = scope.fork(() -> downstream(downstreamMillis, "account"));
+                scope.join();
+                return portfolio.get() + account.get();
+            }
+        };
+
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (int client = 0; client < clients; client++) send(executor, requestThreads, request, latencies, running, warmupEnd);
+        Thread.sleep(1000L + seconds * 1000L);
+        running.set(false);
+        requestThreads.shutdown();
+        requestThreads.awaitTermination(30, TimeUnit.SECONDS);
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        Result result = new Result();
+        result.throughput = sorted.size() / (double) seconds;
+        result.p50 = sorted.isEmpty() ? 0.0 : sorted.get(sorted.size() / 2) / 1e6;
+        result.p99 = sorted.isEmpty() ? 0.0 : sorted.get((int) (sorted.size() * 0.99)) / 1e6;
+        return result;
+    }
+
+    /** One client's next request: waits for a request thread, which calls the executor as a resource method would */
+    private static void send(BrokerExecutor executor, ExecutorService requestThreads, Supplier<String> request,
+                             List<Long> latencies, AtomicBoolean running, long warmupEnd) {
+        if (!running.get()) return;
+        long start = System.nanoTime();
+        CompletableFuture<String> response = new CompletableFuture<String>();
+        try {
+            requestThreads.execute(() -> executor.supply(request).whenComplete((value, t) -> {
+                if (t != null) response.completeExceptionally(t);
+                else response.complete(value);
+            }));
+        } catch (java.util.concurrent.RejectedExecutionException ree) {
+            return; //shutting down
+        }
+        response.whenComplete((value, t) -> {
+            if (start > warmupEnd) latencies.add(System.nanoTime() - start);
+            send(executor, requestThreads, request, latencies, running, warmupEnd);
+        });
+    }
+
+    private static String downstream(int millis, String name) throws InterruptedException {
+        Thread.sleep(millis);
+        return name;
+    }
+
+    private static class Result {
+        private double throughput;
+        private double p50;
+        private double p99;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BrokerLogTest {
+    private Logger logger = Logger.getLogger(BrokerLogTest.class.getName());
+    private List<LogRecord> records = new ArrayList<LogRecord>();
+    private Handler handler = new Handler() {
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() throws ReflectiveOperationException {
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(handler);
+        occurrences().clear();
+    }
+
+    @After
+    public void tearDown() throws ReflectiveOperationException {
+        logger.removeHandler(handler);
+        logger.setUseParentHandlers(true);
+        logger.setLevel(null);
+        TestSupport.setStatic(BrokerLog.class, "intervalSeconds", 0);
+        occurrences().clear();
+    }
+
+    @Test
+    public void repeatsWithinTheIntervalAreCountedNotLogged() throws InterruptedException {
+        TestSupport.setStatic(BrokerLog.class, "intervalSeconds", 1);
+        Throwable[] failures = new Throwable[5];
+        for (int attempt = 1; attempt <= 5; attempt++) failures[attempt - 1] = failure(attempt); //all from the same place
+        for (int attempt = 1; attempt <= 3; attempt++) BrokerLog.exception(logger, failures[attempt - 1]);
+        assertEquals(2, records.size()); //the first one's event and stack trace
+        assertTrue(records.get(0).getMessage().endsWith("suppressed=0"));
+        assertEquals(Level.INFO, records.get(1).getLevel());
+        assertNotNull(records.get(1).getThrown());
+
+        Thread.sleep(1100);
+        for (int attempt = 4; attempt <= 5; attempt++) BrokerLog.exception(logger, failures[attempt - 1]);
+        assertEquals(4, records.size()); //the interval's over, so the next is logged, saying how many were missed
+        assertTrue(records.get(2).getMessage().contains("message=\"attempt 4\""));
+        assertTrue(records.get(2).getMessage().endsWith("suppressed=2"));
+    }
+
+    @Test
+    public void differentPlacesOrTypesAreFingerprintedApart() {
+        TestSupport.setStatic(BrokerLog.class, "intervalSeconds", 60);
+        BrokerLog.exception(logger, new IllegalStateException("here"));
+        BrokerLog.exception(logger, new IllegalStateException("there"));
+        BrokerLog.exception(logger, new IllegalArgumentException("here", new IllegalStateException()));
+        assertEquals(6, records.size());
+        assertFalse(fingerprint(0).equals(fingerprint(2)));
+        assertFalse(fingerprint(0).equals(fingerprint(4)));
+    }
+
+    @Test
+    public void withoutAnIntervalEveryExceptionIsLogged() {
+        for (int attempt = 1; attempt <= 3; attempt++) BrokerLog.exception(logger, failure(attempt));
+        assertEquals(6, records.size());
+        assertEquals("exception type=java.lang.IllegalStateException message=\"attempt 3\"", records.get(4).getMessage());
+    }
+
+    @Test
+    public void messageIsOnlyBuiltIfItWillBeLogged() {
+        logger.setLevel(Level.WARNING);
+        boolean[] built = new boolean[1];
+        BrokerLog.log(logger, Level.FINE, () -> {
+            built[0] = true;
+            return "detail";
+        }, null);
+        assertFalse(built[0]);
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    public void eventQuotesValuesThatNeedIt() {
+        BrokerLog.event(logger, Level.WARNING, "call", "owner", "alice", "message", "said \"no\"", "status", 503, "empty", "");
+        assertEquals("call owner=alice message=\"said \\\"no\\\"\" status=503 empty=\"\"", records.get(0).getMessage());
+    }
+
+    /** The same type of exception, whatever its message */
+    private static IllegalStateException failure(int attempt) {
+        return new IllegalStateException("attempt " + attempt);
+    }
+
+    private String fingerprint(int record) {
+        String message = records.get(record).getMessage();
+        return message.substring(message.indexOf("fingerprint="), message.indexOf(" suppressed="));
+    }
+
+    private static Map<?, ?> occurrences() throws ReflectiveOperationException {
+        Field field = BrokerLog.class.getDeclaredField("occurrences");
+        field.setAccessible(true);
+        return (Map<?, ?>) field.get(null);
+    }
+}
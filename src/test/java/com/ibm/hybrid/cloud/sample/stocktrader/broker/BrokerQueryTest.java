@@ -0,0 +1,78 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import javax.ws.rs.BadRequestException;
+
+import org.junit.Test;
+
+public class BrokerQueryTest {
+
+    @Test
+    public void limitKeepsTheBiggestInOrder() {
+        BrokerQuery query = BrokerQuery.parse("total", null, null, null, 2);
+        assertArrayEquals(new String[] {"carol", "alice"}, owners(select(query, "alice", 300.0, "bob", 100.0, "carol", 500.0, "dave", 200.0)));
+    }
+
+    @Test
+    public void ascendingOrderBreaksTiesByOwner() {
+        BrokerQuery query = BrokerQuery.parse("total", "asc", null, null, null);
+        assertArrayEquals(new String[] {"bob", "dave", "alice"}, owners(select(query, "alice", 300.0, "dave", 100.0, "bob", 100.0)));
+    }
+
+    @Test
+    public void withoutASortTheFirstMatchesAreKept() {
+        BrokerQuery query = BrokerQuery.parse(null, null, "gold", null, 1);
+        assertArrayEquals(new String[] {"bob"}, owners(select(query, "alice", 300.0, "bob", 1000000.0, "carol", 2000000.0)));
+    }
+
+    @Test
+    public void hugeLimitIsOnlyAsBigAsTheCandidates() {
+        BrokerQuery query = BrokerQuery.parse("total", null, null, null, Integer.MAX_VALUE); //would need an 8 GB heap if taken at its word
+        assertEquals(3, select(query, "alice", 300.0, "bob", 100.0, "carol", 500.0).length);
+    }
+
+    @Test
+    public void unknownSortIsABadRequest() {
+        try {
+            BrokerQuery.parse("owner", null, null, null, null);
+            fail("Expected a 400");
+        } catch (BadRequestException expected) {
+        }
+    }
+
+    /** Offers brokers given as owner, total pairs; those worth at least a million are Gold, the rest Basic */
+    private static Broker[] select(BrokerQuery query, Object... ownersAndTotals) {
+        BrokerQuery.Selection selection = query.select(ownersAndTotals.length / 2);
+        for (int index = 0; index < ownersAndTotals.length; index += 2) {
+            double total = (Double) ownersAndTotals[index + 1];
+            selection.offer(new Broker((String) ownersAndTotals[index], total, (total >= 1000000.0) ? "Gold" : "Basic", 0.0, 0.0, 0, "Unknown", 9.99));
+        }
+        return selection.result();
+    }
+
+    private static String[] owners(Broker[] brokers) {
+        String[] owners = new String[brokers.length];
+        for (int index = 0; index < brokers.length; index++) owners[index] = brokers[index].getOwner();
+        return owners;
+    }
+}
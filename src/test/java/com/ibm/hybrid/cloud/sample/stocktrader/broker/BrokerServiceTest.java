@@ -0,0 +1,234 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.PortfolioClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.TradeHistoryClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Account;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Dashboard;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.NotFoundException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BrokerServiceTest {
+    private BrokerService service;
+    private Map<String, Portfolio> portfolios;
+    private Map<String, Account> accounts;
+    private List<String> calls;
+    private HttpServletRequest request;
+    private CompletableFuture<Account> pendingAccount; //when set, what getAccountAsync returns
+    private CompletableFuture<String> pendingReturns; //when set, what getReturnsAsync returns
+    private CountDownLatch callsStarted = new CountDownLatch(0); //counted down by each of those two
+
+    @Before
+    public void setUp() {
+        portfolios = new HashMap<String, Portfolio>();
+        accounts = new HashMap<String, Account>();
+        calls = Collections.synchronizedList(new ArrayList<String>());
+        request = TestSupport.stub(HttpServletRequest.class, (proxy, method, args) -> method.getName().equals("getHeader") ? "Bearer test" : null);
+        TestSupport.setStatic(BrokerService.class, "useAccount", true);
+
+        service = new BrokerService();
+        TestSupport.inject(service, "portfolioClient", TestSupport.stub(PortfolioClient.class, (proxy, method, args) -> {
+            calls.add(method.getName());
+            switch (method.getName()) {
+                case "getPortfolio": return portfolio((String) args[1]);
+                case "getPortfolioAsync": return completed(() -> portfolio((String) args[1]));
+                case "getPortfolios": return portfolios.values().toArray(new Portfolio[0]);
+                case "getPortfoliosAsync": return CompletableFuture.completedFuture(portfolios.values().toArray(new Portfolio[0]));
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        TestSupport.inject(service, "accountClient", TestSupport.stub(AccountClient.class, (proxy, method, args) -> {
+            calls.add(method.getName());
+            switch (method.getName()) {
+                case "getAccount": return accounts.get(args[1]);
+                case "getAccountAsync": return (pendingAccount != null) ? started(pendingAccount) : CompletableFuture.completedFuture(accounts.get(args[1]));
+                case "getAccounts": return accounts.values().toArray(new Account[0]);
+                case "getAccountsAsync": return CompletableFuture.completedFuture(accounts.values().toArray(new Account[0]));
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        TestSupport.inject(service, "tradeHistoryClient", TestSupport.stub(TradeHistoryClient.class, (proxy, method, args) -> {
+            calls.add(method.getName());
+            if (method.getName().equals("getReturns")) return "12.50";
+            if (method.getName().equals("getReturnsAsync")) return (pendingReturns != null) ? started(pendingReturns) : CompletableFuture.completedFuture("12.50");
+            throw new UnsupportedOperationException(method.getName());
+        }));
+        TestSupport.inject(service, "cache", new BrokerCache());
+        TestSupport.inject(service, "returnsCache", new ReturnsCache());
+        TestSupport.inject(service, "returnsEngine", new ReturnsEngine());
+        TestSupport.inject(service, "directory", new AccountDirectory());
+        TestSupport.inject(service, "replica", new PortfolioReplica());
+        TestSupport.inject(service, "retries", new RetryBudget());
+        TestSupport.inject(service, "executor", new BrokerExecutor());
+
+        add("alice", 60000.0, "a1", "Gold");
+        add("bob", 5000.0, "b1", "Bronze");
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.setStatic(BrokerService.class, "useAccount", false);
+        TestSupport.setStatic(BrokerService.class, "reactive", false);
+        TestSupport.setStatic(AccountDirectory.class, "enabled", false);
+    }
+
+    @Test
+    public void reactiveGetUsesOnlyTheAsyncClients() throws Exception {
+        TestSupport.setStatic(BrokerService.class, "reactive", true);
+        Broker broker = service.getBroker("alice", null, null, request).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals("alice", broker.getOwner());
+        assertEquals("Gold", broker.getLoyalty());
+        assertTrue(calls.contains("getPortfolioAsync"));
+        assertTrue(calls.contains("getAccountAsync"));
+        assertFalse(calls.contains("getPortfolio"));
+        assertFalse(calls.contains("getAccount"));
+    }
+
+    @Test
+    public void reactiveGetPassesOnTheOriginalNotFound() throws Exception {
+        TestSupport.setStatic(BrokerService.class, "reactive", true);
+        try {
+            service.getBroker("nobody", null, null, request).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("Expected a 404");
+        } catch (ExecutionException ee) { //just the NotFoundException, not wrapped in a CompletionException, for JAX-RS to map
+            assertTrue(ee.getCause() instanceof NotFoundException);
+            assertEquals(404, ((NotFoundException) ee.getCause()).getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void reactiveListMatchesAccountsToPortfolios() throws Exception {
+        TestSupport.setStatic(BrokerService.class, "reactive", true);
+        Broker[] brokers = service.getBrokers(null, "total", "desc", null, null, null, request).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, brokers.length);
+        assertEquals("alice", brokers[0].getOwner());
+        assertEquals("Gold", brokers[0].getLoyalty());
+        assertEquals("bob", brokers[1].getOwner());
+        assertEquals("Bronze", brokers[1].getLoyalty());
+        assertTrue(calls.contains("getPortfoliosAsync"));
+        assertTrue(calls.contains("getAccountsAsync"));
+    }
+
+    @Test
+    public void blockingDashboardMakesItsAccountAndReturnsCallsAtTheSameTime() throws Exception {
+        pendingAccount = new CompletableFuture<Account>();
+        pendingReturns = new CompletableFuture<String>();
+        callsStarted = new CountDownLatch(2);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Dashboard> dashboard = caller.submit(() -> service.getDashboard("alice", request).toCompletableFuture().get());
+            assertTrue(callsStarted.await(5, TimeUnit.SECONDS)); //both are in flight before either has answered
+            assertFalse(dashboard.isDone());
+
+            pendingAccount.complete(accounts.get("a1"));
+            pendingReturns.complete("7.25");
+            Dashboard result = dashboard.get(5, TimeUnit.SECONDS);
+            assertEquals("Gold", result.getBroker().getLoyalty());
+            assertEquals("7.25", result.getReturns());
+            assertEquals(0, result.getUnavailable().length);
+            assertFalse(calls.contains("getAccount")); //not one after the other on the blocking clients
+            assertFalse(calls.contains("getReturns"));
+        } finally {
+            caller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void blockingGetCancelsThePrefetchedAccountOnA404() throws Exception {
+        assertPrefetchCancelledOnA404();
+    }
+
+    @Test
+    public void reactiveGetCancelsThePrefetchedAccountOnA404() throws Exception {
+        TestSupport.setStatic(BrokerService.class, "reactive", true);
+        assertPrefetchCancelledOnA404();
+    }
+
+    private void assertPrefetchCancelledOnA404() throws Exception {
+        TestSupport.setStatic(AccountDirectory.class, "enabled", true);
+        AccountDirectory directory = new AccountDirectory();
+        directory.record("alice", portfolios.remove("alice")); //deleted since
+        TestSupport.inject(service, "directory", directory);
+        pendingAccount = new CompletableFuture<Account>(); //an Account call that never answers
+        callsStarted = new CountDownLatch(1);
+        try {
+            service.getBroker("alice", null, null, request).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("Expected a 404");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof NotFoundException);
+        }
+        assertEquals(0, callsStarted.getCount()); //it was prefetched...
+        assertTrue(pendingAccount.isCancelled()); //...but not left running
+    }
+
+    private void add(String owner, double total, String accountID, String loyalty) {
+        portfolios.put(owner, new Portfolio(owner, total, accountID));
+        Account account = new Account(owner);
+        account.set_id(accountID);
+        account.setLoyalty(loyalty);
+        accounts.put(accountID, account);
+    }
+
+    private Portfolio portfolio(String owner) {
+        Portfolio portfolio = portfolios.get(owner);
+        if (portfolio == null) throw new NotFoundException("No portfolio for " + owner);
+        return portfolio;
+    }
+
+    private <T> CompletableFuture<T> started(CompletableFuture<T> pending) {
+        callsStarted.countDown();
+        return pending;
+    }
+
+    private static <T> CompletableFuture<T> completed(java.util.function.Supplier<T> value) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        try {
+            result.complete(value.get());
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+}
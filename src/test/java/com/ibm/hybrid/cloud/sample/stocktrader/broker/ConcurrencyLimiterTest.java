@@ -0,0 +1,185 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.LimiterStatus;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+    @Before
+    public void setUp() {
+        TestSupport.setStatic(ConcurrencyLimiter.class, "enabled", true);
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.setStatic(ConcurrencyLimiter.class, "enabled", false);
+    }
+
+    @Test
+    public void readsAreShedBeforeWrites() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.get("reads");
+        for (int read = 0; read < 16; read++) assertTrue(limiter.acquire(false) >= 0); //80% of 20
+
+        assertEquals(-1, limiter.acquire(false));
+        assertTrue(limiter.acquire(true) >= 0);
+        assertEquals(1, status("reads").getRejectedReads());
+    }
+
+    @Test
+    public void releasingTwiceOnlyEndsOneCall() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.get("twice");
+        long lease = limiter.acquire(true);
+        limiter.acquire(true);
+        limiter.release(lease, false);
+        limiter.release(lease, false);
+
+        assertEquals(1, status("twice").getInFlight());
+    }
+
+    @Test
+    public void overloadKeepsTheRetainedShare() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.get("overload");
+        limiter.release(limiter.acquire(true), true);
+
+        assertEquals(18, status("overload").getLimit()); //90% of 20
+    }
+
+    @Test
+    public void failedCallReleasesItsLease() {
+        Service service = DownstreamCall.wrap(Service.class, new Service() {
+            public String get() {
+                new DownstreamLimitFilter().filter(request("sync-failure"));
+                throw new ProcessingException("connection refused");
+            }
+
+            public CompletionStage<String> getAsync() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        try {
+            service.get();
+            fail("the call should have failed");
+        } catch (ProcessingException pe) {
+            //expected
+        }
+        LimiterStatus status = status("downstream:sync-failure:9080");
+        assertEquals(0, status.getInFlight());
+        assertEquals(18, status.getLimit()); //counted as overloaded
+    }
+
+    @Test
+    public void failedAsyncCallReleasesItsLease() {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        Service service = DownstreamCall.wrap(Service.class, new Service() {
+            public String get() {
+                throw new UnsupportedOperationException();
+            }
+
+            public CompletionStage<String> getAsync() {
+                new DownstreamLimitFilter().filter(request("async-failure"));
+                return result;
+            }
+        });
+
+        service.getAsync();
+        assertEquals(1, status("downstream:async-failure:9080").getInFlight());
+        result.completeExceptionally(new ProcessingException("read timed out"));
+        assertEquals(0, status("downstream:async-failure:9080").getInFlight());
+    }
+
+    @Test
+    public void answeredCallIsNotReleasedAgainOnFailure() {
+        ClientRequestContext request = request("answered");
+        Service service = DownstreamCall.wrap(Service.class, new Service() {
+            public String get() {
+                DownstreamLimitFilter filter = new DownstreamLimitFilter();
+                filter.filter(request);
+                filter.filter(request, response(404));
+                throw new ProcessingException("not found"); //as a ResponseExceptionMapper might
+            }
+
+            public CompletionStage<String> getAsync() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        ConcurrencyLimiter.get("downstream:answered:9080").acquire(true); //still in flight throughout
+
+        try {
+            service.get();
+            fail("the call should have failed");
+        } catch (ProcessingException pe) {
+            //expected
+        }
+        LimiterStatus status = status("downstream:answered:9080");
+        assertEquals(1, status.getInFlight());
+        assertEquals(20, status.getLimit()); //a 404 isn't overload
+    }
+
+    public interface Service {
+        String get();
+
+        CompletionStage<String> getAsync();
+    }
+
+    private static LimiterStatus status(String name) {
+        for (LimiterStatus status : ConcurrencyLimiter.getStatus()) {
+            if (status.getName().equals(name)) return status;
+        }
+        throw new AssertionError("No limiter named " + name);
+    }
+
+    private static ClientRequestContext request(String host) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        return TestSupport.stub(ClientRequestContext.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMethod": return "GET";
+                case "getUri": return URI.create("http://" + host + ":9080/portfolio");
+                case "getProperty": return properties.get(args[0]);
+                case "setProperty": return properties.put((String) args[0], args[1]);
+                case "removeProperty": return properties.remove(args[0]);
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static ClientResponseContext response(int status) {
+        return TestSupport.stub(ClientResponseContext.class, (proxy, method, args) -> {
+            if (method.getName().equals("getStatus")) return status;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
@@ -0,0 +1,105 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.TradeHistoryClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.ProcessingException;
+
+import org.eclipse.microprofile.rest.client.ext.AsyncInvocationInterceptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DownstreamCallTest {
+    private ExecutorService sender; //stands in for the REST Client implementation's own threads
+    private AtomicReference<Throwable> cleanedUp = new AtomicReference<Throwable>();
+    private ProcessingException timeout = new ProcessingException("Read timed out");
+
+    @Before
+    public void setUp() {
+        sender = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        sender.shutdownNow();
+    }
+
+    @Test
+    public void failedCallRunsWhatItsRequestFiltersLeft() {
+        TradeHistoryClient client = DownstreamCall.wrap(TradeHistoryClient.class, TestSupport.stub(TradeHistoryClient.class, (proxy, method, args) -> {
+            filter(); //on the calling thread, as for a blocking call
+            throw timeout;
+        }));
+
+        try {
+            client.getReturns("jwt", "alice", 100.0);
+            fail("Expected the timeout");
+        } catch (ProcessingException expected) {
+        }
+        assertSame(timeout, cleanedUp.get());
+        assertNull(DownstreamCall.current()); //only current while the call is being made
+    }
+
+    @Test
+    public void asyncCallIsCurrentWhereverItsRequestFiltersRun() throws Exception {
+        AtomicReference<DownstreamCall> seen = new AtomicReference<DownstreamCall>();
+        AtomicReference<DownstreamCall> afterwards = new AtomicReference<DownstreamCall>();
+        TradeHistoryClient client = DownstreamCall.wrap(TradeHistoryClient.class, TestSupport.stub(TradeHistoryClient.class, (proxy, method, args) -> {
+            AsyncInvocationInterceptor interceptor = new DownstreamCall.Propagator().newInterceptor();
+            interceptor.prepareContext(); //as the implementation does, on the calling thread
+            CompletableFuture<String> result = new CompletableFuture<String>();
+            sender.submit(() -> {
+                interceptor.applyContext(); //then on the thread it sends the request from, before the filters run
+                seen.set(DownstreamCall.current());
+                filter();
+                interceptor.removeContext();
+                afterwards.set(DownstreamCall.current());
+                result.completeExceptionally(timeout);
+            });
+            return result;
+        }));
+
+        try {
+            client.getReturnsAsync("jwt", "alice", 100.0).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("Expected the timeout");
+        } catch (ExecutionException expected) {
+        }
+        assertNotNull(seen.get());
+        assertNull(afterwards.get()); //the sending thread doesn't keep it
+        assertSame(timeout, cleanedUp.get());
+    }
+
+    /** What DownstreamLimitFilter and DownstreamEventFilter do in their request filters */
+    private void filter() {
+        DownstreamCall call = DownstreamCall.current();
+        if (call != null) call.onFailure(cleanedUp::set);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.client.AccountClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Feedback;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.FeedbackTicket;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.WatsonInput;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeedbackQueueTest {
+    private FeedbackQueue feedbackQueue;
+    private ScheduledExecutorService threads;
+    private Function<String, CompletableFuture<Feedback>> account; //what Account does with each owner's feedback
+
+    @Before
+    public void setUp() {
+        TestSupport.setStatic(FeedbackQueue.class, "enabled", true);
+        threads = Executors.newScheduledThreadPool(4);
+        BrokerExecutor executor = new BrokerExecutor();
+        TestSupport.inject(executor, "managedExecutor", TestSupport.managed(threads));
+
+        feedbackQueue = new FeedbackQueue();
+        TestSupport.inject(feedbackQueue, "executor", executor);
+        TestSupport.inject(feedbackQueue, "accountClient", TestSupport.stub(AccountClient.class, (proxy, method, args) -> {
+            if (!method.getName().equals("submitFeedbackAsync")) throw new UnsupportedOperationException(method.getName());
+            return account.apply((String) args[1]);
+        }));
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.call(feedbackQueue, "shutdown");
+        threads.shutdownNow();
+        TestSupport.setStatic(FeedbackQueue.class, "enabled", false);
+        TestSupport.setStatic(FeedbackQueue.class, "queueSize", 1000);
+        TestSupport.setStatic(FeedbackQueue.class, "workers", 2);
+        TestSupport.setStatic(FeedbackQueue.class, "batchSize", 10);
+        TestSupport.setStatic(FeedbackQueue.class, "ticketSeconds", 600);
+    }
+
+    @Test
+    public void ticketFinishesWithAccountsAnswer() throws InterruptedException {
+        account = owner -> CompletableFuture.completedFuture(new Feedback("Thanks, " + owner, 3, "Positive"));
+        start();
+
+        FeedbackTicket ticket = feedbackQueue.submit("jwt", "alice", new WatsonInput());
+        FeedbackTicket done = await(ticket.getId(), "alice");
+        assertEquals(FeedbackTicket.DONE, done.getStatus());
+        assertEquals("Thanks, alice", done.getFeedback().getMessage());
+        assertNull(feedbackQueue.get("bob", ticket.getId())); //only its owner can see it
+    }
+
+    @Test
+    public void failedCallFailsTheTicket() throws InterruptedException {
+        account = owner -> {
+            CompletableFuture<Feedback> failed = new CompletableFuture<Feedback>();
+            failed.completeExceptionally(new IllegalStateException("Account is down"));
+            return failed;
+        };
+        start();
+
+        FeedbackTicket done = await(feedbackQueue.submit("jwt", "alice", new WatsonInput()).getId(), "alice");
+        assertEquals(FeedbackTicket.FAILED, done.getStatus());
+        assertTrue(done.getError().contains("Account is down"));
+    }
+
+    @Test
+    public void fullQueueTurnsSubmissionsAway() throws InterruptedException {
+        TestSupport.setStatic(FeedbackQueue.class, "queueSize", 1);
+        TestSupport.setStatic(FeedbackQueue.class, "workers", 1);
+        TestSupport.setStatic(FeedbackQueue.class, "batchSize", 1);
+        CountDownLatch sending = new CountDownLatch(1);
+        account = owner -> {
+            sending.countDown();
+            return new CompletableFuture<Feedback>(); //never answers, so the worker stays busy
+        };
+        start();
+
+        assertNotNull(feedbackQueue.submit("jwt", "alice", new WatsonInput()));
+        assertTrue(sending.await(5, TimeUnit.SECONDS)); //the worker has taken it off the queue
+        assertNotNull(feedbackQueue.submit("jwt", "bob", new WatsonInput())); //waits in the queue
+        assertNull(feedbackQueue.submit("jwt", "carol", new WatsonInput()));
+    }
+
+    @Test
+    public void finishedTicketsExpireWhileNothingElseHappens() throws Exception {
+        TestSupport.setStatic(FeedbackQueue.class, "ticketSeconds", 1);
+        account = owner -> CompletableFuture.completedFuture(new Feedback("Thanks"));
+        start();
+
+        await(feedbackQueue.submit("jwt", "alice", new WatsonInput()).getId(), "alice");
+        Map<?, ?> tickets = tickets();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!tickets.isEmpty() && (System.currentTimeMillis() < deadline)) Thread.sleep(100); //no submits or gets
+        assertTrue(tickets.isEmpty());
+    }
+
+    private void start() {
+        TestSupport.call(feedbackQueue, "startup", new Object());
+    }
+
+    /** Polls the ticket until it's no longer queued */
+    private FeedbackTicket await(String id, String owner) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        FeedbackTicket ticket = feedbackQueue.get(owner, id);
+        while (FeedbackTicket.QUEUED.equals(ticket.getStatus()) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+            ticket = feedbackQueue.get(owner, id);
+        }
+        return ticket;
+    }
+
+    private Map<?, ?> tickets() throws ReflectiveOperationException {
+        Field field = FeedbackQueue.class.getDeclaredField("tickets");
+        field.setAccessible(true);
+        return (Map<?, ?>) field.get(feedbackQueue);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Holding;
+
+import javax.json.Json;
+
+import org.junit.Test;
+
+public class HoldingsIndexTest {
+
+    @Test
+    public void limitKeepsTheBiggestHolders() {
+        HoldingsIndex index = new HoldingsIndex();
+        int[] shares = {5, 50, 20, 1, 40, 20, 30};
+        for (int owner = 0; owner < shares.length; owner++) index.index("owner" + owner, broker("IBM", shares[owner]));
+
+        Holding[] top = index.search("IBM", 3);
+        assertEquals(3, top.length);
+        assertEquals("owner1", top[0].getOwner());
+        assertEquals("owner4", top[1].getOwner());
+        assertEquals("owner6", top[2].getOwner());
+    }
+
+    @Test
+    public void tiesGoByOwnerWithOrWithoutLimit() {
+        HoldingsIndex index = new HoldingsIndex();
+        index.index("carol", broker("IBM", 10));
+        index.index("alice", broker("IBM", 10));
+        index.index("bob", broker("IBM", 10));
+
+        assertEquals("alice", index.search("IBM", 1)[0].getOwner());
+        Holding[] all = index.search("IBM", -1);
+        assertEquals(3, all.length);
+        assertEquals("alice", all[0].getOwner());
+        assertEquals("bob", all[1].getOwner());
+        assertEquals("carol", all[2].getOwner());
+    }
+
+    @Test
+    public void zeroLimitOrUnknownSymbolFindsNothing() {
+        HoldingsIndex index = new HoldingsIndex();
+        index.index("dave", broker("IBM", 10));
+
+        assertEquals(0, index.search("IBM", 0).length);
+        assertEquals(0, index.search("AAPL", 5).length);
+    }
+
+    @Test
+    public void hugeLimitFindsEveryHolder() {
+        HoldingsIndex index = new HoldingsIndex();
+        index.index("alice", broker("IBM", 10));
+        index.index("bob", broker("IBM", 20));
+
+        Holding[] all = index.search("IBM", Integer.MAX_VALUE); //would need an 8 GB heap if taken at its word
+        assertEquals(2, all.length);
+        assertEquals("bob", all[0].getOwner());
+    }
+
+    private static Broker broker(String symbol, int shares) {
+        Broker broker = new Broker();
+        broker.setStocks(Json.createObjectBuilder().add(symbol, Json.createObjectBuilder().add("shares", shares)).build());
+        return broker;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+    private IdempotencyCache cache = new IdempotencyCache();
+
+    @Before
+    public void setUp() {
+        TestSupport.setStatic(IdempotencyCache.class, "enabled", true);
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.setStatic(IdempotencyCache.class, "enabled", false);
+        TestSupport.setStatic(IdempotencyCache.class, "maxKeys", 10000);
+    }
+
+    @Test
+    public void repeatIsReplayedWithoutRunningAgain() {
+        AtomicInteger runs = new AtomicInteger();
+        Broker first = join(cache.execute("alice", "k1", "PUT /Bob", done(runs, "Bob")));
+        Broker second = join(cache.execute("alice", "k1", "PUT /Bob", done(runs, "Bob")));
+
+        assertEquals(1, runs.get());
+        assertSame(first, second);
+    }
+
+    @Test
+    public void reusingAKeyForAnotherRequestIsRejected() {
+        join(cache.execute("alice", "k1", "PUT /Bob", done(new AtomicInteger(), "Bob")));
+        try {
+            cache.execute("alice", "k1", "PUT /Carol", done(new AtomicInteger(), "Carol"));
+            fail("Expected the key's reuse to be rejected");
+        } catch (WebApplicationException expected) {
+        }
+    }
+
+    @Test
+    public void failedRequestCanBeRetried() {
+        AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<Broker> failure = new CompletableFuture<Broker>();
+        failure.completeExceptionally(new IllegalStateException("down"));
+        cache.execute("alice", "k1", "PUT /Bob", () -> { runs.incrementAndGet(); return failure; });
+        join(cache.execute("alice", "k1", "PUT /Bob", done(runs, "Bob")));
+
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void runningRequestDoesNotHoldUpEviction() {
+        TestSupport.setStatic(IdempotencyCache.class, "maxKeys", 2);
+        CompletableFuture<Broker> running = new CompletableFuture<Broker>();
+        cache.execute("alice", "slow", "PUT /Slow", () -> running); //oldest, and never finishes here
+
+        AtomicInteger runs = new AtomicInteger();
+        join(cache.execute("alice", "k1", "PUT /Bob", done(runs, "Bob")));
+        join(cache.execute("alice", "k2", "PUT /Carol", done(new AtomicInteger(), "Carol"))); //full, so k1 goes
+        join(cache.execute("alice", "k1", "PUT /Bob", done(runs, "Bob")));
+
+        assertEquals(2, runs.get());
+        assertTrue(!running.isDone());
+    }
+
+    private static Supplier<CompletionStage<Broker>> done(AtomicInteger runs, String owner) {
+        return () -> {
+            runs.incrementAndGet();
+            return CompletableFuture.completedFuture(new Broker(owner));
+        };
+    }
+
+    private static Broker join(CompletionStage<Broker> stage) {
+        return stage.toCompletableFuture().join();
+    }
+}
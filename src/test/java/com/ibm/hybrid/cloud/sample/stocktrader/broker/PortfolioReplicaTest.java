@@ -0,0 +1,164 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Stock;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Writes go to a real in-memory Derby, the same version as the app ships with, so the MERGE is checked as is */
+public class PortfolioReplicaTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    static {
+        new File("target").mkdirs();
+        System.setProperty("derby.stream.error.file", "target/derby.log"); //rather than littering the project root
+    }
+
+    private PortfolioReplica replica;
+    private EmbeddedDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        TestSupport.setStatic(PortfolioReplica.class, "enabled", true);
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:replicaTest" + databases.incrementAndGet()); //a fresh one each time
+        dataSource.setCreateDatabase("create");
+
+        replica = new PortfolioReplica();
+        TestSupport.inject(replica, "dataSource", dataSource);
+        TestSupport.call(replica, "initialize"); //no scheduler, so flushes only happen when called below
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.setStatic(PortfolioReplica.class, "enabled", false);
+    }
+
+    @Test
+    public void savingAgainUpdatesThePortfolioAndReplacesItsStocks() throws SQLException {
+        replica.save(portfolio("alice", 1500.0, "IBM", 10, "AAPL", 5));
+        TestSupport.call(replica, "flush");
+        assertEquals("1500.0 a-alice", query("SELECT total, accountID FROM Portfolio WHERE owner = 'alice'"));
+        assertEquals("AAPL 5,IBM 10", query("SELECT symbol, shares FROM Stock WHERE owner = 'alice' ORDER BY symbol"));
+
+        replica.save(portfolio("alice", 2000.0, "IBM", 20)); //sold the AAPL
+        replica.save(portfolio("bob", 300.0, "IBM", 3));
+        TestSupport.call(replica, "flush");
+        assertEquals("2000.0 a-alice", query("SELECT total, accountID FROM Portfolio WHERE owner = 'alice'"));
+        assertEquals("IBM 20", query("SELECT symbol, shares FROM Stock WHERE owner = 'alice'"));
+        assertEquals("alice,bob", query("SELECT owner FROM Portfolio ORDER BY owner"));
+    }
+
+    @Test
+    public void deletingRemovesThePortfolioAndItsStocks() throws SQLException {
+        replica.save(portfolio("alice", 1500.0, "IBM", 10), portfolio("bob", 300.0, "IBM", 3));
+        TestSupport.call(replica, "flush");
+
+        replica.delete("alice");
+        TestSupport.call(replica, "flush");
+        assertEquals("bob", query("SELECT owner FROM Portfolio"));
+        assertEquals("bob", query("SELECT owner FROM Stock"));
+    }
+
+    @Test
+    public void entityComesBackAsTheMicroserviceWouldReturnIt() {
+        Portfolio entity = new Portfolio("alice", 1500.0, "a-alice");
+        Stock stock = new Stock("IBM", 10, 9.99, 150.0, 1500.0, "2026-10-19");
+        stock.setPortfolio(entity);
+        entity.getStockList().add(stock);
+        String[] asked = new String[2];
+        TypedQuery<?> query = TestSupport.stub(TypedQuery.class, (proxy, method, args) -> {
+            if (method.getName().equals("setParameter")) asked[1] = (String) args[1];
+            return method.getName().equals("getResultList") ? Collections.singletonList(entity) : proxy;
+        });
+        TestSupport.inject(replica, "entityManager", TestSupport.stub(EntityManager.class, (proxy, method, args) -> {
+            asked[0] = (String) args[0];
+            return query;
+        }));
+
+        Portfolio portfolio = replica.getPortfolio("alice");
+        assertEquals("Portfolio.findByOwnerWithStocks", asked[0]); //fetches the stocks in the same query
+        assertEquals("alice", asked[1]);
+        assertEquals("a-alice", portfolio.getAccountID());
+        JsonObject ibm = portfolio.getStocks().getJsonObject("IBM");
+        assertEquals(10, ibm.getInt("shares"));
+        assertEquals(1500.0, ibm.getJsonNumber("total").doubleValue(), 0.001);
+        assertEquals("2026-10-19", ibm.getString("date"));
+        assertTrue(portfolio.getStockList().isEmpty()); //a plain copy, not the managed entity
+    }
+
+    @Test
+    public void unseenOwnerIsNull() {
+        TypedQuery<?> query = TestSupport.stub(TypedQuery.class, (proxy, method, args) ->
+            method.getName().equals("getResultList") ? Collections.emptyList() : proxy);
+        TestSupport.inject(replica, "entityManager", TestSupport.stub(EntityManager.class, (proxy, method, args) -> query));
+
+        assertNull(replica.getPortfolio("carol"));
+    }
+
+    /** A portfolio as Portfolio returns it, with stocks given as symbol, shares pairs */
+    private static Portfolio portfolio(String owner, double total, Object... symbolsAndShares) {
+        JsonObjectBuilder stocks = Json.createObjectBuilder();
+        for (int index = 0; index < symbolsAndShares.length; index += 2) {
+            int shares = (Integer) symbolsAndShares[index + 1];
+            stocks.add((String) symbolsAndShares[index], Json.createObjectBuilder().add("shares", shares)
+                .add("commission", 9.99).add("price", 150.0).add("total", shares * 150.0).add("date", "2026-10-19"));
+        }
+        Portfolio portfolio = new Portfolio(owner, total, "a-" + owner);
+        portfolio.setStocks(stocks.build());
+        return portfolio;
+    }
+
+    /** The rows a query returns, columns separated by spaces and rows by commas */
+    private String query(String sql) throws SQLException {
+        StringBuilder rows = new StringBuilder();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery(sql)) {
+            int columns = results.getMetaData().getColumnCount();
+            while (results.next()) {
+                if (rows.length() > 0) rows.append(',');
+                for (int column = 1; column <= columns; column++) {
+                    if (column > 1) rows.append(' ');
+                    rows.append(results.getString(column));
+                }
+            }
+        }
+        return rows.toString();
+    }
+}
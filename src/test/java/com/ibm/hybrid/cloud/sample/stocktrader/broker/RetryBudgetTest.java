@@ -0,0 +1,153 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryBudgetTest {
+    private AtomicInteger attempts = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        TestSupport.setStatic(RetryBudget.class, "enabled", true);
+        TestSupport.setStatic(RetryBudget.class, "baseDelayMillis", 1);
+    }
+
+    @After
+    public void tearDown() {
+        TestSupport.setStatic(RetryBudget.class, "enabled", false);
+        TestSupport.setStatic(RetryBudget.class, "maxAttempts", 3);
+        TestSupport.setStatic(RetryBudget.class, "baseDelayMillis", 50);
+        TestSupport.setStatic(RetryBudget.class, "maxDelayMillis", 1000);
+        TestSupport.setStatic(RetryBudget.class, "budgetPercent", 10);
+        TestSupport.setStatic(RetryBudget.class, "maxTokens", 20);
+    }
+
+    @Test
+    public void gatewayErrorIsRetriedUntilItSucceeds() {
+        RetryBudget retries = new RetryBudget();
+        assertEquals("ok", retries.call("getPortfolio", failing(2, 503)));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void notFoundIsPassedOnStraightAway() {
+        expectStatus(404, new RetryBudget(), failing(2, 404));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void callShedByTheDownstreamLimitIsNotRetried() {
+        Response shed = Response.status(503).header("X-Broker-Shed", "true").build(); //as DownstreamLimitFilter aborts with
+        assertTrue(DownstreamLimitFilter.isShed(shed));
+        Supplier<String> call = () -> {
+            attempts.incrementAndGet();
+            throw new WebApplicationException(shed);
+        };
+
+        expectStatus(503, new RetryBudget(), call);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void retriesStopOnceTheBudgetIsSpent() {
+        TestSupport.setStatic(RetryBudget.class, "maxTokens", 2);
+        TestSupport.setStatic(RetryBudget.class, "budgetPercent", 50);
+        RetryBudget retries = new RetryBudget(); //starts full, with 2 tokens
+
+        expectStatus(503, retries, failing(5, 503)); //takes both tokens for its two retries
+        assertEquals(3, attempts.get());
+        assertEquals(0.0, retries.getTokens(), 0.001);
+
+        attempts.set(0);
+        expectStatus(503, retries, failing(5, 503)); //half a token isn't enough for a retry
+        assertEquals(1, attempts.get());
+
+        attempts.set(0);
+        expectStatus(503, retries, failing(5, 503)); //but with the next call's half, that's one
+        assertEquals(2, attempts.get());
+        assertEquals(0.0, retries.getTokens(), 0.001);
+    }
+
+    @Test
+    public void asyncCallIsRetriedFromTheScheduler() throws Exception {
+        ScheduledExecutorService threads = Executors.newSingleThreadScheduledExecutor();
+        try {
+            RetryBudget retries = new RetryBudget();
+            TestSupport.inject(retries, "scheduler", TestSupport.managed(threads));
+            Supplier<String> call = failing(2, 504);
+            String result = retries.callAsync("getAccount", () -> CompletableFuture.supplyAsync(call))
+                .toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertEquals("ok", result);
+            assertEquals(3, attempts.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void delayIsJitteredUpToACappedExponentialBackoff() {
+        TestSupport.setStatic(RetryBudget.class, "baseDelayMillis", 50);
+        TestSupport.setStatic(RetryBudget.class, "maxDelayMillis", 1000);
+        long[] ceilings = {50, 100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 1; attempt <= ceilings.length; attempt++) {
+            long lowest = Long.MAX_VALUE;
+            long highest = 0;
+            for (int sample = 0; sample < 2000; sample++) {
+                long delay = RetryBudget.delay(attempt);
+                assertTrue("attempt " + attempt + " waited " + delay, (delay >= 0) && (delay <= ceilings[attempt - 1]));
+                lowest = Math.min(lowest, delay);
+                highest = Math.max(highest, delay);
+            }
+            assertTrue(lowest < ceilings[attempt - 1] / 4); //spread across the whole range, not bunched at the top
+            assertTrue(highest > ceilings[attempt - 1] * 3 / 4);
+        }
+        assertTrue(RetryBudget.delay(100) <= 1000); //no overflow however many attempts
+    }
+
+    /** A call that fails with the given status the given number of times, then succeeds */
+    private Supplier<String> failing(int failures, int status) {
+        return () -> {
+            if (attempts.incrementAndGet() <= failures) throw new WebApplicationException(status);
+            return "ok";
+        };
+    }
+
+    private static void expectStatus(int status, RetryBudget retries, Supplier<String> call) {
+        try {
+            retries.call("getPortfolio", call);
+            fail("Expected a " + status);
+        } catch (WebApplicationException wae) {
+            assertEquals(status, wae.getResponse().getStatus());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ReturnsCacheTest {
+
+    @Test
+    public void answerIsKeptWhileTheValueStaysInItsBucket() {
+        ReturnsCache cache = new ReturnsCache();
+        cache.put("alice", 1000.0, "12.50", cache.epoch());
+
+        assertEquals("12.50", cache.get("alice", 1000.2));
+        assertNull(cache.get("alice", 1003.0));
+    }
+
+    @Test
+    public void tradeInvalidatesTheOwner() {
+        ReturnsCache cache = new ReturnsCache();
+        cache.put("alice", 1000.0, "12.50", cache.epoch());
+        cache.put("bob", 500.0, "-3.00", cache.epoch());
+        cache.invalidate("alice");
+
+        assertNull(cache.get("alice", 1000.0));
+        assertEquals("-3.00", cache.get("bob", 500.0));
+    }
+
+    @Test
+    public void calculationThatRacedWithATradeIsNotCached() {
+        ReturnsCache cache = new ReturnsCache();
+        long epoch = cache.epoch(); //asked TradeHistory before the trade...
+        cache.invalidate("alice");
+        cache.put("alice", 1000.0, "12.50", epoch); //...and got the answer after it
+
+        assertNull(cache.get("alice", 1000.0));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.StockPurchase;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.junit.Test;
+
+public class ReturnsEngineTest {
+    private static final JsonObject NO_STOCKS = Json.createObjectBuilder().build();
+
+    @Test
+    public void buyCountsCommissionAsInvested() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("alice");
+        engine.record(trade("alice", "IBM", 10, 100.0, 10.0));
+
+        //(1200 - 1010) / 1010
+        assertEquals("18.81", engine.getReturns("alice", 1200.0, stocks("IBM", 10, 10.0)));
+    }
+
+    @Test
+    public void answerUsesADecimalPointWhateverTheLocale() {
+        Locale original = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            ReturnsEngine engine = new ReturnsEngine();
+            engine.create("alice");
+            engine.record(trade("alice", "IBM", 10, 100.0, 10.0));
+
+            assertEquals("18.81", engine.getReturns("alice", 1200.0, stocks("IBM", 10, 10.0)));
+        } finally {
+            Locale.setDefault(original);
+        }
+    }
+
+    @Test
+    public void roundTripCountsSaleProceeds() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("bob");
+        engine.record(trade("bob", "IBM", 10, 100.0, 0.0));
+        engine.record(trade("bob", "IBM", -10, 200.0, 0.0));
+
+        //sold everything for twice what it cost
+        assertEquals("100.00", engine.getReturns("bob", 0.0, NO_STOCKS));
+    }
+
+    @Test
+    public void partialSaleCountsProceedsAndRemainingValue() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("carol");
+        engine.record(trade("carol", "IBM", 10, 100.0, 5.0));
+        engine.record(trade("carol", "IBM", -5, 150.0, 5.0));
+
+        //(750 held + 750 received - 1010 put in) / 1010
+        assertEquals("48.51", engine.getReturns("carol", 750.0, stocks("IBM", 5, 10.0)));
+    }
+
+    @Test
+    public void losingTradeIsNegative() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("dave");
+        engine.record(trade("dave", "IBM", 10, 100.0, 0.0));
+        engine.record(trade("dave", "IBM", -10, 50.0, 0.0));
+
+        assertEquals("-50.00", engine.getReturns("dave", 0.0, NO_STOCKS));
+    }
+
+    @Test
+    public void tradeSeenElsewhereFallsBack() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("erin");
+        engine.record(trade("erin", "IBM", 10, 100.0, 9.99));
+
+        //another pod bought 5 more
+        assertNull(engine.getReturns("erin", 1500.0, stocks("IBM", 15, 19.98)));
+        //and the owner stays with TradeHistory, even once the numbers line up again
+        assertNull(engine.getReturns("erin", 1000.0, stocks("IBM", 10, 9.99)));
+    }
+
+    @Test
+    public void roundTripElsewhereFallsBackOnCommission() {
+        ReturnsEngine engine = new ReturnsEngine();
+        engine.create("frank");
+        engine.record(trade("frank", "IBM", 10, 100.0, 9.99));
+
+        //same shares, but another buy and sell went through another pod
+        assertNull(engine.getReturns("frank", 1000.0, stocks("IBM", 10, 29.97)));
+    }
+
+    @Test
+    public void untrackedOwnerIsUnknown() {
+        assertNull(new ReturnsEngine().getReturns("grace", 100.0, NO_STOCKS));
+    }
+
+    @Test
+    public void replayCountsEachTradeOnce() {
+        ReturnsEngine engine = new ReturnsEngine();
+        StockPurchase buy = new StockPurchase("t1", "heidi", "IBM", 10, 100.0, "2021-01-01T00:00:00Z", 0.0);
+        StockPurchase sell = new StockPurchase("t2", "heidi", "IBM", -5, 120.0, "2021-01-02T00:00:00Z", 0.0);
+        engine.replay(Arrays.asList(sell, buy, buy));
+
+        //(600 held + 600 received - 1000 spent) / 1000
+        assertEquals("20.00", engine.getReturns("heidi", 600.0, stocks("IBM", 5, 0.0)));
+    }
+
+    private static StockPurchase trade(String owner, String symbol, int shares, double price, double commission) {
+        return new StockPurchase(null, owner, symbol, shares, price, null, commission);
+    }
+
+    private static JsonObject stocks(String symbol, int shares, double commission) {
+        JsonObjectBuilder stock = Json.createObjectBuilder().add("symbol", symbol).add("shares", shares).add("commission", commission);
+        return Json.createObjectBuilder().add(symbol, stock).build();
+    }
+}
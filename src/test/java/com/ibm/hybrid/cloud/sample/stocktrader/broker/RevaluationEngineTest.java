@@ -0,0 +1,94 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Broker;
+import com.ibm.hybrid.cloud.sample.stocktrader.broker.json.Quote;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevaluationEngineTest {
+    private RevaluationEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new RevaluationEngine();
+        TestSupport.inject(engine, "quoteCache", new QuoteCache());
+        TestSupport.inject(engine, "broadcaster", new BrokerBroadcaster());
+    }
+
+    @Test
+    public void removingAnOwnerKeepsTheOthersHoldings() {
+        engine.index("alice", broker("alice", "IBM", 10, 1000.0));
+        engine.index("bob", broker("bob", "IBM", 20, 2000.0));
+        engine.index("carol", broker("carol", "IBM", 30, 3000.0));
+        engine.remove("alice"); //swaps carol into alice's place
+        engine.remove("carol"); //so this has to find her at her new position
+        engine.tick(new Quote("IBM", 150.0, "2021-12-01"));
+
+        assertEquals(3000.0, value(engine.snapshot(), "bob"), 0.001);
+        assertNull(owner(engine.snapshot(), "carol"));
+    }
+
+    @Test
+    public void revaluesAtTheLatestTick() {
+        engine.index("dave", broker("dave", "IBM", 10, 1000.0));
+        engine.tick(new Quote("IBM", 120.0, "2021-12-01"));
+
+        Broker revalued = engine.revalue(broker("dave", "IBM", 10, 1000.0));
+        assertEquals(1200.0, revalued.getTotal(), 0.001);
+        assertEquals(120.0, revalued.getStocks().getJsonObject("IBM").getJsonNumber("price").doubleValue(), 0.001);
+    }
+
+    @Test
+    public void reindexingKeepsTheLatestTick() {
+        engine.tick(new Quote("IBM", 130.0, "2021-12-01")); //before anyone holds it
+        engine.index("erin", broker("erin", "IBM", 10, 1000.0));
+
+        assertEquals(1300.0, value(engine.snapshot(), "erin"), 0.001);
+    }
+
+    private static Integer owner(RevaluationEngine.Book book, String owner) {
+        for (int slot = 0; slot < book.owners.length; slot++) {
+            if (owner.equals(book.owners[slot])) return slot;
+        }
+        return null;
+    }
+
+    private static double value(RevaluationEngine.Book book, String owner) {
+        int slot = owner(book, owner);
+        double total = 0.0;
+        for (int position = book.start[slot]; position < book.start[slot + 1]; position++) total += book.values[position];
+        return total;
+    }
+
+    private static Broker broker(String owner, String symbol, int shares, double total) {
+        JsonObject stocks = Json.createObjectBuilder()
+            .add(symbol, Json.createObjectBuilder().add("shares", shares).add("total", total))
+            .build();
+        Broker broker = new Broker(owner, total, "Basic", 50.0, 0.0, 0, "Unknown", 9.99);
+        broker.setStocks(stocks);
+        return broker;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+       Copyright 2020-2021 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.broker;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+/** Helpers for unit testing the broker's CDI beans without a container */
+final class TestSupport {
+    private TestSupport() {
+    }
+
+    /** Sets a field (typically an @Inject or @Resource one) the way the container would */
+    static void inject(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalArgumentException("Can't set " + name, roe);
+        }
+    }
+
+    /** Sets a static field, such as a setting normally read from an environment variable */
+    static void setStatic(Class<?> type, String name, Object value) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalArgumentException("Can't set " + name, roe);
+        }
+    }
+
+    /** Calls a method (typically a private @PostConstruct, observer or scheduled one) the way the container would */
+    static void call(Object target, String name, Object... args) {
+        try {
+            for (Method method : target.getClass().getDeclaredMethods()) {
+                if (!method.getName().equals(name) || (method.getParameterCount() != args.length)) continue;
+                method.setAccessible(true);
+                method.invoke(target, args);
+                return;
+            }
+            throw new NoSuchMethodException(name);
+        } catch (InvocationTargetException ite) {
+            throw new IllegalStateException(name + " failed", ite.getCause());
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalArgumentException("Can't call " + name, roe);
+        }
+    }
+
+    /** A ManagedScheduledExecutorService backed by an ordinary one */
+    static ManagedScheduledExecutorService managed(ScheduledExecutorService executor) {
+        return (ManagedScheduledExecutorService) Proxy.newProxyInstance(TestSupport.class.getClassLoader(),
+            new Class<?>[] {ManagedScheduledExecutorService.class}, (proxy, method, args) -> {
+                try {
+                    return method.invoke(executor, args);
+                } catch (InvocationTargetException ite) {
+                    throw ite.getCause();
+                }
+            });
+    }
+
+    /** An implementation of an interface whose methods all go to the given handler */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(TestSupport.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+}